@@ -0,0 +1,124 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Multi-threaded stress of send/check on a handful of hot phones, proving per-phone operations are
+ * linearizable. Every phone has one writer, which re-sends new codes (BdbTools.add) and reads record
+ * back right away; the rest of threads check current codes of random phones. Detected violations:
+ * <ul>
+ *     <li>lost update: check overwrote newer code of re-send with older one</li>
+ *     <li>double issue: same code of the same phone confirmed with two different hashes</li>
+ * </ul>
+ * Run with --unsafe to use old get() + putNoTTL() sequence of check() and see it fail.
+ * <pre>
+ * java -cp target/benchmarks.jar io.github.ac2epsilon.smsconfirmation.CheckStress [threads] [phones] [seconds] [shards] [--unsafe]
+ * </pre>
+ */
+public class CheckStress {
+    private static final int MAX_CODES = 10000; // codes of one phone stay unique, so double issue is detectable
+
+    public static void main(String[] args) throws Exception {
+        boolean unsafe = false;
+        List<Integer> numbers = new ArrayList<>();
+        for (String a : args) {
+            if (a.equals("--unsafe")) unsafe = true;
+            else numbers.add(Integer.parseInt(a));
+        }
+        int threads = numbers.size()>0 ? numbers.get(0) : 2*Runtime.getRuntime().availableProcessors();
+        int phones = numbers.size()>1 ? numbers.get(1) : 8;
+        int seconds = numbers.size()>2 ? numbers.get(2) : 5;
+        int shards = numbers.size()>3 ? numbers.get(3) : 1;
+        if (threads<=phones) throw new IllegalArgumentException("Need more threads then phones, one writer per phone");
+
+        File dir = TempEnv.create();
+        BdbTools bdb = new BdbTools("stress", dir, new BdbConfig().setShards(shards));
+        try {
+            boolean failed = run(bdb, threads, phones, seconds, unsafe);
+            System.exit(failed ? 1 : 0);
+        } finally {
+            bdb.close();
+            TempEnv.delete(dir);
+        }
+    }
+
+    private static boolean run(BdbTools bdb, int threads, int phones, int seconds, boolean unsafe) throws InterruptedException {
+        String[] phone = new String[phones];
+        String[] lastCode = new String[phones];
+        for (int i = 0; i < phones; i++) phone[i] = TempEnv.phone(i);
+        ConcurrentHashMap<String, String> issued = new ConcurrentHashMap<>();
+        LongAdder writes = new LongAdder(), checks = new LongAdder(), confirmed = new LongAdder();
+        LongAdder lostUpdates = new LongAdder(), doubleIssues = new LongAdder();
+        AtomicBoolean stop = new AtomicBoolean();
+        List<Thread> workers = new ArrayList<>();
+
+        for (int p = 0; p < phones; p++) {
+            int n = p;
+            workers.add(new Thread(() -> {
+                for (int gen = 0; gen < MAX_CODES && !stop.get(); gen++) {
+                    String code = String.format("%04d", gen);
+                    bdb.add(phone[n], code);
+                    lastCode[n] = code;
+                    writes.increment();
+                    Confirmation back = bdb.get(phone[n]);
+                    if (back==null || !back.code.equals(code)) lostUpdates.increment();
+                }
+            }, "writer-" + p));
+        }
+        for (int t = phones; t < threads; t++) {
+            workers.add(new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (!stop.get()) {
+                    int n = random.nextInt(phones);
+                    Confirmation current = bdb.get(phone[n]);
+                    if (current==null) continue;
+                    String hash = unsafe ? unsafeCheck(bdb, phone[n], current.code) : check(bdb, phone[n], current.code);
+                    checks.increment();
+                    if (hash==null) continue;
+                    confirmed.increment();
+                    String first = issued.putIfAbsent(phone[n] + "/" + current.code, hash);
+                    if (first!=null && !first.equals(hash)) doubleIssues.increment();
+                }
+            }, "checker-" + t));
+        }
+
+        long start = System.nanoTime();
+        for (Thread w : workers) w.start();
+        Thread.sleep(seconds*1000L);
+        stop.set(true);
+        for (Thread w : workers) w.join();
+        double elapsed = (System.nanoTime() - start)/1e9;
+
+        for (int p = 0; p < phones; p++) {
+            Confirmation last = bdb.get(phone[p]);
+            if (last==null || !last.code.equals(lastCode[p])) lostUpdates.increment();
+        }
+        System.out.printf("%s, %d threads, %d phones, %.1fs: %d writes, %d checks (%d confirmed), %.0f ops/s%n",
+            unsafe ? "unsafe" : "safe", threads, phones, elapsed, writes.sum(), checks.sum(), confirmed.sum(),
+            (writes.sum() + checks.sum())/elapsed);
+        System.out.println("lost updates: " + lostUpdates.sum() + ", double issues: " + doubleIssues.sum());
+        return lostUpdates.sum() + doubleIssues.sum()>0;
+    }
+
+    private static String check(BdbTools bdb, String phone, String code) {
+        Confirmation c = bdb.confirm(phone, code);
+        return c==null ? null : c.hash;
+    }
+
+    /** check() as it was before BdbTools.confirm() */
+    private static String unsafeCheck(BdbTools bdb, String phone, String code) {
+        Confirmation saved = bdb.get(phone);
+        if (saved==null || !saved.code.equals(code)) return null;
+        if (saved.hash==null) {
+            saved.setTokenHash();
+            bdb.putNoTTL(saved);
+        }
+        return saved.hash;
+    }
+}
@@ -0,0 +1,72 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end send / check / reHash through SmsConfirmation, with stub gateway on loopback
+ * and temporary JE environment
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConfirmationBenchmark {
+    @Param({"10000"})
+    public int phones;
+
+    @Param({"0"})
+    public long gatewayDelayMs;
+
+    private File dir;
+    private StubNexmoServer gateway;
+    private SmsConfirmation sms;
+    private String[] hashes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = TempEnv.create();
+        gateway = new StubNexmoServer(gatewayDelayMs);
+        sms = new SmsConfirmation("Bench", "0123abcd", "0123456789abcdef", new BdbTools("Bench", dir));
+        sms.setBaseUrl(gateway.url());
+        sms.setRateLimitConfig(RateLimitConfig.none()); // same phones are sent over and over
+        hashes = new String[phones];
+        for (int i = 0; i < phones; i++) {
+            String phone = TempEnv.phone(i);
+            sms.bdb.add(phone, "1234");
+            hashes[i] = sms.check(phone, "1234");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sms.close();
+        gateway.stop();
+        TempEnv.delete(dir);
+    }
+
+    @Benchmark
+    public String send() {
+        return sms.send(TempEnv.phone(phones + ThreadLocalRandom.current().nextInt(phones)));
+    }
+
+    @Benchmark
+    public String checkConfirmed() {
+        return sms.check(TempEnv.phone(ThreadLocalRandom.current().nextInt(phones)), "1234");
+    }
+
+    @Benchmark
+    public String checkWrongCode() {
+        return sms.check(TempEnv.phone(ThreadLocalRandom.current().nextInt(phones)), "0000");
+    }
+
+    @Benchmark
+    public String reHash() {
+        return sms.reHash(hashes[ThreadLocalRandom.current().nextInt(phones)]);
+    }
+}
@@ -0,0 +1,38 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of rate limit check in front of every send, shared by all benchmark threads (run with -t N)
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RateLimiterBenchmark {
+    @Param({"100000"})
+    public int phones;
+
+    @Param({"0", "1000000"})
+    public double namespaceRate;
+
+    private RateLimiter limiter;
+    private String[] phone;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        limiter = new RateLimiter(new RateLimitConfig().setNamespaceRate(namespaceRate, 1000).setMaxPhones(phones));
+        phone = new String[phones];
+        for (int i = 0; i < phones; i++) phone[i] = TempEnv.phone(i);
+    }
+
+    @Benchmark
+    public long acquire() {
+        return limiter.acquire(phone[ThreadLocalRandom.current().nextInt(phones)]);
+    }
+}
@@ -0,0 +1,127 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import com.sleepycat.je.rep.StateChangeException;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs 3-node JE HA group in one JVM, nodes on localhost ports basePort+1..3, each in own directory,
+ * and measures read throughput of one node against all three. Master writes and confirms records,
+ * then reader threads of every node do reHash lookups and checks of wrong codes, which replicas serve
+ * by themselves. Also proves read-your-writes: check of fresh right code on replica, given commit token
+ * of master's add(), must see the code and ask for master, never fail. Nodes share CPUs of one machine
+ * here, so scale-out shows fully only with one process per host. JE 7 needs --add-opens on JDK 9+:
+ * <pre>
+ * java --add-opens java.management/sun.management=ALL-UNNAMED -cp target/benchmarks.jar \
+ *     io.github.ac2epsilon.smsconfirmation.ReplicationHarness [records] [seconds] [threadsPerNode] [basePort]
+ * </pre>
+ */
+public class ReplicationHarness {
+    private static final int NODES = 3;
+
+    public static void main(String[] args) throws Exception {
+        int records = args.length>0 ? Integer.parseInt(args[0]) : 20000;
+        int seconds = args.length>1 ? Integer.parseInt(args[1]) : 5;
+        int threads = args.length>2 ? Integer.parseInt(args[2]) : Math.max(1, Runtime.getRuntime().availableProcessors()/NODES);
+        int basePort = args.length>3 ? Integer.parseInt(args[3]) : 5000;
+
+        File root = TempEnv.create();
+        BdbTools[] nodes = new BdbTools[NODES];
+        boolean failed;
+        try {
+            String helper = "localhost:" + (basePort + 1);
+            for (int i = 0; i < NODES; i++) { // first node creates group and becomes master, others join it
+                HaConfig ha = new HaConfig("sms" + (i + 1), "localhost:" + (basePort + i + 1), helper);
+                nodes[i] = new BdbTools("ha", new File(root, "node-" + (i + 1)), new BdbConfig().setReplication(ha));
+            }
+            BdbTools master = nodes[0];
+            for (BdbTools node : nodes) if (node.isMaster()) master = node;
+            System.out.println("master: " + master.getMasterName());
+
+            String[] hashes = load(master, records);
+            failed = !checkConsistency(master, nodes, 1000);
+            double one = read(new BdbTools[] {master}, hashes, threads, seconds);
+            double all = read(nodes, hashes, threads, seconds);
+            System.out.printf("reads: 1 node %.0f ops/s, %d nodes %.0f ops/s (x%.2f)%n", one, NODES, all, all/one);
+        } finally {
+            for (int i = NODES - 1; i>=0; i--) if (nodes[i]!=null && !nodes[i].isMaster()) nodes[i].close();
+            for (BdbTools node : nodes) if (node!=null) node.close();
+            TempEnv.delete(root);
+        }
+        System.exit(failed ? 1 : 0);
+    }
+
+    /**
+     * Sends and confirms records on master
+     *
+     * @return Hashes of confirmed records
+     */
+    private static String[] load(BdbTools master, int records) {
+        long start = System.nanoTime();
+        List<Confirmation> group = new ArrayList<>(500);
+        for (int i = 0; i < records; i++) {
+            group.add(new Confirmation(TempEnv.phone(i), String.format("%04d", i%10000)));
+            if (group.size()==500 || i==records - 1) {
+                master.addAll(group);
+                group.clear();
+            }
+        }
+        String[] hashes = new String[records];
+        for (int i = 0; i < records; i++) hashes[i] = master.confirm(TempEnv.phone(i), String.format("%04d", i%10000)).hash;
+        System.out.printf("loaded %d records in %dms%n", records, (System.nanoTime() - start)/1000000);
+        return hashes;
+    }
+
+    /**
+     * Master sends fresh code, then replica checks it right away, with commit token of the send.
+     * Replica must see the code and ask for master; null would mean replica checked stale data
+     */
+    private static boolean checkConsistency(BdbTools master, BdbTools[] nodes, int rounds) {
+        int stale = 0, redirected = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            String phone = TempEnv.phone(10000000 + i);
+            Confirmation sent = master.add(phone, "4321");
+            for (BdbTools node : nodes) {
+                if (node==master) continue;
+                try {
+                    if (node.confirm(phone, "4321", sent.getCommitToken())==null) stale++;
+                } catch (StateChangeException e) { redirected++; }
+            }
+        }
+        System.out.printf("fresh codes checked on replicas: %d sent to master, %d stale, %.2fms per send and checks%n",
+            redirected, stale, (System.nanoTime() - start)/1e6/rounds);
+        return stale==0;
+    }
+
+    private static double read(BdbTools[] nodes, String[] hashes, int threads, int seconds) throws InterruptedException {
+        LongAdder ops = new LongAdder(), misses = new LongAdder();
+        AtomicBoolean stop = new AtomicBoolean();
+        List<Thread> readers = new ArrayList<>();
+        for (BdbTools node : nodes) {
+            for (int t = 0; t < threads; t++) {
+                readers.add(new Thread(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    while (!stop.get()) {
+                        int i = random.nextInt(hashes.length);
+                        if (node.getByHash(hashes[i])==null) misses.increment();
+                        node.confirm(TempEnv.phone(i), "wrong"); // confirmed record, answers without write
+                        ops.add(2);
+                    }
+                }));
+            }
+        }
+        long start = System.nanoTime();
+        for (Thread r : readers) r.start();
+        Thread.sleep(seconds*1000L);
+        stop.set(true);
+        for (Thread r : readers) r.join();
+        if (misses.sum()>0) System.out.println("missed hashes: " + misses.sum());
+        return ops.sum()/((System.nanoTime() - start)/1e9);
+    }
+}
@@ -0,0 +1,77 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import com.sleepycat.je.Durability;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cold start of short-lived process: time from nothing to the first answered check, once per fresh JVM,
+ * so class loading, JE recovery and building of entity model are all counted. Store is filled by separate
+ * JVM in setup, so not a single JE class is loaded here before measurement. Build main jar with
+ * -Denhance.skip=false to compare against persistent classes enhanced by ClassEnhancer.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(10)
+@State(Scope.Benchmark)
+public class StartupBenchmark {
+    @Param({"10000"})
+    public int records;
+
+    @Param({"DPL", "COMPACT"})
+    public BdbConfig.Format format;
+
+    @Param({"false", "true"})
+    public boolean readOnly;
+
+    private File dir;
+    private SmsConfirmation sms;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        dir = TempEnv.create();
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process fill = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+            StartupBenchmark.class.getName(), dir.getPath(), format.name(), Integer.toString(records))
+            .inheritIO().start();
+        if (fill.waitFor()!=0) throw new IllegalStateException("Can not fill store in " + dir);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (sms!=null) sms.close();
+        TempEnv.delete(dir);
+    }
+
+    @Benchmark
+    public String firstCheck() {
+        BdbTools bdb = new BdbTools("startup", dir, new BdbConfig().setFormat(format).setReadOnly(readOnly));
+        sms = new SmsConfirmation("startup", "12345678", "1234567890abcdef", bdb);
+        return sms.check(TempEnv.phone(records/2), "1234"); // confirmed already, hash comes without write
+    }
+
+    /**
+     * Fills store with confirmed records in its own JVM, run by setUp()
+     *
+     * @param args Directory, format and number of records
+     */
+    public static void main(String[] args) {
+        int records = Integer.parseInt(args[2]);
+        BdbTools bdb = new BdbTools("startup", new File(args[0]), new BdbConfig()
+            .setFormat(BdbConfig.Format.valueOf(args[1])).setConfirmedDurability(Durability.COMMIT_NO_SYNC));
+        try {
+            for (int i = 0; i < records; i++) {
+                Confirmation c = new Confirmation(TempEnv.phone(i), "1234");
+                c.setTokenHash();
+                bdb.putNoTTL(c);
+            }
+        } finally {
+            bdb.close();
+        }
+    }
+}
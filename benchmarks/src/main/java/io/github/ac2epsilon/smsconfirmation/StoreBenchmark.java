@@ -0,0 +1,86 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BdbTools operations against temporary JE environment, pre-filled with confirmed records
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StoreBenchmark {
+    @Param({"100000"})
+    public int records;
+
+    @Param({"0", "100000"})
+    public int cacheEntries;
+
+    @Param({"DPL", "COMPACT"})
+    public BdbConfig.Format format;
+
+    @Param({"1"})
+    public int shards;
+
+    @Param({"0", "100000"})
+    public long hashFilterEntries;
+
+    private File dir;
+    private BdbTools bdb;
+    private String[] hashes;
+    private String[] misses; // never issued, e.g. stale links
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dir = TempEnv.create();
+        bdb = new BdbTools("bench", dir, new BdbConfig().setFormat(format).setShards(shards)
+            .setHashFilterEntries(hashFilterEntries));
+        if (cacheEntries>0) bdb.enableCache(cacheEntries);
+        hashes = new String[records];
+        for (int i = 0; i < records; i++) {
+            Confirmation c = bdb.add(TempEnv.phone(i), "1234");
+            c.setTokenHash();
+            bdb.putNoTTL(c);
+            hashes[i] = c.hash;
+        }
+        misses = new String[records];
+        byte[] random = new byte[20];
+        for (int i = 0; i < records; i++) {
+            ThreadLocalRandom.current().nextBytes(random);
+            misses[i] = Confirmation.bytesToHex(random);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        bdb.close();
+        TempEnv.delete(dir);
+    }
+
+    @Benchmark
+    public Confirmation add() {
+        // separate key range, so confirmed records used by get benchmarks stay intact
+        return bdb.add(TempEnv.phone(records + ThreadLocalRandom.current().nextInt(records)), "4321");
+    }
+
+    @Benchmark
+    public Confirmation get() {
+        return bdb.get(TempEnv.phone(ThreadLocalRandom.current().nextInt(records)));
+    }
+
+    @Benchmark
+    public Confirmation getByHash() {
+        return bdb.getByHash(hashes[ThreadLocalRandom.current().nextInt(records)]);
+    }
+
+    @Benchmark
+    public Confirmation getByHashMiss() {
+        return bdb.getByHash(misses[ThreadLocalRandom.current().nextInt(records)]);
+    }
+}
@@ -0,0 +1,79 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process HTTP server answering like rest.nexmo.com/sms/json does for accepted single-part SMS
+ */
+class StubNexmoServer {
+    private static final byte[] OK = (
+        "{\n" +
+        "    \"message-count\": \"1\",\n" +
+        "    \"messages\": [{\n" +
+        "        \"to\": \"380639003365\",\n" +
+        "        \"message-id\": \"0A0000000123ABCD1\",\n" +
+        "        \"status\": \"0\",\n" +
+        "        \"remaining-balance\": \"3.14159265\",\n" +
+        "        \"message-price\": \"0.03330000\",\n" +
+        "        \"network\": \"12345\"\n" +
+        "    }]\n" +
+        "}").getBytes(StandardCharsets.UTF_8);
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final long delayMs;
+
+    /**
+     * Starts server on free port of loopback interface
+     *
+     * @param delayMs Artificial gateway latency added to every response
+     * @throws IOException If server can not bind
+     */
+    StubNexmoServer(long delayMs) throws IOException {
+        this.delayMs = delayMs;
+        // without it response headers and body go in separate packets and hit 40ms delayed ACK
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 512);
+        executor = Executors.newFixedThreadPool(64);
+        server.setExecutor(executor);
+        server.createContext("/sms/json", this::handle);
+        server.start();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] skip = new byte[1024];
+            while (in.read(skip)>=0) { }
+        }
+        if (delayMs>0) {
+            try { TimeUnit.MILLISECONDS.sleep(delayMs); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, OK.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(OK);
+        }
+    }
+
+    /**
+     * @return URL to pass to SmsConfirmation.setBaseUrl()
+     */
+    String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/sms/json";
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,37 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Throw-away directory for BerkeleyDB environment of one benchmark trial
+ */
+class TempEnv {
+    private TempEnv() {}
+
+    static File create() {
+        try {
+            return Files.createTempDirectory("sms-bench-").toFile();
+        } catch (IOException e) { throw new UncheckedIOException(e); }
+    }
+
+    static void delete(File dir) {
+        if (dir==null || !dir.exists()) return;
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } catch (IOException e) { throw new UncheckedIOException(e); }
+    }
+
+    /**
+     * @param i Sequence number
+     * @return Distinct valid phone number for every i
+     */
+    static String phone(int i) {
+        return "380" + (100000000 + i);
+    }
+}
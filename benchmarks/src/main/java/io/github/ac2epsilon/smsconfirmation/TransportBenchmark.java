@@ -0,0 +1,37 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Send latency through RoutingTransport over two fake gateways: primary is fast but 5% of its sends
+ * take 200ms, backup is steady. Compare p99 of SampleTime with hedging off and at p95.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransportBenchmark {
+    @Param({"0", "0.95"})
+    public double hedgePercentile;
+
+    private RoutingTransport transport;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        transport = new RoutingTransport(
+            new FakeTransport("primary").setLatencyMillis(2).setTail(0.05, 200),
+            new FakeTransport("backup").setLatencyMillis(10))
+            .setHedgePercentile(hedgePercentile)
+            .setHedgeDelayMillis(20);
+    }
+
+    @Benchmark
+    public void send() throws IOException, SmsException {
+        transport.send("Bench", "380501234567", "Your confirmation code: 1234");
+    }
+}
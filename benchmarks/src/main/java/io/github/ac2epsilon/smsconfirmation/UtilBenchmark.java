@@ -0,0 +1,58 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU-only hot spots: hash of confirmed record, code generation, phone validation and putting code
+ * into message text and its URL-encoded form
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class UtilBenchmark {
+    private Confirmation confirmation;
+    private final MessageTemplate template = MessageTemplate.compile("Your confirmation code: ~");
+    private final byte[] code = MessageTemplate.urlEncoded("9304");
+    private final byte[] body = new byte[256];
+
+    @Setup
+    public void setUp() {
+        confirmation = new Confirmation("380639003365", "9304");
+    }
+
+    @Benchmark
+    public String setTokenHash() {
+        confirmation.setTokenHash();
+        return confirmation.hash;
+    }
+
+    @Benchmark
+    public String getVerificationToken() {
+        return SmsUtil.getVerificationToken();
+    }
+
+    @Benchmark
+    public Character detectType() {
+        return SmsUtil.detectType("380639003365");
+    }
+
+    @Benchmark
+    public boolean isCode() {
+        return SmsConfirmation.isCode("9304");
+    }
+
+    @Benchmark
+    public String formatTemplate() {
+        return template.format("9304");
+    }
+
+    @Benchmark
+    public int encodeTemplate() {
+        return template.encodeTo(body, 0, code);
+    }
+}
@@ -0,0 +1,85 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+/**
+ * Settings for asynchronous sending, see {@link SmsConfirmation#sendAsync(String, String)}.
+ * Setters return this, so config can be chained the same way as BerkeleyDB configs.
+ */
+public class AsyncConfig {
+    /**
+     * What to do with a request, when maxInFlight requests are already running
+     */
+    public enum Overflow {
+        /** Fail returned future at once with RejectedExecutionException */
+        REJECT,
+        /** Hold request in memory queue until some running request completes */
+        QUEUE
+    }
+
+    private int maxInFlight = 256;
+    private int maxQueued = 10000;
+    private int threads = 32;
+    private boolean virtualThreads = false;
+    private Overflow overflow = Overflow.QUEUE;
+
+    /**
+     * @param maxInFlight How many confirmations can be sent at the same time, default 256. Platform
+     *                    pool runs no more then its threads at once, whichever is less
+     * @return this
+     */
+    public AsyncConfig setMaxInFlight(int maxInFlight) {
+        if (maxInFlight<1) throw new IllegalArgumentException("maxInFlight must be positive");
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    public int getMaxInFlight() { return maxInFlight; }
+
+    /**
+     * @param maxQueued Queue limit for Overflow.QUEUE policy, requests above it are rejected. Default
+     *                  10000, so burst over gateway speed fails fast instead of filling heap
+     * @return this
+     */
+    public AsyncConfig setMaxQueued(int maxQueued) {
+        if (maxQueued<0) throw new IllegalArgumentException("maxQueued can not be negative");
+        this.maxQueued = maxQueued;
+        return this;
+    }
+
+    public int getMaxQueued() { return maxQueued; }
+
+    /**
+     * @param threads Size of platform thread pool, default 32. Ignored when virtual threads are in use
+     * @return this
+     */
+    public AsyncConfig setThreads(int threads) {
+        if (threads<1) throw new IllegalArgumentException("threads must be positive");
+        this.threads = threads;
+        return this;
+    }
+
+    public int getThreads() { return threads; }
+
+    /**
+     * @param virtualThreads Run every request on its own virtual thread, if JVM supports them (JDK 21+).
+     *                       On older JVM platform pool is used silently
+     * @return this
+     */
+    public AsyncConfig setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+        return this;
+    }
+
+    public boolean getVirtualThreads() { return virtualThreads; }
+
+    /**
+     * @param overflow Backpressure policy, see {@link Overflow}
+     * @return this
+     */
+    public AsyncConfig setOverflow(Overflow overflow) {
+        if (overflow==null) throw new IllegalArgumentException("overflow can not be null");
+        this.overflow = overflow;
+        return this;
+    }
+
+    public Overflow getOverflow() { return overflow; }
+}
@@ -0,0 +1,196 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Bounded executor behind sendAsync(). No more then maxInFlight tasks run at once (or threads of
+ * platform pool, if there are less of them, so task in flight is always running, not waiting in
+ * executor queue), the rest either wait in backlog queue or are rejected, depending on
+ * AsyncConfig.Overflow policy. Batches use submitWaiting(), which is never rejected: batch task
+ * joins the same backlog in arrival order, and caller waits while backlog is full of waiting tasks.
+ */
+class AsyncSender {
+    private final AsyncConfig config;
+    private final ExecutorService executor;
+    private final int limit;       // tasks in flight at once
+    private final int batchRoom;   // backlog length, at which submitWaiting() waits
+    private final Semaphore permits;
+    private final Queue<Job> backlog = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Object room = new Object(); // batch callers wait on it for backlog to get shorter
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    AsyncSender(AsyncConfig config) {
+        this.config = config;
+        ExecutorService vt = config.getVirtualThreads() ? virtualExecutor() : null;
+        this.limit = vt!=null ? config.getMaxInFlight() : Math.min(config.getThreads(), config.getMaxInFlight());
+        this.batchRoom = Math.max(1, Math.min(limit, config.getMaxQueued()));
+        this.permits = new Semaphore(limit);
+        this.executor = vt!=null ? vt : platformExecutor(limit);
+    }
+
+    /**
+     * Tries to create virtual-thread-per-task executor. Looked up reflectively, as we still build for Java 8
+     *
+     * @return Executor or null if running JVM has no virtual threads
+     */
+    static ExecutorService virtualExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) { return null; }
+    }
+
+    private static ExecutorService platformExecutor(int threads) {
+        AtomicInteger n = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "sms-send-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Schedules task and returns future of its result
+     *
+     * @param task Work to do, usually blocking send()
+     * @return Future, completed with task result or exceptionally with RejectedExecutionException
+     */
+    <T> CompletableFuture<T> submit(Supplier<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Job job = job(future, task);
+        if (config.getOverflow()==AsyncConfig.Overflow.REJECT) {
+            if (!permits.tryAcquire()) {
+                future.completeExceptionally(new RejectedExecutionException(
+                    "More then " + limit + " confirmations in flight"));
+                return future;
+            }
+            start(job);
+        } else {
+            if (queued.incrementAndGet()>config.getMaxQueued()) {
+                queued.decrementAndGet();
+                future.completeExceptionally(new RejectedExecutionException(
+                    "More then " + config.getMaxQueued() + " confirmations queued"));
+                return future;
+            }
+            backlog.add(job);
+            drain();
+        }
+        return future;
+    }
+
+    /**
+     * Puts task at the end of backlog, whatever Overflow policy is, so it does not overtake tasks
+     * of sendAsync() queued before it. Blocks calling thread while backlog already holds as many
+     * tasks as can run at once (or maxQueued, if less). Used by sendBatch(), which is blocking call anyway
+     *
+     * @param task Work to do
+     * @return Future, completed with task result, or exceptionally only if sender is shut down
+     */
+    <T> CompletableFuture<T> submitWaiting(Supplier<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        if (queued.get()>=batchRoom) waitForRoom();
+        queued.incrementAndGet();
+        backlog.add(job(future, task));
+        drain();
+        return future;
+    }
+
+    private void waitForRoom() {
+        boolean interrupted = false;
+        waiting.incrementAndGet();
+        try {
+            synchronized (room) {
+                while (queued.get()>=batchRoom && !executor.isShutdown()) {
+                    try {
+                        room.wait();
+                    } catch (InterruptedException e) { interrupted = true; }
+                }
+            }
+        } finally {
+            waiting.decrementAndGet();
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    private void leftBacklog() {
+        queued.decrementAndGet();
+        if (waiting.get()>0) synchronized (room) { room.notifyAll(); }
+    }
+
+    private static <T> Job job(CompletableFuture<T> future, Supplier<T> task) {
+        return new Job(future, () -> {
+            try {
+                future.complete(task.get());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        });
+    }
+
+    /**
+     * Moves backlog jobs to executor while there are free permits
+     */
+    private void drain() {
+        while (!backlog.isEmpty() && permits.tryAcquire()) {
+            Job job = backlog.poll();
+            if (job==null) { permits.release(); continue; }
+            leftBacklog();
+            start(job);
+        }
+    }
+
+    private void start(Job job) {
+        try {
+            executor.execute(() -> {
+                try { job.body.run(); } finally { permits.release(); drain(); }
+            });
+        } catch (RejectedExecutionException ree) { // executor is shut down
+            permits.release();
+            job.future.completeExceptionally(ree);
+        }
+    }
+
+    /**
+     * @return Number of tasks running right now
+     */
+    int inFlight() {
+        return limit - permits.availablePermits();
+    }
+
+    /**
+     * @return Number of tasks waiting in backlog
+     */
+    int queued() {
+        return queued.get();
+    }
+
+    /**
+     * Stops accepting tasks and waits a bit for running ones
+     *
+     * @param timeoutMs How long to wait for in-flight tasks
+     */
+    void shutdown(long timeoutMs) {
+        executor.shutdown();
+        for (Job job = backlog.poll(); job!=null; job = backlog.poll()) {
+            leftBacklog();
+            job.future.completeExceptionally(new RejectedExecutionException("Sender is shut down"));
+        }
+        synchronized (room) { room.notifyAll(); }
+        try {
+            executor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+    }
+
+    private static class Job {
+        final CompletableFuture<?> future;
+        final Runnable body;
+
+        Job(CompletableFuture<?> future, Runnable body) {
+            this.future = future;
+            this.body = body;
+        }
+    }
+}
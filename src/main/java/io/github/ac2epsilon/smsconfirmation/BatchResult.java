@@ -0,0 +1,55 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+/**
+ * Outcome of one phone in {@link SmsConfirmation#sendBatch(java.util.Collection, String)}:
+ * either 4-digit code, sent and stored, or reason of failure
+ */
+public class BatchResult {
+    private final String phone;
+    private final String code;
+    private final String error;
+
+    private BatchResult(String phone, String code, String error) {
+        this.phone = phone;
+        this.code = code;
+        this.error = error;
+    }
+
+    static BatchResult sent(String phone, String code) {
+        return new BatchResult(phone, code, null);
+    }
+
+    static BatchResult failed(String phone, String error) {
+        return new BatchResult(phone, null, error);
+    }
+
+    /**
+     * @return Phone number as given in batch
+     */
+    public String getPhone() { return phone; }
+
+    /**
+     * @return 4-digit code, or null if confirmation failed
+     */
+    public String getCode() { return code; }
+
+    /**
+     * @return Failure reason, or null if code was sent and stored
+     */
+    public String getError() { return error; }
+
+    /**
+     * @return true if code was sent and stored in DB
+     */
+    public boolean isSent() { return code!=null; }
+
+    /**
+     * @return true if SMS was not sent because phone or namespace is over rate limit
+     */
+    public boolean isRateLimited() { return SmsConfirmation.RATE_LIMITED.equals(error); }
+
+    @Override
+    public String toString() {
+        return "BatchResult: ["+phone+"-"+(code!=null ? code : "error: "+error)+"]";
+    }
+}
@@ -0,0 +1,311 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import com.sleepycat.je.Durability;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Settings of BdbTools storage. Setters return this, so config can be chained the same way as BerkeleyDB configs.
+ */
+public class BdbConfig {
+    /**
+     * How Confirmation records are laid out in DB
+     */
+    public enum Format {
+        /** Reflective DPL entities of four Strings, the original format */
+        DPL,
+        /** Hand-packed binary records: BCD phone, short code, packed time, raw 20-byte hash. 3-4 times smaller */
+        COMPACT
+    }
+
+    private Format format = Format.DPL;
+    private Durability pendingDurability = Durability.COMMIT_WRITE_NO_SYNC;
+    private Durability confirmedDurability = Durability.COMMIT_SYNC;
+    private long flushIntervalMs = 1000;
+    private long flushBytes = 1024*1024;
+    private long cacheBytes = 0;
+    private boolean sharedCache = false;
+    private long logFileMaxBytes = 0;
+    private int cleanerThreads = 0;
+    private int lookupCacheEntries = 0;
+    private long hashFilterEntries = 0;
+    private int pendingTtlHours = 24;
+    private int codeValidityMinutes = 0;
+    private int sweepRate = 1000;
+    private HaConfig replication;
+    private boolean lazyOpen = true;
+    private boolean readOnly = false;
+    private int shards = 1;
+    private List<File> shardDirs;
+
+    /**
+     * @param format Record layout, see {@link Format}. Existing DPL data can be moved to COMPACT
+     *               with BdbTools.migrateToCompact()
+     * @return this
+     */
+    public BdbConfig setFormat(Format format) {
+        if (format==null) throw new IllegalArgumentException("format can not be null");
+        this.format = format;
+        return this;
+    }
+
+    public Format getFormat() { return format; }
+
+    /**
+     * @param durability Durability of fresh pending codes (add, addAll). Default COMMIT_WRITE_NO_SYNC:
+     *                   survives process crash, but not OS crash, until background flusher syncs the log
+     * @return this
+     */
+    public BdbConfig setPendingDurability(Durability durability) {
+        if (durability==null) throw new IllegalArgumentException("durability can not be null");
+        this.pendingDurability = durability;
+        return this;
+    }
+
+    public Durability getPendingDurability() { return pendingDurability; }
+
+    /**
+     * @param durability Durability of confirmed records (putNoTTL) and deletes. Default COMMIT_SYNC
+     * @return this
+     */
+    public BdbConfig setConfirmedDurability(Durability durability) {
+        if (durability==null) throw new IllegalArgumentException("durability can not be null");
+        this.confirmedDurability = durability;
+        return this;
+    }
+
+    public Durability getConfirmedDurability() { return confirmedDurability; }
+
+    /**
+     * @param flushIntervalMs How often background flusher syncs writes committed without sync, 0 for no periodic sync
+     * @return this
+     */
+    public BdbConfig setFlushIntervalMs(long flushIntervalMs) {
+        if (flushIntervalMs<0) throw new IllegalArgumentException("flushIntervalMs can not be negative");
+        this.flushIntervalMs = flushIntervalMs;
+        return this;
+    }
+
+    public long getFlushIntervalMs() { return flushIntervalMs; }
+
+    /**
+     * @param flushBytes Approximate amount of unsynced data, which makes flusher sync before interval is over,
+     *                   0 to sync by interval only. If both are 0, there is no flusher at all
+     * @return this
+     */
+    public BdbConfig setFlushBytes(long flushBytes) {
+        if (flushBytes<0) throw new IllegalArgumentException("flushBytes can not be negative");
+        this.flushBytes = flushBytes;
+        return this;
+    }
+
+    public long getFlushBytes() { return flushBytes; }
+
+    /**
+     * @param cacheBytes JE cache size in bytes, 0 for JE default (60% of heap)
+     * @return this
+     */
+    public BdbConfig setCacheBytes(long cacheBytes) {
+        if (cacheBytes<0) throw new IllegalArgumentException("cacheBytes can not be negative");
+        this.cacheBytes = cacheBytes;
+        return this;
+    }
+
+    public long getCacheBytes() { return cacheBytes; }
+
+    /**
+     * @param sharedCache Share one JE cache with other environments (data directories) of this JVM,
+     *                    which also open with shared cache. Namespaces of the same directory always share
+     *                    one environment and its cache. Cache size is taken from first environment
+     * @return this
+     */
+    public BdbConfig setSharedCache(boolean sharedCache) {
+        this.sharedCache = sharedCache;
+        return this;
+    }
+
+    public boolean isSharedCache() { return sharedCache; }
+
+    /**
+     * @param logFileMaxBytes Size of one JE log file, 0 for JE default (10MB)
+     * @return this
+     */
+    public BdbConfig setLogFileMaxBytes(long logFileMaxBytes) {
+        if (logFileMaxBytes<0) throw new IllegalArgumentException("logFileMaxBytes can not be negative");
+        this.logFileMaxBytes = logFileMaxBytes;
+        return this;
+    }
+
+    public long getLogFileMaxBytes() { return logFileMaxBytes; }
+
+    /**
+     * @param cleanerThreads Number of JE log cleaner threads, 0 for JE default (1)
+     * @return this
+     */
+    public BdbConfig setCleanerThreads(int cleanerThreads) {
+        if (cleanerThreads<0) throw new IllegalArgumentException("cleanerThreads can not be negative");
+        this.cleanerThreads = cleanerThreads;
+        return this;
+    }
+
+    public int getCleanerThreads() { return cleanerThreads; }
+
+    /**
+     * @param lookupCacheEntries Size of in-memory lookup cache (see BdbTools.enableCache()), 0 for no cache
+     * @return this
+     */
+    public BdbConfig setLookupCacheEntries(int lookupCacheEntries) {
+        if (lookupCacheEntries<0) throw new IllegalArgumentException("lookupCacheEntries can not be negative");
+        this.lookupCacheEntries = lookupCacheEntries;
+        return this;
+    }
+
+    public int getLookupCacheEntries() { return lookupCacheEntries; }
+
+    /**
+     * Turns on in-memory Bloom filter of hashes, so getByHash() of unknown hash does not touch JE.
+     * Filter takes about 10 bits per hash (1.2MB per million), is saved on close and rebuilt by scan
+     * of hash index, when it could miss something, e.g. after crash. More hashes then expected only
+     * make filter less selective, never wrong.
+     *
+     * @param hashFilterEntries Expected number of confirmed records, 0 for no filter
+     * @return this
+     */
+    public BdbConfig setHashFilterEntries(long hashFilterEntries) {
+        if (hashFilterEntries<0) throw new IllegalArgumentException("hashFilterEntries can not be negative");
+        this.hashFilterEntries = hashFilterEntries;
+        return this;
+    }
+
+    public long getHashFilterEntries() { return hashFilterEntries; }
+
+    /**
+     * @param hours JE TTL of pending records, after which JE drops them by itself. JE counts it from
+     *              the next whole hour, so record lives up to one hour longer. Default 24
+     * @return this
+     */
+    public BdbConfig setPendingTtlHours(int hours) {
+        if (hours<1) throw new IllegalArgumentException("hours must be positive");
+        this.pendingTtlHours = hours;
+        return this;
+    }
+
+    public int getPendingTtlHours() { return pendingTtlHours; }
+
+    /**
+     * Minute-exact validity of sent code on top of TTL: older code does not confirm, and expiry sweeper
+     * deletes such records in background, see setSweepRate(). Records written before this version have
+     * no send time, so for them only TTL counts
+     *
+     * @param minutes How long code can be confirmed after it was sent, 0 for TTL only (default)
+     * @return this
+     */
+    public BdbConfig setCodeValidityMinutes(int minutes) {
+        if (minutes<0) throw new IllegalArgumentException("minutes can not be negative");
+        this.codeValidityMinutes = minutes;
+        return this;
+    }
+
+    public int getCodeValidityMinutes() { return codeValidityMinutes; }
+
+    /**
+     * @param recordsPerSecond Max records expiry sweeper looks at per second, confirmed ones included, 0 for no
+     *                         background sweeper (BdbTools.sweep() still works). Default 1000
+     * @return this
+     */
+    public BdbConfig setSweepRate(int recordsPerSecond) {
+        if (recordsPerSecond<0) throw new IllegalArgumentException("recordsPerSecond can not be negative");
+        this.sweepRate = recordsPerSecond;
+        return this;
+    }
+
+    public int getSweepRate() { return sweepRate; }
+
+    /**
+     * Opens environment as node of JE High Availability group, see HaConfig. Replicated mode works
+     * with single shard only, lookup cache and hash filter are off there, as they see only local writes
+     *
+     * @param replication Node settings, null for plain local environment (default)
+     * @return this
+     */
+    public BdbConfig setReplication(HaConfig replication) {
+        this.replication = replication;
+        return this;
+    }
+
+    public HaConfig getReplication() { return replication; }
+
+    /**
+     * Lazy BdbTools opens environment and store at first use, not in constructor, so process, which
+     * never touches the store, never pays for JE recovery. Expiry sweeper starts together with the store.
+     * Replicated environment is always opened
+     * at once, as node must join its group to take part in elections and acks
+     *
+     * @param lazyOpen false to open in constructor. Default true
+     * @return this
+     */
+    public BdbConfig setLazyOpen(boolean lazyOpen) {
+        this.lazyOpen = lazyOpen;
+        return this;
+    }
+
+    public boolean isLazyOpen() { return lazyOpen; }
+
+    /**
+     * Read-only environment is for lookup-only processes: no log writes, no cleaner, no flusher and
+     * no expiry sweeper. It may be opened next to one writing process and sees data as of its open.
+     * Environment and store must exist. Writes throw UnsupportedOperationException, isMaster() is false
+     *
+     * @param readOnly true to open environment read-only. Default false
+     * @return this
+     */
+    public BdbConfig setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+        return this;
+    }
+
+    public boolean isReadOnly() { return readOnly; }
+
+    boolean needsFlusher() {
+        boolean sync = pendingDurability.getLocalSync()==Durability.SyncPolicy.SYNC &&
+            confirmedDurability.getLocalSync()==Durability.SyncPolicy.SYNC;
+        return !sync && !readOnly && (flushIntervalMs>0 || flushBytes>0);
+    }
+
+    /**
+     * @param shards Number of environments to spread phones over, in subdirectories shard-0, shard-1...
+     *               of data directory. Must stay the same for existing data. Default 1, no sharding
+     * @return this
+     */
+    public BdbConfig setShards(int shards) {
+        if (shards<1 || shards>256) throw new IllegalArgumentException("shards must be in 1..256");
+        this.shards = shards;
+        this.shardDirs = null;
+        return this;
+    }
+
+    /**
+     * @param dirs Explicit directories of shard environments, one per disk for example. Data directory
+     *             given to BdbTools is ignored then. Order must stay the same for existing data
+     * @return this
+     */
+    public BdbConfig setShardDirs(File... dirs) {
+        if (dirs.length<1 || dirs.length>256) throw new IllegalArgumentException("shard count must be in 1..256");
+        this.shards = dirs.length;
+        this.shardDirs = new ArrayList<>(Arrays.asList(dirs));
+        return this;
+    }
+
+    public int getShards() { return shards; }
+
+    List<File> shardDirs(File dataDir) {
+        if (shardDirs!=null) return shardDirs;
+        if (shards==1) return Arrays.asList(dataDir);
+        List<File> dirs = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) dirs.add(new File(dataDir, "shard-" + i));
+        return dirs;
+    }
+}
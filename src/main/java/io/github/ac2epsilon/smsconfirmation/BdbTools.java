@@ -1,23 +1,54 @@
 package io.github.ac2epsilon.smsconfirmation;
 
 import com.sleepycat.je.*;
+import com.sleepycat.je.rep.CommitPointConsistencyPolicy;
 import com.sleepycat.persist.*;
 import com.sleepycat.je.DatabaseException;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Created by ac2 on 23.01.17.
  */
 public class BdbTools {
-    EnvironmentConfig envCfg;
-    StoreConfig storeCfg;
-    WriteOptions wo;
-    Environment env;
-    EntityStore store;
-    PrimaryIndex<String,Confirmation> idx;
-    SecondaryIndex<String, String, Confirmation> hashIdx;
+    final String namespace;
+    final BdbConfig.Format format;
+    /** TTL of pending records, shared by all writers, so never changed after construction */
+    private final WriteOptions pendingWo;
+    private static final WriteOptions NO_TTL = new WriteOptions().setTTL(0).setUpdateTTL(true);
+    private final long validityMillis; // 0 for TTL only
+    private final boolean replicated;
+    private final boolean readOnly;
+    private final BdbConfig config;
+    private final List<File> dirs;
+    volatile Shard[] shards; // single one, unless BdbConfig asks for sharding. Null until open
+    TransactionConfig pendingTxn;
+    TransactionConfig confirmedTxn;
+    private volatile boolean closed;
+    volatile ConfirmationCache cache; // null while cache is off
+    private final String filterKey; // of hash filters in SharedEnvironment
+    private final LongAdder filterRejects = new LongAdder();
+    private ExpirySweeper sweeper;
+    private final Object sweepLock = new Object();
+    private int sweepShard;    // where sweep() goes on, under sweepLock
+    private String sweepAfter; // last phone seen in sweepShard, null at its start
+    final LongAdder swept = new LongAdder();
+    final LongAdder sweptBytes = new LongAdder();
+    final LongAdder sweepPasses = new LongAdder();
 
     /**
      * Constructs BerkeleyDB objects to store Confirmation entities
@@ -25,23 +56,153 @@ public class BdbTools {
      * @param namespace Something to divide DB on "namespaces", company name to serve several parties
      */
     public BdbTools(String namespace) {
-        envCfg = new EnvironmentConfig();
-        envCfg.setAllowCreate(true);
-        envCfg.setTransactional(true);
+        this(namespace, new File("./dbEnv"));
+    }
 
-        storeCfg = new StoreConfig();
-        storeCfg.setAllowCreate(true);
-        storeCfg.setTransactional(true);
+    /**
+     * Constructs BerkeleyDB objects to store Confirmation entities in given directory
+     *
+     * @param namespace Something to divide DB on "namespaces", company name to serve several parties
+     * @param dataDir Directory of BerkeleyDB environment, created if not exists
+     */
+    public BdbTools(String namespace, File dataDir) {
+        this(namespace, dataDir, new BdbConfig());
+    }
+
+    /**
+     * Constructs BerkeleyDB objects to store Confirmation entities in given directory and format
+     *
+     * @param namespace Something to divide DB on "namespaces", company name to serve several parties
+     * @param dataDir Directory of BerkeleyDB environment, created if not exists. With sharding
+     *                shard environments are created in subdirectories, see BdbConfig.setShards()
+     * @param config Storage settings, see BdbConfig. With lazy open (default) environment is opened
+     *               with them at first use, so they should not be changed after
+     */
+    public BdbTools(String namespace, File dataDir, BdbConfig config) {
+        this.namespace = namespace;
+        this.format = config.getFormat();
+        this.filterKey = format + "#" + namespace;
+        this.config = config;
+        HaConfig ha = config.getReplication();
+        replicated = ha!=null;
+        readOnly = config.isReadOnly();
+        if (replicated && config.getShards()>1) throw new IllegalArgumentException("Replication works with single shard only");
+        if (replicated && readOnly) throw new IllegalArgumentException("Replica is read-only by itself, use plain replication");
+        pendingTxn = new TransactionConfig().setDurability(config.getPendingDurability());
+        confirmedTxn = new TransactionConfig().setDurability(config.getConfirmedDurability());
+        if (replicated) confirmedTxn.setConsistencyPolicy(ha.getCheckConsistency()); // confirm() reads in it
+        if (config.getLookupCacheEntries()>0 && !replicated) enableCache(config.getLookupCacheEntries());
+
+        pendingWo = new WriteOptions().setTTL(config.getPendingTtlHours(), TimeUnit.HOURS).setUpdateTTL(true);
+        validityMillis = TimeUnit.MINUTES.toMillis(config.getCodeValidityMinutes());
+        dirs = config.shardDirs(dataDir);
+        if (config.isLazyOpen() && !replicated) return;
+        try {
+            open();
+        } catch (DatabaseException e) { // tried again at first use
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return Open shards, opened here at first call
+     */
+    private Shard[] shards() {
+        Shard[] opened = shards;
+        return opened!=null ? opened : open();
+    }
+
+    /**
+     * Opens environments and stores of all shards, and starts expiry sweeper. Nothing stays open if it fails
+     */
+    private synchronized Shard[] open() {
+        if (shards!=null) return shards;
+        if (closed) throw new IllegalStateException("BdbTools of " + namespace + " is closed");
+        Shard[] opened = new Shard[dirs.size()];
+        int n = 0;
+        try {
+            for (; n < opened.length; n++) opened[n] = Shard.open(n, opened.length, dirs.get(n), namespace, config);
+            if (cache!=null) refuseSharedCache(opened);
+        } catch (RuntimeException e) {
+            while (n>0) opened[--n].close(namespace, format);
+            throw e;
+        }
+        shards = opened;
+        if (validityMillis>0 && config.getSweepRate()>0 && !readOnly)
+            sweeper = new ExpirySweeper(this, config.getSweepRate(), Math.min(validityMillis, TimeUnit.MINUTES.toMillis(1)));
+        return opened;
+    }
+
+    private void checkWritable() {
+        if (readOnly) throw new UnsupportedOperationException("Store " + namespace + " is open read-only");
+    }
 
-        wo = new WriteOptions();
+    private Shard shardOf(String key) {
+        Shard[] opened = shards();
+        return opened[Shard.of(key, opened.length)];
+    }
+
+    private static boolean isSync(Durability durability) {
+        return durability.getLocalSync()==Durability.SyncPolicy.SYNC;
+    }
+
+    /**
+     * Commits transaction and tells flusher about written data, if commit itself did not sync the log
+     */
+    private static void commit(Shard shard, Transaction txn, TransactionConfig txnCfg, long bytes) {
+        txn.commit();
+        LogFlusher f = shard.shared.flusher();
+        if (f==null) return;
+        if (isSync(txnCfg.getDurability())) f.synced();
+        else f.written(bytes);
+    }
+
+    /**
+     * @return Rough size of record in JE log, good enough to decide when to sync
+     */
+    private static long estimateSize(Confirmation c) {
+        return 64 + c.id.length() + (c.code!=null ? c.code.length() : 0) +
+            (c.issued!=null ? c.issued.length() : 0) + (c.hash!=null ? c.hash.length() : 0);
+    }
+
+    /**
+     * Writes record into its shard in own transaction, then its route, if sharded.
+     * Holds phone lock, so never lands in the middle of confirm()
+     */
+    private void put(Confirmation confirmation, WriteOptions options, TransactionConfig txnCfg) {
+        checkWritable();
+        Shard shard = shardOf(confirmation.id);
+        ReentrantLock lock = shard.locks.of(confirmation.id);
+        lock.lock();
+        try {
+            HashFilter filter = confirmation.hash!=null ? remember(shard, confirmation.hash) : null;
+            Transaction txn = shard.env.beginTransaction(null, txnCfg);
+            try {
+                shard.store.put(txn, confirmation, options);
+                commit(shard, txn, txnCfg, estimateSize(confirmation));
+                confirmation.commitToken = txn.getCommitToken();
+                txn = null;
+            } finally {
+                if (txn!=null) txn.abort();
+                invalidate(confirmation.id);
+            }
+            if (confirmation.hash!=null && filter==null) remember(shard, confirmation.hash);
+            if (confirmation.hash!=null && shards().length>1) route(confirmation, shard.index, txnCfg);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void route(Confirmation confirmation, int index, TransactionConfig txnCfg) {
+        Shard routeShard = shardOf(confirmation.hash);
+        Transaction txn = routeShard.env.beginTransaction(null, txnCfg);
         try {
-            File dataDir = new File("./dbEnv");
-            if (!dataDir.exists()) dataDir.mkdir();
-            env = new Environment(dataDir, envCfg);
-            store = new EntityStore(env, namespace, storeCfg);
-            idx = store.getPrimaryIndex(String.class, Confirmation.class);
-            hashIdx = store.getSecondaryIndex(idx, String.class, "keyByHash");
-        } catch (DatabaseException dbe) { dbe.printStackTrace(); }
+            routeShard.putRoute(txn, confirmation.hash, index, confirmation.expires);
+            commit(routeShard, txn, txnCfg, 48);
+            txn = null;
+        } finally {
+            if (txn!=null) txn.abort();
+        }
     }
 
     /**
@@ -55,17 +216,161 @@ public class BdbTools {
      */
     public Confirmation add(String phone, String code) {
         Confirmation confirmation = new Confirmation(phone, code);
-        idx.put(null, confirmation, Put.OVERWRITE, wo.setTTL(1)); /* one day */
+        put(confirmation, pendingWo, pendingTxn);
         return confirmation;
     }
 
+    /**
+     * Adds or overwrites several Confirmation entities in one explicit transaction,
+     * so whole group costs one log sync instead of one per record. With sharding there is
+     * one transaction per shard, so group is atomic only within a shard
+     *
+     * @param confirmations New Confirmation entities, each with TTL of pending record, as in add()
+     */
+    public void addAll(List<Confirmation> confirmations) {
+        if (confirmations.isEmpty()) return;
+        checkWritable();
+        Shard[] shards = shards();
+        if (shards.length==1) {
+            addAll(shards[0], confirmations);
+            return;
+        }
+        List<List<Confirmation>> groups = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) groups.add(new ArrayList<>());
+        for (Confirmation confirmation : confirmations) groups.get(Shard.of(confirmation.id, shards.length)).add(confirmation);
+        for (int i = 0; i < shards.length; i++) {
+            if (groups.get(i).isEmpty()) continue;
+            addAll(shards[i], groups.get(i));
+            for (Confirmation confirmation : groups.get(i))
+                if (confirmation.hash!=null) route(confirmation, i, pendingTxn);
+        }
+    }
+
+    private void addAll(Shard shard, List<Confirmation> confirmations) {
+        HashFilter filter = null;
+        for (Confirmation confirmation : confirmations)
+            if (confirmation.hash!=null) filter = remember(shard, confirmation.hash);
+        Transaction txn = shard.env.beginTransaction(null, pendingTxn);
+        try {
+            long bytes = 0;
+            for (Confirmation confirmation : confirmations) {
+                shard.store.put(txn, confirmation, pendingWo);
+                bytes += estimateSize(confirmation);
+            }
+            commit(shard, txn, pendingTxn, bytes);
+            txn = null;
+        } finally {
+            if (txn!=null) txn.abort();
+            for (Confirmation confirmation : confirmations) invalidate(confirmation.id);
+        }
+        if (filter==null)
+            for (Confirmation confirmation : confirmations)
+                if (confirmation.hash!=null) remember(shard, confirmation.hash);
+    }
+
+    /**
+     * Adds hash to Bloom filter of shard store, if there is one. Writers call it before commit, so
+     * ready filter never misses committed hash, and once more after commit, if there was no filter,
+     * as it may have been created meanwhile, with scan already past the record
+     *
+     * @return Filter, or null if there is none
+     */
+    private HashFilter remember(Shard shard, String hash) {
+        HashFilter filter = shard.shared.hashFilter(filterKey);
+        if (filter!=null) filter.add(hash);
+        return filter;
+    }
+
     /**
      * Drops TTL flag from Confirmation entity in DB
      *
      * @param confirmation Confirmation object will be persisted removing TTL
      */
     public void putNoTTL(Confirmation confirmation) {
-        idx.put(null, confirmation, Put.OVERWRITE, wo.setTTL(0).setUpdateTTL(true));
+        put(confirmation, NO_TTL, confirmedTxn);
+    }
+
+    /**
+     * Checks code and marks record confirmed as one atomic step: record is read with write lock (RMW)
+     * inside transaction, under phone lock, so concurrent send() of the same phone either comes before
+     * and makes code fail, or after and starts new confirmation. Repeated checks of confirmed record
+     * give back its hash, which is issued only once. With cache on, wrong codes and repeated checks of
+     * cached record are answered from cache, only pending to confirmed step takes lock and reads DB.
+     *
+     * @param phone Phone number
+     * @param code Code, given by user
+     * @return Confirmed record with hash, or null if there is no record, code does not match or is
+     *         past validity window, see BdbConfig.setCodeValidityMinutes()
+     * @throws com.sleepycat.je.rep.ReplicaWriteException On replica, when right code is to be confirmed,
+     *         which only master can do
+     * @throws UnsupportedOperationException The same on read-only store
+     */
+    public Confirmation confirm(String phone, String code) {
+        return confirm(phone, code, null);
+    }
+
+    /**
+     * Same as confirm(String, String), but on replica reads record only after commit point of given
+     * write is replayed here, so code stored by master is always seen, whatever check consistency is
+     *
+     * @param phone Phone number
+     * @param code Code, given by user
+     * @param after Commit token of add(), see Confirmation.getCommitToken(), null for check consistency
+     *              of HaConfig
+     * @return Confirmed record, see confirm(String, String)
+     * @throws com.sleepycat.je.rep.ReplicaConsistencyException If replica does not reach commit point in
+     *         timeout of check consistency
+     */
+    public Confirmation confirm(String phone, String code, CommitToken after) {
+        if (phone==null || phone.length()==0) {
+            throw new IllegalArgumentException("You can not ask for null userId");
+        }
+        TransactionConfig txnCfg = confirmedTxn;
+        if (after!=null && replicated) {
+            long timeout = confirmedTxn.getConsistencyPolicy().getTimeout(TimeUnit.MILLISECONDS);
+            txnCfg = confirmedTxn.clone().setConsistencyPolicy(new CommitPointConsistencyPolicy(after, timeout, TimeUnit.MILLISECONDS));
+        }
+        ConfirmationCache c = cache;
+        if (c!=null) { // every write invalidates phone, so cached record is as good as locked read
+            Confirmation cached = c.get(phone);
+            if (cached!=null) {
+                if (!cached.code.equals(code)) return null;
+                if (cached.hash!=null) return cached;
+            }
+        }
+        Shard shard = shardOf(phone);
+        ReentrantLock lock = shard.locks.of(phone);
+        lock.lock();
+        try {
+            Confirmation saved;
+            HashFilter filter;
+            LockMode mode = isMaster() ? LockMode.RMW : null; // replica takes no write locks
+            long stamp = c!=null ? c.stamp() : 0;
+            Transaction txn = shard.env.beginTransaction(null, txnCfg);
+            try {
+                saved = shard.store.get(txn, phone, mode);
+                if (saved==null) return null;
+                if (c!=null) c.put(saved, stamp); // copy, so setTokenHash() below does not touch it
+                if (!saved.code.equals(code)) return null;
+                if (saved.hash!=null) return saved;
+                if (isExpired(saved, System.currentTimeMillis())) return null;
+                checkWritable();
+                saved.setTokenHash();
+                filter = remember(shard, saved.hash);
+                shard.store.put(txn, saved, NO_TTL);
+                commit(shard, txn, confirmedTxn, estimateSize(saved));
+                txn = null;
+            } finally {
+                if (txn!=null) txn.abort();
+            }
+            if (filter==null) remember(shard, saved.hash);
+            invalidate(phone);
+            if (c!=null) c.put(saved, c.stamp()); // phone lock keeps other writes of this object out
+            if (shards().length>1) route(saved, shard.index, confirmedTxn);
+            return saved;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -78,7 +383,14 @@ public class BdbTools {
         if (userId==null || userId.length()==0) {
             throw new IllegalArgumentException("You can not ask for null userId");
         }
-        return idx.get(userId);
+        ConfirmationCache c = cache;
+        if (c==null) return shardOf(userId).store.get(null, userId, null);
+        Confirmation cached = c.get(userId);
+        if (cached!=null) return cached;
+        long stamp = c.stamp();
+        Confirmation found = shardOf(userId).store.get(null, userId, null);
+        if (found!=null) c.put(found, stamp);
+        return found;
     }
 
     /**
@@ -91,15 +403,348 @@ public class BdbTools {
         if (hash==null || hash.length()==0) {
             throw new IllegalArgumentException("You can not ask for null hash");
         }
-        return hashIdx.get(hash);
+        ConfirmationCache c = cache;
+        if (c==null) return findByHash(hash);
+        Confirmation cached = c.getByHash(hash);
+        if (cached!=null) return cached;
+        long stamp = c.stamp();
+        Confirmation found = findByHash(hash);
+        if (found!=null) c.put(found, stamp);
+        return found;
+    }
+
+    /**
+     * Looks hash up in shard, given by routing index, and in all shards, if route is missing or stale
+     */
+    private Confirmation findByHash(String hash) {
+        Shard[] shards = shards();
+        boolean any = false;
+        for (Shard shard : shards) any |= mayHave(shard, hash);
+        if (!any) { // no route lookup either
+            filterRejects.increment();
+            return null;
+        }
+        if (shards.length==1) return shards[0].store.getByHash(null, hash, null);
+        int hint = shardOf(hash).getRoute(hash);
+        if (hint>=0 && hint<shards.length && mayHave(shards[hint], hash)) {
+            Confirmation found = shards[hint].store.getByHash(null, hash, null);
+            if (found!=null) return found;
+        }
+        for (Shard shard : shards) {
+            if (shard.index==hint || !mayHave(shard, hash)) continue;
+            Confirmation found = shard.store.getByHash(null, hash, null);
+            if (found!=null) return found;
+        }
+        return null;
+    }
+
+    /**
+     * @return false if Bloom filter of shard surely has no such hash
+     */
+    private boolean mayHave(Shard shard, String hash) {
+        HashFilter filter = shard.shared.hashFilter(filterKey);
+        return filter==null || filter.mightContain(hash);
+    }
+
+    /**
+     * Turns on in-memory cache in front of get(), getByHash() and confirm(), so repeated lookups and
+     * checks of hot records cost a map lookup instead of B-tree descent and unmarshalling. Cache follows TTL of records and
+     * is invalidated by every write through this object. Calling it again replaces cache with empty one.
+     * Cache belongs to this object and does not see writes of other BdbTools, though they share the store
+     * when opened on the same directory and namespace. So it is refused when store is shared already, and
+     * no other BdbTools of the store should be opened while cache is on.
+     *
+     * @param maxEntries Size limit, least recently used entries are evicted above it
+     * @throws IllegalStateException In replicated mode, where records are changed by writes of master,
+     *         or when other BdbTools of this JVM have the store open
+     */
+    public void enableCache(int maxEntries) {
+        if (replicated) throw new IllegalStateException("Lookup cache does not see writes of other nodes");
+        Shard[] opened = shards; // lazy store is checked when it is opened
+        if (opened!=null) refuseSharedCache(opened);
+        cache = new ConfirmationCache(maxEntries);
+    }
+
+    private void refuseSharedCache(Shard[] opened) {
+        for (Shard shard : opened)
+            if (shard.shared.storeUsers(namespace, format)>1)
+                throw new IllegalStateException("Store " + namespace + " is shared with other BdbTools, lookup cache would miss their writes");
+    }
+
+    /**
+     * Turns cache off and drops its content
+     */
+    public void disableCache() {
+        cache = null;
+    }
+
+    /**
+     * @return Hit, miss and eviction counters, or null if cache is off
+     */
+    public CacheStats getCacheStats() {
+        ConfirmationCache c = cache;
+        return c==null ? null : c.stats();
+    }
+
+    /**
+     * Adds JE statistics, summed over shards, and lookup cache counters to metrics map.
+     * Uses fast statistics, which do not block writers
+     *
+     * @param m Metrics map, see SmsMetrics.snapshot()
+     */
+    synchronized void addEnvironmentStats(Map<String, Number> m) {
+        if (closed || shards==null) return;
+        StatsConfig fast = new StatsConfig().setFast(true);
+        long cacheMiss = 0, binFetchMiss = 0, cacheBytes = 0, dataBytes = 0, fsyncs = 0, logFsyncs = 0;
+        long fsyncTimeMs = 0, logSize = 0, deletionBacklog = 0, checkpoints = 0;
+        int minUtilization = 100;
+        for (Shard shard : shards) {
+            EnvironmentStats st = shard.env.getStats(fast);
+            cacheMiss += st.getNCacheMiss();
+            binFetchMiss += st.getNBINsFetchMiss();
+            cacheBytes += st.getCacheTotalBytes();
+            dataBytes += st.getDataBytes();
+            fsyncs += st.getNFSyncs();
+            logFsyncs += st.getNLogFSyncs();
+            fsyncTimeMs += st.getFSyncTime();
+            logSize += st.getTotalLogSize();
+            deletionBacklog += st.getFileDeletionBacklog();
+            minUtilization = Math.min(minUtilization, st.getCurrentMinUtilization());
+            checkpoints += st.getNCheckpoints();
+        }
+        m.put("je_cache_miss_total", cacheMiss);
+        m.put("je_bin_fetch_miss_total", binFetchMiss);
+        m.put("je_cache_bytes", cacheBytes);
+        m.put("je_data_bytes", dataBytes);
+        m.put("je_fsyncs_total", fsyncs);
+        m.put("je_log_fsyncs_total", logFsyncs);
+        m.put("je_fsync_time_ms_total", fsyncTimeMs);
+        m.put("je_log_size_bytes", logSize);
+        m.put("je_file_deletion_backlog", deletionBacklog);
+        m.put("je_log_min_utilization_percent", minUtilization);
+        m.put("je_checkpoints_total", checkpoints);
+        CacheStats c = getCacheStats();
+        if (c!=null) {
+            m.put("lookup_cache_hits_total", c.getHits());
+            m.put("lookup_cache_misses_total", c.getMisses());
+            m.put("lookup_cache_size", c.getSize());
+        }
+        HashFilter filter = shards[0].shared.hashFilter(filterKey);
+        if (filter!=null) {
+            m.put("hash_filter_rejects_total", filterRejects.sum());
+            m.put("hash_filter_bits", filter.bits()*shards.length);
+        }
+        if (replicated) m.put("ha_master", isMaster() ? 1 : 0);
+        if (validityMillis>0) {
+            m.put("sweep_purged_total", swept.sum());
+            m.put("sweep_reclaimed_bytes_total", sweptBytes.sum());
+            m.put("sweep_passes_total", sweepPasses.sum());
+        }
+    }
+
+    /**
+     * @return true if writes can go here: environment is not read-only and not replicated, or is master of its group now.
+     *         On replica send() and first successful check must go to master, see BdbConfig.setReplication()
+     */
+    public boolean isMaster() {
+        return !readOnly && (!replicated || shards()[0].shared.isMaster());
+    }
+
+    /**
+     * @return true if store is open read-only, see BdbConfig.setReadOnly()
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * @return Node name of current master of replication group, null while it is not known or not replicated
+     */
+    public String getMasterName() {
+        return replicated ? shards()[0].shared.masterName() : null;
+    }
+
+    /**
+     * @return True if pending code was sent longer then validity window ago
+     */
+    private boolean isExpired(Confirmation c, long now) {
+        return validityMillis>0 && c.hash==null && c.created>0 && now - c.created>=validityMillis;
+    }
+
+    /**
+     * One step of incremental expiry sweep: reads next chunk of records, from where previous step
+     * stopped, and deletes pending ones past validity window. Chunk is counted in records looked at,
+     * confirmed included, so step costs the same however few pending records are left among them. Goes over shards in turn and starts again
+     * from the first one, when the last is done. Every delete is its own short transaction under phone
+     * lock, which checks record once more, so code sent meanwhile is never lost. Does nothing without
+     * validity window, as then JE TTL is the only expiration. Background sweeper calls it by itself,
+     * see BdbConfig.setSweepRate()
+     *
+     * @param maxRecords Max records to look at, pending or not
+     * @return Number of purged records
+     */
+    public int sweep(int maxRecords) {
+        if (validityMillis==0 || maxRecords<1 || closed || !isMaster()) return 0; // replica gets deletes of master
+        Shard[] shards = shards(); // opened outside of sweepLock, which close() takes after monitor of this
+        synchronized (sweepLock) {
+            if (closed) return 0;
+            Shard shard = shards[sweepShard];
+            List<Confirmation> chunk = shard.store.range(sweepAfter, false, null, maxRecords, ConfirmationFilter.ALL);
+            if (chunk.size()<maxRecords) {
+                sweepAfter = null;
+                if (++sweepShard==shards.length) {
+                    sweepShard = 0;
+                    sweepPasses.increment();
+                }
+            } else sweepAfter = chunk.get(chunk.size() - 1).id;
+            long now = System.currentTimeMillis();
+            int purged = 0;
+            for (Confirmation c : chunk) if (isExpired(c, now) && purge(shard, c, now)) purged++;
+            return purged;
+        }
+    }
+
+    private boolean purge(Shard shard, Confirmation seen, long now) {
+        ReentrantLock lock = shard.locks.of(seen.id);
+        lock.lock();
+        try {
+            long bytes;
+            Transaction txn = shard.env.beginTransaction(null, pendingTxn);
+            try {
+                Confirmation saved = shard.store.get(txn, seen.id, LockMode.RMW);
+                if (saved==null || saved.created!=seen.created || !isExpired(saved, now)) return false;
+                shard.store.delete(txn, seen.id);
+                bytes = estimateSize(saved);
+                commit(shard, txn, pendingTxn, 64 + seen.id.length());
+                txn = null;
+            } finally {
+                if (txn!=null) txn.abort();
+                invalidate(seen.id);
+            }
+            swept.increment();
+            sweptBytes.add(bytes);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void invalidate(String userId) {
+        ConfirmationCache c = cache;
+        if (c!=null) c.invalidate(userId);
+    }
+
+    /**
+     * Opens outbox databases of namespace in every shard, see Outbox. Second call does nothing
+     */
+    void openOutbox() {
+        checkWritable();
+        for (Shard shard : shards()) shard.openOutbox(namespace);
+    }
+
+    /**
+     * Stores new code together with its SMS in outbox, in one transaction of phone shard with
+     * durability of confirmed records, so queued SMS survives crash exactly as long as its code does
+     *
+     * @param phone Phone to send to
+     * @param code Code in the message
+     * @param text Message template source, dispatcher puts code in at delivery
+     * @return Outbox entry, due right away
+     */
+    OutboxEntry enqueue(String phone, String code, String text) {
+        Confirmation confirmation = new Confirmation(phone, code);
+        long now = System.currentTimeMillis();
+        OutboxEntry entry = new OutboxEntry(now, Outbox.nextSeq(), phone, code, text, 0, now, null);
+        Shard shard = shardOf(phone);
+        ReentrantLock lock = shard.locks.of(phone);
+        lock.lock();
+        try {
+            Transaction txn = shard.env.beginTransaction(null, confirmedTxn);
+            try {
+                shard.store.put(txn, confirmation, pendingWo);
+                Outbox.put(shard.outbox, txn, entry);
+                commit(shard, txn, confirmedTxn, estimateSize(confirmation) + 64 + text.length());
+                txn = null;
+            } finally {
+                if (txn!=null) txn.abort();
+                invalidate(phone);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return entry;
+    }
+
+    /**
+     * @param now Current time
+     * @param limit Max entries to return
+     * @param skip Sequence numbers of entries being delivered
+     * @return Due entries, earliest of every shard first
+     */
+    List<OutboxEntry> dueOutbox(long now, int limit, Set<Long> skip) {
+        List<OutboxEntry> due = new ArrayList<>();
+        for (Shard shard : shards()) Outbox.scan(shard.outbox, now, limit - due.size(), skip, due);
+        return due;
+    }
+
+    /**
+     * Removes delivered entry. Lost delete only means one more SMS after crash, so it is not synced
+     */
+    void outboxDone(OutboxEntry entry) {
+        Shard shard = shardOf(entry.phone);
+        Transaction txn = shard.env.beginTransaction(null, pendingTxn);
+        try {
+            Outbox.delete(shard.outbox, txn, entry);
+            commit(shard, txn, pendingTxn, 32);
+            txn = null;
+        } finally {
+            if (txn!=null) txn.abort();
+        }
     }
 
     /**
-     * Closes BerkekeyDB (effectivelly stopping working threads)
+     * Moves failed entry either to new due time in outbox, or to dead letters
+     *
+     * @param entry Entry as it was read
+     * @param next Entry with new due time and attempt count
+     * @param dead True to give up
      */
-    public void close() {
-        if (store!=null) store.close();
-        if (env!=null) env.close();
+    void outboxFailed(OutboxEntry entry, OutboxEntry next, boolean dead) {
+        Shard shard = shardOf(entry.phone);
+        Transaction txn = shard.env.beginTransaction(null, pendingTxn);
+        try {
+            Outbox.delete(shard.outbox, txn, entry);
+            if (dead) Outbox.putDead(shard.deadLetters, txn, next);
+            else Outbox.put(shard.outbox, txn, next);
+            commit(shard, txn, pendingTxn, 96 + next.text.length());
+            txn = null;
+        } finally {
+            if (txn!=null) txn.abort();
+        }
+    }
+
+    /**
+     * @param limit Max entries to return
+     * @return Dead letters, oldest of every shard first
+     */
+    List<OutboxEntry> deadLetters(int limit) {
+        List<OutboxEntry> dead = new ArrayList<>();
+        for (Shard shard : shards()) Outbox.scan(shard.deadLetters, Long.MAX_VALUE, limit - dead.size(), Collections.emptySet(), dead);
+        return dead;
+    }
+
+    /**
+     * Closes store of namespace and gives back shared environment. BerkeleyDB itself is closed
+     * (effectivelly stopping working threads) by the last BdbTools of data directory. Second call does nothing.
+     */
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        if (shards==null) return; // never opened
+        if (sweeper!=null) sweeper.close();
+        synchronized (sweepLock) { // lets manual sweep() finish its step
+            for (Shard shard : shards) shard.close(namespace, format);
+        }
     }
 
     /**
@@ -109,21 +754,239 @@ public class BdbTools {
      * @return Confirmation of removed record (not persisted any more)
      */
     public Confirmation delete(String userId) {
+        checkWritable();
+        Shard shard = shardOf(userId);
+        ReentrantLock lock = shard.locks.of(userId);
+        lock.lock();
+        try {
+            return delete(shard, userId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Confirmation delete(Shard shard, String userId) {
         Confirmation result = get(userId);
-        if (result!=null) idx.delete(userId);
+        if (result!=null) {
+            Transaction txn = shard.env.beginTransaction(null, confirmedTxn);
+            try {
+                shard.store.delete(txn, userId);
+                commit(shard, txn, confirmedTxn, 64 + userId.length());
+                txn = null;
+            } finally {
+                if (txn!=null) txn.abort();
+            }
+            if (result.hash!=null && shards().length>1) {
+                Shard routeShard = shardOf(result.hash);
+                txn = routeShard.env.beginTransaction(null, confirmedTxn);
+                try {
+                    routeShard.deleteRoute(txn, result.hash);
+                    commit(routeShard, txn, confirmedTxn, 48);
+                    txn = null;
+                } finally {
+                    if (txn!=null) txn.abort();
+                }
+            }
+        }
+        invalidate(userId);
         return result;
 
     }
     /**
-     * Iterates over DB and calls supplied callback function for every item
+     * Iterates over DB and calls supplied callback function for every item. With sharding
+     * shards are scanned one after another, each in phone order. Records are read in chunks,
+     * so callback may take its time, it does not hold any cursor open
      *
      * @param callback Functional snippet to call for every Confirmation in DB
      */
     public void iterate(ConfirmationLambda callback) {
-        EntityCursor<Confirmation> pi_cursor = idx.entities();
+        stream(ConfirmationFilter.ALL).forEach(callback::run);
+    }
+
+    /**
+     * Lazy stream of all records, see {@link #stream(String, String, ConfirmationFilter)}
+     *
+     * @param filter Records to give out
+     * @return Sequential stream, call parallel() to scan with several threads
+     */
+    public Stream<Confirmation> stream(ConfirmationFilter filter) {
+        return stream(null, null, filter);
+    }
+
+    /**
+     * Lazy stream of records in phone range. Store is read in chunks of a few hundred records, every one
+     * with its own short cursor, so slow consumers block no writers, but stream is not a point-in-time
+     * snapshot. Parallel stream splits range by phone prefixes and scans shards at the same time.
+     * Records come in phone order within a shard; in COMPACT format non-digit phones sort after digit ones.
+     *
+     * @param from First phone, inclusive, null for the very first one
+     * @param to Phone to stop before, null for the very last one
+     * @param filter Records to give out
+     * @return Sequential stream, call parallel() to scan with several threads
+     */
+    public Stream<Confirmation> stream(String from, String to, ConfirmationFilter filter) {
+        return concat(0, shards().length, from, to, filter);
+    }
+
+    private Stream<Confirmation> concat(int lo, int hi, String from, String to, ConfirmationFilter filter) {
+        if (hi - lo==1) return StreamSupport.stream(new RangeSpliterator(shards()[lo].store, from, to, filter), false);
+        int mid = (lo + hi)>>>1; // balanced, so parallel stream splits shards evenly
+        return Stream.concat(concat(lo, mid, from, to, filter), concat(mid, hi, from, to, filter));
+    }
+
+    /**
+     * One page of records in phone order, for keyset pagination: pass phone of last record of
+     * previous page to get the next one. Works across shards, unlike stream()
+     *
+     * @param afterPhone Phone of last record already seen, null for first page
+     * @param limit Max records on page
+     * @param filter Records to give out
+     * @return Up to limit records, fewer only on last page
+     */
+    public List<Confirmation> page(String afterPhone, int limit, ConfirmationFilter filter) {
+        if (limit<1) throw new IllegalArgumentException("limit must be positive");
+        Shard[] shards = shards();
+        List<Confirmation> all = new ArrayList<>();
+        for (Shard shard : shards) all.addAll(shard.store.range(afterPhone, afterPhone==null, null, limit, filter));
+        if (shards.length>1) all.sort(keyOrder(format));
+        return all.size()>limit ? new ArrayList<>(all.subList(0, limit)) : all;
+    }
+
+    /**
+     * @return Order of records in store of given format, the same as order of their keys
+     */
+    static Comparator<Confirmation> keyOrder(BdbConfig.Format format) {
+        if (format==BdbConfig.Format.COMPACT)
+            return (a, b) -> CompactBinding.compareKeys(new DatabaseEntry(CompactBinding.phoneToKey(a.id)), CompactBinding.phoneToKey(b.id));
+        return (a, b) -> a.id.compareTo(b.id);
+    }
+
+    /**
+     * Writes records as NDJSON file, one JSON object per line with fields phone, code, issued, hash
+     * and expires (epoch millis, 0 for permanent). File is forced to disk before return
+     *
+     * @param file File to create or overwrite
+     * @param filter Records to export
+     * @return Number of exported records
+     * @throws IOException If file can not be written
+     */
+    public long exportNdjson(Path file, ConfirmationFilter filter) throws IOException {
+        try (NdjsonWriter out = new NdjsonWriter(file)) {
+            for (Iterator<Confirmation> it = stream(filter).iterator(); it.hasNext(); ) out.write(it.next());
+            return out.count();
+        }
+    }
+
+    /**
+     * Writes records as compact binary dump, several times faster to write and to read back than NDJSON,
+     * see importFile(). File is forced to disk before return
+     *
+     * @param file File to create or overwrite
+     * @param filter Records to export
+     * @return Number of exported records
+     * @throws IOException If file can not be written
+     */
+    public long exportDump(Path file, ConfirmationFilter filter) throws IOException {
+        try (DumpWriter out = new DumpWriter(file)) {
+            for (Iterator<Confirmation> it = stream(filter).iterator(); it.hasNext(); ) out.write(it.next());
+            return out.count();
+        }
+    }
+
+    /**
+     * Loads file of exportNdjson() or exportDump() into fresh store of namespace, for seeding or restore.
+     * Records go in key order in big transactions without fsync, hash index is built once after load
+     * and everything is flushed to disk before return. Pending records keep their remaining TTL, already
+     * expired ones are skipped, confirmed ones stay permanent. Environment must not be open by anyone else,
+     * and store of namespace must be empty. Failed import leaves partially loaded store behind.
+     *
+     * @param namespace Namespace to load
+     * @param dataDir Directory of BerkeleyDB environment, created if not exists
+     * @param config Storage settings, format and shards of the future BdbTools
+     * @param file NDJSON or binary dump, told apart by content
+     * @return Number of loaded records
+     * @throws IOException If file can not be read or is broken
+     * @throws IllegalStateException If environment is in use or store of namespace is not empty
+     */
+    public static long importFile(String namespace, File dataDir, BdbConfig config, Path file) throws IOException {
+        return BulkLoader.load(namespace, dataDir, config, file);
+    }
+
+    /**
+     * TTL, which makes JE expire new record at the same hour as given one. WriteOptions.setExpirationTime()
+     * is not used, as it rounds up once more and moves the hour, or even the day, forward on every copy
+     *
+     * @param expires Expiration time of source record, JE keeps it in whole hours
+     * @param now Current time
+     * @return Options with TTL of at least one hour, updating TTL of existing record
+     */
+    static WriteOptions expiringAt(long expires, long now) {
+        long hour = TimeUnit.HOURS.toMillis(1);
+        long hours = (expires + hour - 1)/hour - (now + hour - 1)/hour; // JE counts TTL from the next whole hour
+        return new WriteOptions().setTTL((int) Math.max(1, hours), TimeUnit.HOURS).setUpdateTTL(true);
+    }
+
+    /**
+     * One-shot copy of DPL store of namespace into COMPACT format, in the same environment.
+     * Pending records keep their remaining TTL, expired ones are skipped. Environment must not be
+     * open by anyone else, as migration opens it by itself. For sharded namespace migrate every
+     * shard directory in turn.
+     *
+     * @param namespace Namespace to migrate
+     * @param dataDir Directory of BerkeleyDB environment
+     * @param dropSource Remove DPL databases of namespace after successful copy
+     * @return Number of copied records
+     * @throws IllegalStateException If some BdbTools of this JVM still uses the directory
+     */
+    public static long migrateToCompact(String namespace, File dataDir, boolean dropSource) {
+        if (SharedEnvironment.isOpen(dataDir)) throw new IllegalStateException("Environment is in use: " + dataDir);
+        EnvironmentConfig envCfg = new EnvironmentConfig();
+        envCfg.setAllowCreate(false);
+        envCfg.setTransactional(true);
+        StoreConfig storeCfg = new StoreConfig();
+        storeCfg.setAllowCreate(true);
+        storeCfg.setTransactional(true);
+        Environment env = new Environment(dataDir, envCfg);
         try {
-            Iterator<Confirmation> it = pi_cursor.iterator();
-            while (it.hasNext()) callback.run(it.next());
-        } finally { pi_cursor.close(); }
+            DplStore source = new DplStore(env, namespace, storeCfg);
+            CompactStore target = new CompactStore(env, namespace, storeCfg);
+            long copied = 0;
+            try {
+                List<Confirmation> chunk = new ArrayList<>(1000);
+                long[] count = {0};
+                source.scan(c -> {
+                    chunk.add(c);
+                    if (chunk.size()==1000) { count[0] += copy(env, target, chunk); chunk.clear(); }
+                });
+                count[0] += copy(env, target, chunk);
+                copied = count[0];
+            } finally {
+                target.close();
+                source.close();
+            }
+            if (dropSource) {
+                for (String name : env.getDatabaseNames())
+                    if (name.startsWith("persist#" + namespace + "#")) env.removeDatabase(null, name);
+            }
+            return copied;
+        } finally { env.close(); }
+    }
+
+    private static long copy(Environment env, CompactStore target, List<Confirmation> chunk) {
+        long now = System.currentTimeMillis();
+        long copied = 0;
+        Transaction txn = env.beginTransaction(null, null);
+        try {
+            for (Confirmation c : chunk) {
+                if (c.expires!=0 && c.expires<=now) continue; // already expired, JE just did not purge it yet
+                target.put(txn, c, c.expires==0 ? new WriteOptions() : expiringAt(c.expires, now));
+                copied++;
+            }
+            txn.commit();
+            txn = null;
+        } finally {
+            if (txn!=null) txn.abort();
+        }
+        return copied;
     }
 }
@@ -0,0 +1,213 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import com.sleepycat.je.*;
+import com.sleepycat.persist.EntityCursor;
+import com.sleepycat.persist.EntityStore;
+import com.sleepycat.persist.PrimaryIndex;
+import com.sleepycat.persist.StoreConfig;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Bulk load behind BdbTools.importFile(). Records are collected in batches, every shard's part of
+ * a batch is sorted in key order, so B-tree gets filled left to right, and written in transactions
+ * of TXN_RECORDS records without fsync. Hash index is not maintained during load: DPL store is opened
+ * with secondary bulk load, COMPACT one with records database alone, and index is populated in one
+ * pass at the end. Routes of sharded namespace are written the same way, sorted by hash. Cleaner and
+ * checkpointer are paused while loading, as environment belongs to loader alone.
+ * <br><br>
+ * Transactional databases are used, not deferred-write ones, because JE refuses to open deferred-write
+ * database as transactional afterwards, and BdbTools needs transactions.
+ */
+class BulkLoader implements Closeable {
+    static final int BATCH = 100000;
+    static final int TXN_RECORDS = 10000;
+
+    private static final TransactionConfig BULK_TXN = new TransactionConfig().setDurability(Durability.COMMIT_NO_SYNC);
+    private static final WriteOptions PERMANENT = new WriteOptions().setUpdateTTL(true);
+
+    private final String namespace;
+    private final BdbConfig.Format format;
+    private final Comparator<Confirmation> order;
+    private final StoreConfig storeCfg;
+    private final List<Target> targets = new ArrayList<>();
+    private int batched;
+    private long loaded;
+
+    /** Open databases of one shard and its part of current batch */
+    private class Target {
+        final SharedEnvironment shared;
+        EntityStore dpl;
+        PrimaryIndex<String, Confirmation> idx;
+        Database compact;
+        Database routes;
+        final List<Confirmation> batch = new ArrayList<>();
+        final List<byte[]> routeBatch = new ArrayList<>(); // hash key with shard number appended
+
+        Target(SharedEnvironment shared) {
+            this.shared = shared;
+        }
+
+        boolean isEmpty() {
+            if (compact!=null) {
+                Cursor cursor = compact.openCursor(null, CursorConfig.READ_COMMITTED);
+                try {
+                    return cursor.get(new DatabaseEntry(), new DatabaseEntry(), Get.FIRST, null)==null;
+                } finally { cursor.close(); }
+            }
+            EntityCursor<String> keys = idx.keys(null, CursorConfig.READ_COMMITTED);
+            try {
+                return keys.first()==null;
+            } finally { keys.close(); }
+        }
+
+        void put(Transaction txn, Confirmation c, WriteOptions wo) {
+            if (compact!=null) {
+                compact.put(txn, new DatabaseEntry(CompactBinding.phoneToKey(c.id)),
+                    new DatabaseEntry(CompactBinding.encode(c)), Put.OVERWRITE, wo);
+            } else idx.put(txn, c, Put.OVERWRITE, wo);
+        }
+    }
+
+    private BulkLoader(String namespace, BdbConfig config) {
+        this.namespace = namespace;
+        this.format = config.getFormat();
+        this.order = BdbTools.keyOrder(format);
+        storeCfg = new StoreConfig();
+        storeCfg.setAllowCreate(true);
+        storeCfg.setTransactional(true);
+        storeCfg.setSecondaryBulkLoad(true);
+    }
+
+    static long load(String namespace, File dataDir, BdbConfig config, Path file) throws IOException {
+        List<File> dirs = config.shardDirs(dataDir);
+        for (File dir : dirs)
+            if (SharedEnvironment.isOpen(dir)) throw new IllegalStateException("Environment is in use: " + dir);
+        try (BulkLoader loader = new BulkLoader(namespace, config); ImportReader in = ImportReader.open(file)) {
+            loader.open(dirs, config);
+            for (Confirmation c = in.next(); c!=null; c = in.next()) loader.add(c);
+            return loader.finish();
+        }
+    }
+
+    private void open(List<File> dirs, BdbConfig config) {
+        for (int i = 0; i < dirs.size(); i++) {
+            Target t = new Target(SharedEnvironment.acquire(dirs.get(i), config));
+            targets.add(t);
+            if (dirs.size()>1) Shard.checkLayout(t.shared.dir, i, dirs.size());
+            setDaemons(t.shared.env, false);
+            if (format==BdbConfig.Format.COMPACT) t.compact = CompactStore.openPrimary(t.shared.env, namespace, storeCfg);
+            else {
+                t.dpl = new EntityStore(t.shared.env, namespace, storeCfg);
+                t.idx = t.dpl.getPrimaryIndex(String.class, Confirmation.class);
+            }
+            if (dirs.size()>1) t.routes = t.shared.openRoutes(namespace);
+            if (!t.isEmpty()) throw new IllegalStateException("Store " + namespace + " is not empty in " + t.shared.dir);
+        }
+    }
+
+    private void add(Confirmation c) {
+        int n = targets.size();
+        int shard = Shard.of(c.id, n);
+        targets.get(shard).batch.add(c);
+        if (c.hash!=null && n>1) {
+            byte[] hashKey = CompactBinding.hashToKey(c.hash);
+            byte[] route = new byte[hashKey.length + 1];
+            System.arraycopy(hashKey, 0, route, 0, hashKey.length);
+            route[hashKey.length] = (byte) shard;
+            targets.get(Shard.of(c.hash, n)).routeBatch.add(route);
+        }
+        if (++batched>=BATCH) flush();
+    }
+
+    private void flush() {
+        long now = System.currentTimeMillis();
+        for (Target t : targets) {
+            t.batch.sort(order);
+            Transaction txn = null;
+            try {
+                int inTxn = 0;
+                for (Confirmation c : t.batch) {
+                    WriteOptions wo = PERMANENT;
+                    if (c.hash!=null) c.expires = 0;
+                    else if (c.expires!=0) {
+                        if (c.expires<=now) continue;
+                        wo = BdbTools.expiringAt(c.expires, now);
+                    }
+                    if (txn==null) txn = t.shared.env.beginTransaction(null, BULK_TXN);
+                    t.put(txn, c, wo);
+                    loaded++;
+                    if (++inTxn==TXN_RECORDS) { txn.commit(); txn = null; inTxn = 0; }
+                }
+                inTxn = 0;
+                t.routeBatch.sort(BulkLoader::compareBytes);
+                for (byte[] route : t.routeBatch) {
+                    if (txn==null) txn = t.shared.env.beginTransaction(null, BULK_TXN);
+                    t.routes.put(txn, new DatabaseEntry(route, 0, route.length - 1),
+                        new DatabaseEntry(route, route.length - 1, 1), Put.OVERWRITE, null);
+                    if (++inTxn==TXN_RECORDS) { txn.commit(); txn = null; inTxn = 0; }
+                }
+                if (txn!=null) txn.commit();
+                txn = null;
+            } finally {
+                if (txn!=null) txn.abort();
+            }
+            t.batch.clear();
+            t.routeBatch.clear();
+        }
+        batched = 0;
+    }
+
+    /**
+     * Writes the rest, builds hash indexes and flushes everything to disk
+     *
+     * @return Number of loaded records
+     */
+    private long finish() {
+        flush();
+        for (Target t : targets) {
+            if (t.compact!=null) {
+                t.compact.close();
+                t.compact = null;
+                new CompactStore(t.shared.env, namespace, storeCfg).close(); // populates empty hash index
+            } else t.dpl.getSecondaryIndex(t.idx, String.class, "keyByHash");
+            t.shared.env.checkpoint(new CheckpointConfig().setForce(true)); // no long recovery on next open
+            t.shared.env.flushLog(true);
+        }
+        return loaded;
+    }
+
+    /**
+     * Cleaner and checkpointer have nothing to do in fresh store, but take CPU and write log while it is loaded
+     */
+    private static void setDaemons(Environment env, boolean run) {
+        EnvironmentMutableConfig cfg = env.getMutableConfig();
+        cfg.setConfigParam(EnvironmentConfig.ENV_RUN_CLEANER, Boolean.toString(run));
+        cfg.setConfigParam(EnvironmentConfig.ENV_RUN_CHECKPOINTER, Boolean.toString(run));
+        env.setMutableConfig(cfg);
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        return CompactBinding.compareKeys(new DatabaseEntry(a), b);
+    }
+
+    @Override
+    public void close() {
+        for (Target t : targets) {
+            try {
+                setDaemons(t.shared.env, true);
+                if (t.compact!=null) t.compact.close();
+                if (t.dpl!=null) t.dpl.close();
+                if (t.routes!=null) t.shared.closeRoutes(namespace);
+            } finally {
+                t.shared.release();
+            }
+        }
+    }
+}
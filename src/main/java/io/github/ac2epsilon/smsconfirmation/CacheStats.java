@@ -0,0 +1,47 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+/**
+ * Snapshot of BdbTools cache counters, see {@link BdbTools#getCacheStats()}
+ */
+public class CacheStats {
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final long expirations;
+    private final long size;
+
+    CacheStats(long hits, long misses, long evictions, long expirations, long size) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.expirations = expirations;
+        this.size = size;
+    }
+
+    /** @return Lookups answered from cache */
+    public long getHits() { return hits; }
+
+    /** @return Lookups which went to DB */
+    public long getMisses() { return misses; }
+
+    /** @return Entries dropped to keep cache within size limit */
+    public long getEvictions() { return evictions; }
+
+    /** @return Entries dropped because their record TTL is over */
+    public long getExpirations() { return expirations; }
+
+    /** @return Entries in cache right now */
+    public long getSize() { return size; }
+
+    /** @return Share of lookups answered from cache, 0..1 */
+    public double getHitRatio() {
+        long total = hits + misses;
+        return total==0 ? 0 : (double) hits/total;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats: [hits="+hits+", misses="+misses+", evictions="+evictions+
+            ", expirations="+expirations+", size="+size+"]";
+    }
+}
@@ -0,0 +1,53 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Consecutive-failures breaker of one transport. Closed breaker lets everything through; after
+ * threshold failures in a row it opens and refuses for open period, then lets single probe through
+ * (half-open). Probe success closes breaker, probe failure opens it again. Lock-free.
+ */
+class CircuitBreaker {
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicBoolean probing = new AtomicBoolean();
+    private volatile long openUntil; // System.nanoTime() when probe is allowed, 0 when closed
+    final LongAdder opened = new LongAdder();
+
+    /**
+     * @return true if call may go on; in half-open state only for the one caller, which got the probe
+     */
+    boolean allow() {
+        long until = openUntil;
+        if (until==0) return true;
+        if (System.nanoTime() - until<0) return false;
+        return probing.compareAndSet(false, true);
+    }
+
+    void success() {
+        failures.set(0);
+        if (openUntil!=0) {
+            openUntil = 0;
+            probing.set(false);
+        }
+    }
+
+    /**
+     * @param threshold Failures in a row, which open breaker
+     * @param openNanos How long to refuse calls
+     */
+    void failure(int threshold, long openNanos) {
+        if (failures.incrementAndGet()>=threshold || probing.get()) {
+            boolean wasClosed = openUntil==0;
+            long until = System.nanoTime() + openNanos;
+            openUntil = until==0 ? 1 : until;
+            probing.set(false);
+            if (wasClosed) opened.increment();
+        }
+    }
+
+    boolean isOpen() {
+        return openUntil!=0;
+    }
+}
@@ -0,0 +1,265 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import com.sleepycat.bind.tuple.TupleInput;
+import com.sleepycat.bind.tuple.TupleOutput;
+import com.sleepycat.je.DatabaseEntry;
+
+import java.nio.charset.StandardCharsets;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Hand-written binary format of Confirmation for CompactStore.
+ * <br><br>
+ * Key is phone in BCD: one nibble per digit (digit+1), terminated by 0 nibble, so byte order of keys
+ * is the same as String order of phones. Data is a flags byte, then code as short, issued as packed
+ * local-time seconds plus zone abbreviation, hash as 20 raw bytes and creation millis as packed long,
+ * last so hash index key creator does not have to skip it. Any field, which does not fit
+ * its packed form exactly (legacy or foreign data), is kept as plain string, so decoding always gives
+ * back the very same strings and getSign() / hash stay compatible.
+ */
+class CompactBinding {
+    static final int CODE_SHORT = 1;
+    static final int CODE_RAW = 2;
+    static final int ISSUED_PACKED = 4;
+    static final int ISSUED_RAW = 8;
+    static final int HASH_BIN = 16;
+    static final int HASH_RAW = 32;
+    static final int CREATED = 64;
+
+    private static final int RAW_KEY = 0xff; // first byte of non-digit keys, greater then any BCD byte
+    private static final int MIN_RAW_HASH_KEY = 21; // longer then binary hash key, so they never meet
+
+    /** Wall-clock part of SmsUtil.timestamp(), formatted as if in UTC, zone is kept separately */
+    private static final ThreadLocal<DateFormat> LOCAL_TIME = ThreadLocal.withInitial(() -> {
+        DateFormat f = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss", Locale.US);
+        f.setTimeZone(TimeZone.getTimeZone("UTC"));
+        f.setLenient(false);
+        return f;
+    });
+
+    private CompactBinding() {}
+
+    /**
+     * @param phone Primary key
+     * @return BCD form for digit strings, 0xff prefixed UTF-8 for anything else
+     */
+    static byte[] phoneToKey(String phone) {
+        int n = phone.length();
+        boolean digits = n>0;
+        for (int i = 0; i < n && digits; i++) digits = phone.charAt(i)>='0' && phone.charAt(i)<='9';
+        if (!digits) return prefixed(RAW_KEY, phone.getBytes(StandardCharsets.UTF_8), 0);
+        byte[] key = new byte[(n + 2)/2];
+        for (int i = 0; i < n; i++) {
+            int nibble = phone.charAt(i) - '0' + 1;
+            key[i/2] |= (i & 1)==0 ? nibble<<4 : nibble;
+        }
+        return key; // terminating 0 nibble is already there
+    }
+
+    /**
+     * @param key Byte array of key
+     * @param off Offset of key
+     * @param len Length of key
+     * @return Phone, restored from key
+     */
+    static String keyToPhone(byte[] key, int off, int len) {
+        if (len>0 && (key[off] & 0xff)==RAW_KEY) return new String(key, off + 1, len - 1, StandardCharsets.UTF_8);
+        char[] phone = new char[len*2];
+        int n = 0;
+        for (int i = 0; i < len*2; i++) {
+            int b = key[off + i/2];
+            int nibble = (i & 1)==0 ? (b>>4) & 0x0f : b & 0x0f;
+            if (nibble==0) break;
+            phone[n++] = (char) ('0' + nibble - 1);
+        }
+        return new String(phone, 0, n);
+    }
+
+    /**
+     * Compares keys the way JE default comparator does, unsigned byte by byte
+     *
+     * @param key Key read from cursor
+     * @param other Key built by phoneToKey()
+     * @return Negative, zero or positive, as Comparator
+     */
+    static int compareKeys(DatabaseEntry key, byte[] other) {
+        byte[] a = key.getData();
+        int off = key.getOffset(), len = key.getSize();
+        int n = Math.min(len, other.length);
+        for (int i = 0; i < n; i++) {
+            int d = (a[off + i] & 0xff) - (other[i] & 0xff);
+            if (d!=0) return d;
+        }
+        return len - other.length;
+    }
+
+    /**
+     * @param hash Confirmation hash
+     * @return 20 raw bytes for usual SHA-1 hex, padded 0xff prefixed UTF-8 for anything else
+     */
+    static byte[] hashToKey(String hash) {
+        byte[] bin = hexToBytes(hash);
+        return bin!=null ? bin : prefixed(RAW_KEY, hash.getBytes(StandardCharsets.UTF_8), MIN_RAW_HASH_KEY);
+    }
+
+    /**
+     * @return Hash, which hashToKey() turned into given key
+     */
+    static String keyToHash(byte[] key, int off, int len) {
+        if (len==20) return Confirmation.bytesToHex(Arrays.copyOfRange(key, off, off + 20));
+        int end = off + len;
+        if (len==MIN_RAW_HASH_KEY) while (end>off + 1 && key[end - 1]==0) end--; // padding of short hash
+        return new String(key, off + 1, end - off - 1, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Secondary key of packed record, used by key creator of hash index
+     *
+     * @return Key as in hashToKey(), or null if record has no hash
+     */
+    static byte[] hashKeyOf(byte[] data, int off, int len) {
+        TupleInput in = new TupleInput(data, off, len);
+        int flags = in.readUnsignedByte();
+        skipCode(in, flags);
+        skipIssued(in, flags);
+        if ((flags & HASH_BIN)!=0) {
+            byte[] key = new byte[20];
+            in.readFast(key);
+            return key;
+        }
+        if ((flags & HASH_RAW)!=0)
+            return prefixed(RAW_KEY, in.readString().getBytes(StandardCharsets.UTF_8), MIN_RAW_HASH_KEY);
+        return null;
+    }
+
+    /**
+     * @param c Confirmation to pack, phone goes to key and is not written here
+     * @return Packed data part of record
+     */
+    static byte[] encode(Confirmation c) {
+        int flags = 0;
+        int code = codeToShort(c.code);
+        if (code>=0) flags |= CODE_SHORT; else if (c.code!=null) flags |= CODE_RAW;
+        long local = Long.MIN_VALUE;
+        String zone = null;
+        if (c.issued!=null) {
+            int space = c.issued.lastIndexOf(' ');
+            if (space>0) {
+                local = parseLocal(c.issued.substring(0, space));
+                zone = c.issued.substring(space + 1);
+            }
+            flags |= local!=Long.MIN_VALUE ? ISSUED_PACKED : ISSUED_RAW;
+        }
+        byte[] hash = c.hash!=null ? hexToBytes(c.hash) : null;
+        if (hash!=null) flags |= HASH_BIN; else if (c.hash!=null) flags |= HASH_RAW;
+        if (c.created!=0) flags |= CREATED;
+
+        TupleOutput out = new TupleOutput(new byte[48]);
+        out.writeUnsignedByte(flags);
+        if ((flags & CODE_SHORT)!=0) out.writeShort(code);
+        if ((flags & CODE_RAW)!=0) out.writeString(c.code);
+        if ((flags & ISSUED_PACKED)!=0) { out.writePackedLong(local); out.writeString(zone); }
+        if ((flags & ISSUED_RAW)!=0) out.writeString(c.issued);
+        if ((flags & HASH_BIN)!=0) out.writeFast(hash);
+        if ((flags & HASH_RAW)!=0) out.writeString(c.hash);
+        if ((flags & CREATED)!=0) out.writePackedLong(c.created);
+        return out.toByteArray();
+    }
+
+    /**
+     * @param phone Phone, decoded from key
+     * @param data Byte array of packed data
+     * @param off Offset of data
+     * @param len Length of data
+     * @return Confirmation with the same strings, as were given to encode()
+     */
+    static Confirmation decode(String phone, byte[] data, int off, int len) {
+        TupleInput in = new TupleInput(data, off, len);
+        int flags = in.readUnsignedByte();
+        Confirmation c = new Confirmation(phone, null);
+        if ((flags & CODE_SHORT)!=0) {
+            int code = in.readShort();
+            c.code = new String(new char[] {
+                (char) ('0' + code/1000), (char) ('0' + code/100%10), (char) ('0' + code/10%10), (char) ('0' + code%10)
+            });
+        }
+        if ((flags & CODE_RAW)!=0) c.code = in.readString();
+        if ((flags & ISSUED_PACKED)!=0) {
+            long local = in.readPackedLong();
+            c.issued = LOCAL_TIME.get().format(new Date(local*1000)) + " " + in.readString();
+        }
+        if ((flags & ISSUED_RAW)!=0) c.issued = in.readString();
+        if ((flags & HASH_BIN)!=0) {
+            byte[] hash = new byte[20];
+            in.readFast(hash);
+            c.hash = Confirmation.bytesToHex(hash);
+        }
+        if ((flags & HASH_RAW)!=0) c.hash = in.readString();
+        c.created = (flags & CREATED)!=0 ? in.readPackedLong() : 0;
+        return c;
+    }
+
+    private static void skipCode(TupleInput in, int flags) {
+        if ((flags & CODE_SHORT)!=0) in.skipFast(2);
+        if ((flags & CODE_RAW)!=0) in.readString();
+    }
+
+    private static void skipIssued(TupleInput in, int flags) {
+        if ((flags & ISSUED_PACKED)!=0) { in.readPackedLong(); in.readString(); }
+        if ((flags & ISSUED_RAW)!=0) in.readString();
+    }
+
+    /**
+     * @return Code as number, or -1 if it is not exactly 4 digits
+     */
+    private static int codeToShort(String code) {
+        if (code==null || code.length()!=4) return -1;
+        int v = 0;
+        for (int i = 0; i < 4; i++) {
+            char ch = code.charAt(i);
+            if (ch<'0' || ch>'9') return -1;
+            v = v*10 + (ch - '0');
+        }
+        return v;
+    }
+
+    /**
+     * @return Seconds of local wall-clock time, or Long.MIN_VALUE if text does not format back exactly
+     */
+    private static long parseLocal(String text) {
+        DateFormat f = LOCAL_TIME.get();
+        try {
+            Date d = f.parse(text);
+            if (d.getTime()%1000!=0 || !f.format(d).equals(text)) return Long.MIN_VALUE;
+            return d.getTime()/1000;
+        } catch (ParseException e) { return Long.MIN_VALUE; }
+    }
+
+    /**
+     * @return 20 bytes of lower case 40-char hex, or null for anything else
+     */
+    private static byte[] hexToBytes(String hex) {
+        if (hex.length()!=40) return null;
+        byte[] out = new byte[20];
+        for (int i = 0; i < 40; i++) {
+            char ch = hex.charAt(i);
+            int v = ch>='0' && ch<='9' ? ch - '0' : ch>='a' && ch<='f' ? ch - 'a' + 10 : -1;
+            if (v<0) return null;
+            out[i/2] |= (i & 1)==0 ? v<<4 : v;
+        }
+        return out;
+    }
+
+    private static byte[] prefixed(int prefix, byte[] body, int minLength) {
+        byte[] out = new byte[Math.max(body.length + 1, minLength)];
+        out[0] = (byte) prefix;
+        System.arraycopy(body, 0, out, 1, body.length);
+        return out;
+    }
+}
@@ -0,0 +1,151 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import com.sleepycat.je.*;
+import com.sleepycat.persist.StoreConfig;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Confirmation records in compact binary form (see CompactBinding), kept in plain JE databases
+ * with own hash index on 20-byte keys
+ */
+class CompactStore implements ConfirmationStore {
+    final Database db;
+    final SecondaryDatabase byHash;
+
+    /**
+     * @param env Open environment
+     * @param namespace Name prefix of databases
+     * @param storeCfg Transactional, allow-create and read-only settings are taken from it
+     */
+    CompactStore(Environment env, String namespace, StoreConfig storeCfg) {
+        db = openPrimary(env, namespace, storeCfg);
+        SecondaryConfig secCfg = new SecondaryConfig();
+        secCfg.setAllowCreate(storeCfg.getAllowCreate())
+            .setTransactional(storeCfg.getTransactional())
+            .setReadOnly(storeCfg.getReadOnly())
+            .setDeferredWrite(storeCfg.getDeferredWrite());
+        secCfg.setAllowPopulate(true)
+            .setKeyCreator((secondary, key, data, result) -> {
+                byte[] hashKey = CompactBinding.hashKeyOf(data.getData(), data.getOffset(), data.getSize());
+                if (hashKey==null) return false;
+                result.setData(hashKey);
+                return true;
+            });
+        SecondaryDatabase sec;
+        try {
+            sec = env.openSecondaryDatabase(null, "compact#" + namespace + "#keyByHash", db, secCfg);
+        } catch (RuntimeException e) {
+            db.close();
+            throw e;
+        }
+        byHash = sec;
+    }
+
+    /**
+     * Opens records database alone, without hash index, as bulk load does. Hash index is filled
+     * from it on next open of CompactStore, if it is empty then
+     */
+    static Database openPrimary(Environment env, String namespace, StoreConfig storeCfg) {
+        DatabaseConfig dbCfg = new DatabaseConfig()
+            .setAllowCreate(storeCfg.getAllowCreate())
+            .setTransactional(storeCfg.getTransactional())
+            .setReadOnly(storeCfg.getReadOnly())
+            .setDeferredWrite(storeCfg.getDeferredWrite());
+        return env.openDatabase(null, "compact#" + namespace + "#Confirmation", dbCfg);
+    }
+
+    @Override
+    public OperationResult put(Transaction txn, Confirmation confirmation, WriteOptions wo) {
+        DatabaseEntry key = new DatabaseEntry(CompactBinding.phoneToKey(confirmation.id));
+        DatabaseEntry data = new DatabaseEntry(CompactBinding.encode(confirmation));
+        OperationResult result = db.put(txn, key, data, Put.OVERWRITE, wo);
+        confirmation.expires = result.getExpirationTime();
+        return result;
+    }
+
+    @Override
+    public Confirmation get(Transaction txn, String phone, LockMode lockMode) {
+        DatabaseEntry key = new DatabaseEntry(CompactBinding.phoneToKey(phone));
+        DatabaseEntry data = new DatabaseEntry();
+        OperationResult result = db.get(txn, key, data, Get.SEARCH, DplStore.readOptions(lockMode));
+        if (result==null) return null;
+        Confirmation c = CompactBinding.decode(phone, data.getData(), data.getOffset(), data.getSize());
+        c.expires = result.getExpirationTime();
+        return c;
+    }
+
+    @Override
+    public Confirmation getByHash(Transaction txn, String hash, LockMode lockMode) {
+        DatabaseEntry key = new DatabaseEntry(CompactBinding.hashToKey(hash));
+        DatabaseEntry pKey = new DatabaseEntry();
+        DatabaseEntry data = new DatabaseEntry();
+        OperationResult result = byHash.get(txn, key, pKey, data, Get.SEARCH, DplStore.readOptions(lockMode));
+        if (result==null) return null;
+        return unpack(pKey, data, result);
+    }
+
+    @Override
+    public boolean delete(Transaction txn, String phone) {
+        return db.delete(txn, new DatabaseEntry(CompactBinding.phoneToKey(phone)))==OperationStatus.SUCCESS;
+    }
+
+    @Override
+    public void scanHashes(Consumer<String> consumer) {
+        SecondaryCursor cursor = byHash.openCursor(null, CursorConfig.READ_COMMITTED);
+        try {
+            DatabaseEntry key = new DatabaseEntry();
+            DatabaseEntry data = new DatabaseEntry();
+            data.setPartial(0, 0, true); // keys only, records are not fetched
+            for (OperationResult r = cursor.get(key, data, Get.NEXT, null); r!=null; r = cursor.get(key, data, Get.NEXT, null))
+                consumer.accept(CompactBinding.keyToHash(key.getData(), key.getOffset(), key.getSize()));
+        } finally { cursor.close(); }
+    }
+
+    @Override
+    public void scan(ConfirmationLambda callback) {
+        Cursor cursor = db.openCursor(null, null);
+        try {
+            DatabaseEntry key = new DatabaseEntry();
+            DatabaseEntry data = new DatabaseEntry();
+            for (OperationResult r = cursor.get(key, data, Get.NEXT, null); r!=null; r = cursor.get(key, data, Get.NEXT, null))
+                callback.run(unpack(key, data, r));
+        } finally { cursor.close(); }
+    }
+
+    @Override
+    public List<Confirmation> range(String from, boolean fromInclusive, String to, int limit, ConfirmationFilter filter) {
+        List<Confirmation> out = new ArrayList<>(Math.min(limit, 1024));
+        byte[] start = from==null ? null : CompactBinding.phoneToKey(from);
+        byte[] stop = to==null ? null : CompactBinding.phoneToKey(to);
+        Cursor cursor = db.openCursor(null, CursorConfig.READ_COMMITTED);
+        try {
+            DatabaseEntry key = start==null ? new DatabaseEntry() : new DatabaseEntry(start);
+            DatabaseEntry data = new DatabaseEntry();
+            OperationResult r = cursor.get(key, data, start==null ? Get.FIRST : Get.SEARCH_GTE, null);
+            if (r!=null && start!=null && !fromInclusive && CompactBinding.compareKeys(key, start)==0)
+                r = cursor.get(key, data, Get.NEXT, null);
+            for (; r!=null; r = cursor.get(key, data, Get.NEXT, null)) {
+                if (stop!=null && CompactBinding.compareKeys(key, stop)>=0) break;
+                Confirmation c = unpack(key, data, r);
+                if (filter.test(c) && out.add(c) && out.size()==limit) break;
+            }
+        } finally { cursor.close(); }
+        return out;
+    }
+
+    @Override
+    public void close() {
+        byHash.close();
+        db.close();
+    }
+
+    static Confirmation unpack(DatabaseEntry key, DatabaseEntry data, OperationResult result) {
+        String phone = CompactBinding.keyToPhone(key.getData(), key.getOffset(), key.getSize());
+        Confirmation c = CompactBinding.decode(phone, data.getData(), data.getOffset(), data.getSize());
+        c.expires = result.getExpirationTime();
+        return c;
+    }
+}
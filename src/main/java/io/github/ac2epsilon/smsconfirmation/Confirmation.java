@@ -1,11 +1,12 @@
 package io.github.ac2epsilon.smsconfirmation;
 
+import com.sleepycat.je.CommitToken;
 import com.sleepycat.persist.model.Entity;
 import com.sleepycat.persist.model.PrimaryKey;
 import com.sleepycat.persist.model.Relationship;
 import com.sleepycat.persist.model.SecondaryKey;
 
-import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -17,7 +18,7 @@ import java.security.NoSuchAlgorithmException;
   Entity to encapsulate Confirmation request and answer(s), including
 */
 
-@Entity
+@Entity(version = 1)
 public class Confirmation {
     @PrimaryKey
     String id;
@@ -25,6 +26,19 @@ public class Confirmation {
     String issued;
     @SecondaryKey(relate = Relationship.ONE_TO_ONE, name = "keyByHash")
     String hash;
+    /**
+     * When code was sent, epoch millis, 0 for records written before version 1. Bounds validity
+     * of pending code, see BdbConfig.setCodeValidityMinutes()
+     */
+    long created;
+    /**
+     * Expiration time of DB record in millis, 0 for permanent one. Filled on read, not persisted by itself
+     */
+    transient long expires;
+    /**
+     * Commit point of write, which gave out this object, null if not replicated. Not persisted
+     */
+    transient CommitToken commitToken;
 
     /**
      * Default constructor as needed for Berkley DB JE requirements, not to be used in code
@@ -44,16 +58,43 @@ public class Confirmation {
     public Confirmation(String _id, String _code) {
         id = _id;
         code=_code;
+        created = System.currentTimeMillis();
     }
+
+    /**
+     * Copy constructor, used to hand out private copies of cached entities
+     *
+     * @param other Confirmation to copy
+     */
+    Confirmation(Confirmation other) {
+        id = other.id;
+        code = other.code;
+        issued = other.issued;
+        hash = other.hash;
+        created = other.created;
+        expires = other.expires;
+    }
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final ThreadLocal<MessageDigest> SHA1 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) { throw new IllegalStateException(e); }
+    });
+    private static final ThreadLocal<char[]> HEX_BUFFER = ThreadLocal.withInitial(() -> new char[40]);
+
 /**
 *
-* Internal byte[] to hexString converter
+* Internal byte[] to hexString converter, lower case, two chars per byte
 *
 * */
-    private String bytesToHex(byte[] in) {
-        final StringBuilder builder = new StringBuilder();
-        for(byte b : in) builder.append(String.format("%02x", b));
-        return builder.toString();
+    static String bytesToHex(byte[] in) {
+        int len = in.length*2;
+        char[] out = len<=40 ? HEX_BUFFER.get() : new char[len];
+        for (int i = 0, j = 0; i < in.length; i++) {
+            out[j++] = HEX[(in[i]>>4) & 0x0f];
+            out[j++] = HEX[in[i] & 0x0f];
+        }
+        return new String(out, 0, len);
     }
 /**
  *
@@ -62,12 +103,8 @@ public class Confirmation {
  * */
     public void setTokenHash() {
         issued = SmsUtil.timestamp();
-        String sign = getSign();
-        byte[] m= {};
-        try {
-            m = MessageDigest.getInstance("SHA-1").digest(sign.getBytes("UTF-8"));
-        } catch (NoSuchAlgorithmException e) {} catch (UnsupportedEncodingException e) {}
-        hash = bytesToHex(m);
+        MessageDigest sha1 = SHA1.get(); // digest() resets it for the next call
+        hash = bytesToHex(sha1.digest(getSign().getBytes(StandardCharsets.UTF_8)));
     }
 
     /**
@@ -81,6 +118,22 @@ public class Confirmation {
         else
             return id+"-"+ code;
     }
+
+    /**
+     * @return Commit point of BdbTools.add() in replicated environment, for read-your-writes
+     *         check on replica, see BdbTools.confirm(String, String, CommitToken). Null otherwise
+     */
+    public CommitToken getCommitToken() {
+        return commitToken;
+    }
+
+    /**
+     * @return Phone, the primary key, e.g. to ask BdbTools.page() for the next page
+     */
+    public String getPhone() {
+        return id;
+    }
+
     @Override
     public String toString() {
         return "Confirmation: ["+id+"-"+code+"-"+issued+"-"+hash+"]";
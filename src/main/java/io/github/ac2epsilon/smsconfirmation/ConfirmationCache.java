@@ -0,0 +1,164 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded in-memory cache of Confirmation entities by phone and by hash, sitting in front of BdbTools indexes.
+ * Split in segments, each one LRU map under its own lock, so lookups for different phones rarely meet.
+ * Hash to phone mapping is kept in concurrent map and is changed only under lock of phone segment.
+ * Entries expire together with JE TTL of their record. Cached objects are never handed out, only copies,
+ * as callers mutate Confirmation in check().
+ */
+class ConfirmationCache {
+    private static final int SEGMENTS = 16;
+
+    private final class Segment {
+        final LinkedHashMap<String, Confirmation> byPhone;
+
+        Segment(int capacity) {
+            byPhone = new LinkedHashMap<String, Confirmation>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Confirmation> eldest) {
+                    if (size()<=capacity) return false;
+                    Confirmation old = eldest.getValue();
+                    if (old.hash!=null) phoneByHash.remove(old.hash, old.id);
+                    evictions.increment();
+                    return true;
+                }
+            };
+        }
+    }
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final ConcurrentHashMap<String, String> phoneByHash = new ConcurrentHashMap<>();
+    private final AtomicLong writes = new AtomicLong(); // bumped under segment lock on every invalidation
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    /**
+     * @param maxEntries Size limit, shared evenly between segments
+     */
+    ConfirmationCache(int maxEntries) {
+        if (maxEntries<1) throw new IllegalArgumentException("Cache size must be positive");
+        int perSegment = Math.max(1, maxEntries/SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) segments[i] = new Segment(perSegment);
+    }
+
+    private Segment segment(String phone) {
+        int h = phone.hashCode();
+        return segments[(h ^ (h>>>16)) & (SEGMENTS-1)];
+    }
+
+    /**
+     * @param phone Primary key
+     * @return Copy of cached entity, or null on miss
+     */
+    Confirmation get(String phone) {
+        Segment s = segment(phone);
+        synchronized (s) {
+            Confirmation e = s.byPhone.get(phone);
+            if (e!=null && e.expires!=0 && e.expires<=System.currentTimeMillis()) {
+                remove(phone, s);
+                expirations.increment();
+                e = null;
+            }
+            if (e==null) { misses.increment(); return null; }
+            hits.increment();
+            return new Confirmation(e);
+        }
+    }
+
+    /**
+     * @param hash Secondary key
+     * @return Copy of cached entity, or null on miss
+     */
+    Confirmation getByHash(String hash) {
+        String phone = phoneByHash.get(hash);
+        if (phone!=null) {
+            Segment s = segment(phone);
+            synchronized (s) {
+                Confirmation e = s.byPhone.get(phone);
+                if (e!=null && hash.equals(e.hash)) {
+                    if (e.expires==0 || e.expires>System.currentTimeMillis()) {
+                        hits.increment();
+                        return new Confirmation(e);
+                    }
+                    remove(phone, s);
+                    expirations.increment();
+                }
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Takes stamp before reading DB, see put()
+     *
+     * @return Counter, which grows with every invalidation
+     */
+    long stamp() {
+        return writes.get();
+    }
+
+    /**
+     * Caches entity just read from DB, unless some write invalidated cache after stamp was taken,
+     * as entity may already be stale
+     *
+     * @param value Entity read from DB with its expiration time, copied before caching
+     * @param stamp Value of stamp() taken before DB read
+     */
+    void put(Confirmation value, long stamp) {
+        Segment s = segment(value.id);
+        synchronized (s) {
+            if (stamp!=writes.get()) return;
+            remove(value.id, s);
+            Confirmation copy = new Confirmation(value);
+            s.byPhone.put(copy.id, copy);
+            if (copy.hash!=null) phoneByHash.put(copy.hash, copy.id);
+        }
+    }
+
+    /**
+     * Drops entity of given phone, to be called on every write
+     *
+     * @param phone Primary key of changed record
+     */
+    void invalidate(String phone) {
+        Segment s = segment(phone);
+        synchronized (s) {
+            writes.incrementAndGet();
+            remove(phone, s);
+        }
+    }
+
+    private void remove(String phone, Segment s) {
+        Confirmation old = s.byPhone.remove(phone);
+        if (old!=null && old.hash!=null) phoneByHash.remove(old.hash, phone);
+    }
+
+    /**
+     * Drops all entries
+     */
+    void clear() {
+        for (Segment s : segments) {
+            synchronized (s) {
+                writes.incrementAndGet();
+                s.byPhone.clear();
+            }
+        }
+        phoneByHash.clear();
+    }
+
+    CacheStats stats() {
+        long size = 0;
+        for (Segment s : segments) synchronized (s) { size += s.byPhone.size(); }
+        return new CacheStats(hits.sum(), misses.sum(), evictions.sum(), expirations.sum(), size);
+    }
+}
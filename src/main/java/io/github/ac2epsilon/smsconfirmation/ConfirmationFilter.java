@@ -0,0 +1,21 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+/**
+ * Which records scans of BdbTools give out
+ */
+public enum ConfirmationFilter {
+    /** Every record */
+    ALL,
+    /** Codes sent, but not confirmed yet (no hash) */
+    PENDING,
+    /** Confirmed records with hash */
+    CONFIRMED;
+
+    boolean test(Confirmation c) {
+        switch (this) {
+            case PENDING: return c.hash==null;
+            case CONFIRMED: return c.hash!=null;
+            default: return true;
+        }
+    }
+}
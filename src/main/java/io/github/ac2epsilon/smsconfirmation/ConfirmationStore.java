@@ -0,0 +1,81 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationResult;
+import com.sleepycat.je.Transaction;
+import com.sleepycat.je.WriteOptions;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Storage format of Confirmation records inside one JE environment. BdbTools keeps all the logic
+ * (TTL, cache, transactions) and uses one of implementations for actual reads and writes:
+ * DplStore for reflective DPL entities, CompactStore for hand-packed binary records.
+ */
+interface ConfirmationStore {
+    /**
+     * Adds or overwrites record
+     *
+     * @param txn Transaction, or null for auto-commit
+     * @param confirmation Record to write
+     * @param wo TTL settings of the write
+     * @return Result, holding expiration time of written record
+     */
+    OperationResult put(Transaction txn, Confirmation confirmation, WriteOptions wo);
+
+    /**
+     * @param txn Transaction, or null
+     * @param phone Primary key
+     * @param lockMode Lock mode of read, null for default
+     * @return Record with expires field set, or null if there is no such record
+     */
+    Confirmation get(Transaction txn, String phone, LockMode lockMode);
+
+    /**
+     * @param txn Transaction, or null
+     * @param hash Secondary key
+     * @param lockMode Lock mode of read, null for default
+     * @return Record with expires field set, or null if there is no such record
+     */
+    Confirmation getByHash(Transaction txn, String hash, LockMode lockMode);
+
+    /**
+     * @param txn Transaction, or null for auto-commit
+     * @param phone Primary key
+     * @return true if record existed
+     */
+    boolean delete(Transaction txn, String phone);
+
+    /**
+     * Calls callback for every record in key order, with expires field set
+     *
+     * @param callback Functional snippet to call for every Confirmation
+     */
+    void scan(ConfirmationLambda callback);
+
+    /**
+     * Calls consumer for every hash of confirmed records, reading only hash index keys
+     *
+     * @param consumer Gets hashes in index order
+     */
+    void scanHashes(Consumer<String> consumer);
+
+    /**
+     * Reads one chunk of key range in key order with its own short cursor, closed before return,
+     * so long scans hold no locks between chunks
+     *
+     * @param from First key, null for start of store
+     * @param fromInclusive Include record with key equal to from, false to resume after last read key
+     * @param to Key to stop before, null for end of store
+     * @param limit Max number of records to return
+     * @param filter Records to give out, others are skipped and not counted in limit
+     * @return Records with expires field set, empty when range is over
+     */
+    List<Confirmation> range(String from, boolean fromInclusive, String to, int limit, ConfirmationFilter filter);
+
+    /**
+     * Closes databases of this store, not environment
+     */
+    void close();
+}
@@ -0,0 +1,101 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import com.sleepycat.je.*;
+import com.sleepycat.persist.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Confirmation records kept as DPL entities, the original format of BdbTools
+ */
+class DplStore implements ConfirmationStore {
+    final EntityStore store;
+    final PrimaryIndex<String,Confirmation> idx;
+    final SecondaryIndex<String, String, Confirmation> hashIdx;
+
+    /**
+     * @param env Open environment
+     * @param namespace Store name
+     * @param storeCfg Store settings
+     */
+    DplStore(Environment env, String namespace, StoreConfig storeCfg) {
+        store = new EntityStore(env, namespace, storeCfg);
+        try {
+            idx = store.getPrimaryIndex(String.class, Confirmation.class);
+            hashIdx = store.getSecondaryIndex(idx, String.class, "keyByHash");
+        } catch (RuntimeException e) {
+            store.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public OperationResult put(Transaction txn, Confirmation confirmation, WriteOptions wo) {
+        OperationResult result = idx.put(txn, confirmation, Put.OVERWRITE, wo);
+        confirmation.expires = result.getExpirationTime();
+        return result;
+    }
+
+    @Override
+    public Confirmation get(Transaction txn, String phone, LockMode lockMode) {
+        return unwrap(idx.get(txn, phone, Get.SEARCH, readOptions(lockMode)));
+    }
+
+    @Override
+    public Confirmation getByHash(Transaction txn, String hash, LockMode lockMode) {
+        return unwrap(hashIdx.get(txn, hash, Get.SEARCH, readOptions(lockMode)));
+    }
+
+    @Override
+    public boolean delete(Transaction txn, String phone) {
+        return idx.delete(txn, phone);
+    }
+
+    @Override
+    public void scanHashes(Consumer<String> consumer) {
+        EntityCursor<String> cursor = hashIdx.keys(null, CursorConfig.READ_COMMITTED);
+        try {
+            for (String hash = cursor.next(); hash!=null; hash = cursor.next()) consumer.accept(hash);
+        } finally { cursor.close(); }
+    }
+
+    @Override
+    public void scan(ConfirmationLambda callback) {
+        EntityCursor<Confirmation> cursor = idx.entities();
+        try {
+            for (EntityResult<Confirmation> r = cursor.get(Get.NEXT, null); r!=null; r = cursor.get(Get.NEXT, null))
+                callback.run(unwrap(r));
+        } finally { cursor.close(); }
+    }
+
+    @Override
+    public List<Confirmation> range(String from, boolean fromInclusive, String to, int limit, ConfirmationFilter filter) {
+        List<Confirmation> out = new ArrayList<>(Math.min(limit, 1024));
+        EntityCursor<Confirmation> cursor = idx.entities(null, from, fromInclusive, to, false, CursorConfig.READ_COMMITTED);
+        try {
+            for (EntityResult<Confirmation> r = cursor.get(Get.NEXT, null); r!=null; r = cursor.get(Get.NEXT, null)) {
+                Confirmation c = unwrap(r);
+                if (filter.test(c) && out.add(c) && out.size()==limit) break;
+            }
+        } finally { cursor.close(); }
+        return out;
+    }
+
+    @Override
+    public void close() {
+        store.close();
+    }
+
+    static ReadOptions readOptions(LockMode lockMode) {
+        return lockMode==null ? null : new ReadOptions().setLockMode(lockMode);
+    }
+
+    private static Confirmation unwrap(EntityResult<Confirmation> r) {
+        if (r==null) return null;
+        Confirmation c = r.value();
+        c.expires = r.result().getExpirationTime();
+        return c;
+    }
+}
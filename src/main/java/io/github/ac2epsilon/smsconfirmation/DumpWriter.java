@@ -0,0 +1,32 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Writes confirmations as compact binary dump: 8 bytes of MAGIC, then per record
+ * <pre>
+ * short key length, key as CompactBinding.phoneToKey()
+ * short data length, data as CompactBinding.encode()
+ * long  expires, epoch millis, 0 for permanent record
+ * </pre>
+ * all numbers big-endian. Dump is about a third of NDJSON and is read back without any parsing of text.
+ */
+class DumpWriter extends ExportWriter {
+    static final byte[] MAGIC = {'S', 'M', 'S', 'D', 'U', 'M', 'P', 1};
+
+    DumpWriter(Path file) throws IOException {
+        super(file);
+        put(MAGIC);
+    }
+
+    @Override
+    void encode(Confirmation c) throws IOException {
+        byte[] key = CompactBinding.phoneToKey(c.id);
+        byte[] data = CompactBinding.encode(c);
+        int size = key.length + data.length + 12;
+        if (size>buffer.capacity()) throw new IOException("Record is too big for dump: " + c.id);
+        reserve(size);
+        buffer.putShort((short) key.length).put(key).putShort((short) data.length).put(data).putLong(c.expires);
+    }
+}
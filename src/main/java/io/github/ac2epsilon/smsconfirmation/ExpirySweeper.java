@@ -0,0 +1,62 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Background thread, which calls BdbTools.sweep() in small batches, no faster then given rate, so
+ * purge of expired codes never competes with live traffic for long. After full pass over all shards
+ * it rests for a while, as nothing new expires faster then validity window anyway.
+ */
+class ExpirySweeper implements Runnable {
+    static final int BATCH = 100;
+
+    private final BdbTools bdb;
+    private final int batch;
+    private final long batchNanos;
+    private final long idleNanos;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * @param bdb Store to sweep
+     * @param recordsPerSecond Max records to look at per second, pending or not
+     * @param idleMs Pause after complete pass
+     */
+    ExpirySweeper(BdbTools bdb, int recordsPerSecond, long idleMs) {
+        this.bdb = bdb;
+        this.batch = Math.min(BATCH, recordsPerSecond);
+        this.batchNanos = TimeUnit.SECONDS.toNanos(1)*batch/recordsPerSecond;
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMs);
+        thread = new Thread(this, "sms-sweeper-" + bdb.namespace);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            long start = System.nanoTime();
+            long passes = bdb.sweepPasses.sum();
+            try {
+                bdb.sweep(batch);
+            } catch (RuntimeException e) { // environment is invalid or closing, nothing to sweep anymore
+                if (running) e.printStackTrace();
+                return;
+            }
+            long pause = bdb.sweepPasses.sum()!=passes ? idleNanos : batchNanos - (System.nanoTime() - start);
+            if (pause>0) LockSupport.parkNanos(this, pause);
+        }
+    }
+
+    /**
+     * Stops thread, waiting for current batch to finish
+     */
+    void close() {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(5000);
+        } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+    }
+}
@@ -0,0 +1,76 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Base of export files: records go through one direct buffer straight into file channel,
+ * and file is forced to disk by close()
+ */
+abstract class ExportWriter implements Closeable {
+    private static final int BUFFER = 64*1024;
+
+    private final FileChannel channel;
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER);
+    private long count;
+
+    /**
+     * @param file File to create or overwrite
+     * @throws IOException If file can not be opened
+     */
+    ExportWriter(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE);
+    }
+
+    /**
+     * @param c Record to write
+     * @throws IOException If file can not be written
+     */
+    final void write(Confirmation c) throws IOException {
+        encode(c);
+        count++;
+    }
+
+    abstract void encode(Confirmation c) throws IOException;
+
+    /** @return Records written so far */
+    long count() {
+        return count;
+    }
+
+    /**
+     * Makes room for given number of bytes in buffer, bigger ones must go through put()
+     */
+    void reserve(int bytes) throws IOException {
+        if (bytes>buffer.remaining()) flush();
+    }
+
+    void put(byte[] bytes) throws IOException {
+        reserve(bytes.length);
+        if (bytes.length>buffer.capacity()) drain(ByteBuffer.wrap(bytes));
+        else buffer.put(bytes);
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        drain(buffer);
+        buffer.clear();
+    }
+
+    private void drain(ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) channel.write(b);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            channel.force(false);
+        } finally { channel.close(); }
+    }
+}
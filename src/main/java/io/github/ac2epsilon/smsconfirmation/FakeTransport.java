@@ -0,0 +1,131 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * In-process transport for tests and load runs: keeps sent messages in memory instead of sending them,
+ * with optional latency, latency tail and failures, so failover and hedging can be tried without gateways
+ */
+public class FakeTransport implements SmsTransport {
+    /**
+     * One SMS, as it would be sent
+     */
+    public static class Message {
+        private final String from;
+        private final String to;
+        private final String text;
+
+        Message(String from, String to, String text) {
+            this.from = from;
+            this.to = to;
+            this.text = text;
+        }
+
+        public String getFrom() { return from; }
+
+        public String getTo() { return to; }
+
+        public String getText() { return text; }
+    }
+
+    private final String name;
+    private final ConcurrentLinkedDeque<Message> messages = new ConcurrentLinkedDeque<>();
+    private volatile long latencyMillis;
+    private volatile double tailShare;
+    private volatile long tailMillis;
+    private volatile boolean failing;
+
+    public FakeTransport() {
+        this("fake");
+    }
+
+    /**
+     * @param name Name in metrics, to tell several fakes apart
+     */
+    public FakeTransport(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @param millis How long every send takes
+     * @return this
+     */
+    public FakeTransport setLatencyMillis(long millis) {
+        this.latencyMillis = millis;
+        return this;
+    }
+
+    /**
+     * Makes some sends slow, as real gateways are now and then
+     *
+     * @param share Share of slow sends, from 0 to 1
+     * @param millis How long slow send takes
+     * @return this
+     */
+    public FakeTransport setTail(double share, long millis) {
+        this.tailShare = share;
+        this.tailMillis = millis;
+        return this;
+    }
+
+    /**
+     * @param failing When true, every send fails with IOException, as if gateway is down
+     * @return this
+     */
+    public FakeTransport setFailing(boolean failing) {
+        this.failing = failing;
+        return this;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void send(String from, String to, String text) throws IOException {
+        long delay = tailShare>0 && ThreadLocalRandom.current().nextDouble()<tailShare ? tailMillis : latencyMillis;
+        if (delay>0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        if (failing) throw new IOException(name + " is down");
+        messages.add(new Message(from, to, text));
+    }
+
+    /**
+     * @return Copy of sent messages, oldest first
+     */
+    public List<Message> getMessages() {
+        return new ArrayList<>(messages);
+    }
+
+    /**
+     * @param to Phone number
+     * @return Text of latest message to phone, e.g. to pick code from it, or null
+     */
+    public String lastText(String to) {
+        for (Iterator<Message> it = messages.descendingIterator(); it.hasNext(); ) {
+            Message m = it.next();
+            if (m.to.equals(to)) return m.text;
+        }
+        return null;
+    }
+
+    /**
+     * Forgets sent messages
+     */
+    public void clear() {
+        messages.clear();
+    }
+}
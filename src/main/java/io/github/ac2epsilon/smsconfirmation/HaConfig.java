@@ -0,0 +1,97 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import com.sleepycat.je.ReplicaConsistencyPolicy;
+import com.sleepycat.je.rep.ReplicationConfig;
+import com.sleepycat.je.rep.TimeConsistencyPolicy;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Node settings of replicated mode, see {@link BdbConfig#setReplication(HaConfig)}. Environment becomes
+ * node of JE High Availability group: master takes all writes (send and first successful check),
+ * replicas serve lookups and checks of codes, each with its own consistency policy.
+ * Setters return this, so config can be chained the same way as BerkeleyDB configs.
+ */
+public class HaConfig {
+    private final String nodeName;
+    private final String hostPort;
+    private final String helperHosts;
+    private String groupName = "sms-confirmation";
+    private ReplicaConsistencyPolicy lookupConsistency = new TimeConsistencyPolicy(2, TimeUnit.SECONDS, 3, TimeUnit.SECONDS);
+    private ReplicaConsistencyPolicy checkConsistency = new TimeConsistencyPolicy(2, TimeUnit.SECONDS, 3, TimeUnit.SECONDS);
+
+    /**
+     * @param nodeName Unique name of this node in group, e.g. "sms1"
+     * @param hostPort Host and port, where this node listens for other nodes, e.g. "localhost:5001"
+     * @param helperHosts Comma separated host:port of other nodes to join group through. First node of new
+     *                    group lists itself
+     */
+    public HaConfig(String nodeName, String hostPort, String helperHosts) {
+        if (nodeName==null || hostPort==null || helperHosts==null)
+            throw new IllegalArgumentException("nodeName, hostPort and helperHosts are required");
+        this.nodeName = nodeName;
+        this.hostPort = hostPort;
+        this.helperHosts = helperHosts;
+    }
+
+    public String getNodeName() { return nodeName; }
+
+    public String getHostPort() { return hostPort; }
+
+    public String getHelperHosts() { return helperHosts; }
+
+    /**
+     * @param groupName Name of replication group, the same on every node, default "sms-confirmation"
+     * @return this
+     */
+    public HaConfig setGroupName(String groupName) {
+        if (groupName==null || groupName.isEmpty()) throw new IllegalArgumentException("groupName is required");
+        this.groupName = groupName;
+        return this;
+    }
+
+    public String getGroupName() { return groupName; }
+
+    /**
+     * Replica learns master time from its commits and from heartbeats, which come once a second,
+     * so lag under 2 seconds makes reads on idle group wait for next heartbeat
+     *
+     * @param policy Consistency of lookups by hash and phone (reHash, get) on replica. Default allows
+     *               replica to be up to 2 seconds behind master, waiting up to 3 seconds to catch up
+     * @return this
+     */
+    public HaConfig setLookupConsistency(ReplicaConsistencyPolicy policy) {
+        if (policy==null) throw new IllegalArgumentException("policy is required");
+        this.lookupConsistency = policy;
+        return this;
+    }
+
+    public ReplicaConsistencyPolicy getLookupConsistency() { return lookupConsistency; }
+
+    /**
+     * Default is read-your-writes for people: SMS takes longer then 2 seconds to arrive and be typed in.
+     * For strict read-your-writes pass commit token of add() to BdbTools.confirm(String, String, CommitToken),
+     * which waits up to timeout of this policy
+     *
+     * @param policy Consistency of check on replica. Default sees every code sent more then 2 seconds
+     *               before check, waiting up to 3 seconds to catch up
+     * @return this
+     */
+    public HaConfig setCheckConsistency(ReplicaConsistencyPolicy policy) {
+        if (policy==null) throw new IllegalArgumentException("policy is required");
+        this.checkConsistency = policy;
+        return this;
+    }
+
+    public ReplicaConsistencyPolicy getCheckConsistency() { return checkConsistency; }
+
+    /**
+     * @return JE settings of this node, with lookup consistency as default of environment
+     */
+    ReplicationConfig toReplicationConfig() {
+        ReplicationConfig repCfg = new ReplicationConfig(groupName, nodeName, hostPort);
+        repCfg.setHelperHosts(helperHosts);
+        repCfg.setConsistencyPolicy(lookupConsistency);
+        return repCfg;
+    }
+}
@@ -0,0 +1,161 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-memory Bloom filter of confirmation hashes of one store in one shard, so lookups of hashes,
+ * which were never issued (stale links, guessing clients), are answered without touching JE.
+ * Bits are only ever set, so deleted and overwritten records just make filter a bit less selective.
+ * Usual SHA-1 hex already is uniformly random, so its first 16 bytes are taken as two 64-bit
+ * hashes for double hashing without any further hashing; other strings are mixed first.
+ * Adding and testing are lock-free and never allocate.
+ */
+class HashFilter {
+    private static final int PROBES = 7;         // best for ~10 bits per entry, ~1% false positives
+    private static final long MAGIC = 0x534d53424c4f4f4dL; // "SMSBLOOM"
+    private static final byte[] HEX_VALUE = new byte[128]; // -1 for non-hex, table keeps random hex free of mispredicted branches
+
+    static {
+        Arrays.fill(HEX_VALUE, (byte) -1);
+        for (int i = 0; i < 10; i++) HEX_VALUE['0' + i] = (byte) i;
+        for (int i = 0; i < 6; i++) HEX_VALUE['a' + i] = (byte) (10 + i);
+    }
+
+    private final AtomicLongArray words;
+    private final long mask;
+    private volatile boolean ready;
+
+    /**
+     * @param bits Size, rounded up to power of two, 64 at least
+     */
+    HashFilter(long bits) {
+        long size = bits<=64 ? 64 : Long.highestOneBit(bits - 1)<<1;
+        if (size>(long) Integer.MAX_VALUE*64) throw new IllegalArgumentException("Hash filter too large: " + bits);
+        words = new AtomicLongArray((int) (size>>>6));
+        mask = size - 1;
+    }
+
+    /**
+     * @param entries Expected number of hashes
+     * @return Bits for about 1% of false positives
+     */
+    static long bitsFor(long entries) {
+        return entries*10;
+    }
+
+    long bits() {
+        return mask + 1;
+    }
+
+    /**
+     * Marks filter as holding every hash of store, before it filters are not trusted
+     */
+    void ready() {
+        ready = true;
+    }
+
+    boolean isReady() {
+        return ready;
+    }
+
+    void add(String hash) {
+        boolean hex = isHex(hash);
+        long h1 = first(hash, hex), h2 = second(hash, hex, h1);
+        for (int i = 0; i < PROBES; i++) {
+            long bit = (h1 + i*h2) & mask;
+            long m = 1L<<bit;
+            int w = (int) (bit>>>6);
+            if ((words.get(w) & m)==0) words.accumulateAndGet(w, m, (a, b) -> a | b);
+        }
+    }
+
+    /**
+     * @param hash Hash to look for
+     * @return false if store has surely no such hash, true if it may have it or filter is not ready yet
+     */
+    boolean mightContain(String hash) {
+        if (!ready) return true;
+        boolean hex = isHex(hash);
+        long h1 = first(hash, hex), h2 = second(hash, hex, h1);
+        for (int i = 0; i < PROBES; i++) {
+            long bit = (h1 + i*h2) & mask;
+            if ((words.get((int) (bit>>>6)) & (1L<<bit))==0) return false;
+        }
+        return true;
+    }
+
+    private static boolean isHex(String s) {
+        if (s.length()!=40) return false;
+        int bad = 0;
+        for (int i = 0; i < 40; i++) {
+            char c = s.charAt(i);
+            bad |= c<128 ? HEX_VALUE[c] : -1;
+        }
+        return bad>=0;
+    }
+
+    private static long hex(String s, int from) {
+        long v = 0;
+        for (int i = from; i < from + 16; i++) v = v<<4 | HEX_VALUE[s.charAt(i)];
+        return v;
+    }
+
+    private static long first(String hash, boolean hex) {
+        if (hex) return hex(hash, 0);
+        long h = 0xcbf29ce484222325L; // FNV-1a, then murmur finalizer
+        for (int i = 0; i < hash.length(); i++) h = (h ^ hash.charAt(i))*0x100000001b3L;
+        return mix(h);
+    }
+
+    private static long second(String hash, boolean hex, long first) {
+        return (hex ? hex(hash, 16) : mix(first ^ 0x9E3779B97F4A7C15L)) | 1; // odd, so probes differ
+    }
+
+    private static long mix(long h) {
+        h ^= h>>>33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h>>>33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        return h ^ h>>>33;
+    }
+
+    /**
+     * Writes filter together with state of JE log, it matches
+     *
+     * @param file Where to write
+     * @param name Store it belongs to
+     * @param logStamp See SharedEnvironment.logStamp()
+     */
+    void save(File file, String name, String logStamp) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536))) {
+            out.writeLong(MAGIC);
+            out.writeUTF(name);
+            out.writeUTF(logStamp);
+            out.writeInt(words.length());
+            for (int i = 0; i < words.length(); i++) out.writeLong(words.get(i));
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @return Filter saved for the same store and log state, ready to use, or null if file is missing or stale
+     */
+    static HashFilter load(File file, String name, String logStamp) {
+        if (!file.exists()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+            if (in.readLong()!=MAGIC || !in.readUTF().equals(name) || !in.readUTF().equals(logStamp)) return null;
+            int n = in.readInt();
+            HashFilter filter = new HashFilter((long) n*64);
+            for (int i = 0; i < n; i++) filter.words.set(i, in.readLong());
+            filter.ready();
+            return filter;
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -3,21 +3,29 @@ package io.github.ac2epsilon.smsconfirmation;
 /**
  * Created by ac2 on 25.01.17.
  */
-import org.apache.http.client.HttpClient;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
-import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * HttpClientUtils.java<br><br>
  *
- * A Helper factory for instantiating HttpClient instances<br><br>
+ * A Helper factory for shared, pooled HttpClient instances<br><br>
  *
  * Created on 5 January 2011, 17:34
  *
@@ -26,20 +34,43 @@ import java.util.Map;
  */
 class HttpClientUtils {
 
-    private final static Map<String, HttpClientUtils> instances = new HashMap<>();
+    private final static ConcurrentMap<String, HttpClientUtils> instances = new ConcurrentHashMap<>();
 
-    private final ThreadSafeClientConnManager threadSafeClientConnManager;
+    /** Keep-alive to use when server does not say how long connection may stay idle */
+    private final static long DEFAULT_KEEP_ALIVE_MS = 30000;
+    /** Pooled connections idle longer then this are closed by evictor thread */
+    private final static long MAX_IDLE_MS = 60000;
 
-    private final int connectionTimeout;
-    private final int soTimeout;
+    private final TimedConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
 
     private HttpClientUtils(int connectionTimeout, int soTimeout) {
-        this.connectionTimeout = connectionTimeout;
-        this.soTimeout = soTimeout;
+        this.connectionManager = new TimedConnectionManager();
+        this.connectionManager.setDefaultMaxPerRoute(200);
+        this.connectionManager.setMaxTotal(200);
+        this.connectionManager.setValidateAfterInactivity(2000);
+        this.connectionManager.setDefaultSocketConfig(SocketConfig.custom()
+            .setTcpNoDelay(true)
+            .setSoTimeout(soTimeout)
+            .build());
 
-        this.threadSafeClientConnManager = new ThreadSafeClientConnManager();
-        this.threadSafeClientConnManager.setDefaultMaxPerRoute(200);
-        this.threadSafeClientConnManager.setMaxTotal(200);
+        RequestConfig requestConfig = RequestConfig.custom()
+            .setConnectTimeout(connectionTimeout)
+            .setSocketTimeout(soTimeout)
+            .setConnectionRequestTimeout(connectionTimeout)
+            .build();
+
+        this.httpClient = HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(requestConfig)
+            .setUserAgent("Nexmo Java SDK 1.5")
+            .setKeepAliveStrategy((response, context) -> {
+                long ms = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                return ms>0 ? ms : DEFAULT_KEEP_ALIVE_MS;
+            })
+            .evictExpiredConnections()
+            .evictIdleConnections(MAX_IDLE_MS, TimeUnit.MILLISECONDS)
+            .build();
     }
 
     /**
@@ -51,30 +82,64 @@ class HttpClientUtils {
      */
     public static HttpClientUtils getInstance(int connectionTimeout, int soTimeout) {
         String key = "c-" + connectionTimeout + "-so-" + soTimeout;
-        HttpClientUtils instance = instances.get(key);
-        if (instance == null) {
-            instance = new HttpClientUtils(connectionTimeout, soTimeout);
-            instances.put(key, instance);
-        }
-        return instance;
+        return instances.computeIfAbsent(key, k -> new HttpClientUtils(connectionTimeout, soTimeout));
     }
 
     /**
-     * Instantiate a new HttpClient instance that uses the timeout values associated with this factory instance
+     * Return shared, thread-safe HttpClient, that uses the timeout values associated with this factory instance.
+     * Connections are kept alive and reused, so callers must always consume or close response entity
      *
-     * @return HttpClient a new HttpClient instance
+     * @return CloseableHttpClient shared by all callers of this factory instance
      */
-    public HttpClient getNewHttpClient() {
-        HttpParams httpClientParams = new BasicHttpParams();
-        HttpProtocolParams.setUserAgent(httpClientParams, "Nexmo Java SDK 1.5");
-        HttpProtocolParams.setContentCharset(httpClientParams, "UTF-8");
-        HttpProtocolParams.setHttpElementCharset(httpClientParams, "UTF-8");
-        HttpConnectionParams.setConnectionTimeout(httpClientParams, this.connectionTimeout);
-        HttpConnectionParams.setSoTimeout(httpClientParams, this.soTimeout);
-        HttpConnectionParams.setStaleCheckingEnabled(httpClientParams, true);
-        HttpConnectionParams.setTcpNoDelay(httpClientParams, true);
+    public CloseableHttpClient getHttpClient() {
+        return httpClient;
+    }
 
-        return new DefaultHttpClient(this.threadSafeClientConnManager, httpClientParams);
+    /**
+     * Snapshot of connection pool counters, to size pool under load
+     *
+     * @return Leased, available and pending connections, together with time spent waiting for lease
+     */
+    public HttpPoolStats getPoolStats() {
+        PoolStats total = connectionManager.getTotalStats();
+        return new HttpPoolStats(total.getLeased(), total.getAvailable(), total.getPending(), total.getMax(),
+            connectionManager.leases.sum(), connectionManager.leaseWaitNanos.sum(),
+            connectionManager.maxLeaseWaitNanos.get());
     }
 
+    /**
+     * Pooling manager, which measures how long callers wait for a connection to be leased
+     */
+    private static class TimedConnectionManager extends PoolingHttpClientConnectionManager {
+        final LongAdder leases = new LongAdder();
+        final LongAdder leaseWaitNanos = new LongAdder();
+        final AtomicLong maxLeaseWaitNanos = new AtomicLong();
+
+        @Override
+        public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+            ConnectionRequest request = super.requestConnection(route, state);
+            return new ConnectionRequest() {
+                @Override
+                public HttpClientConnection get(long timeout, TimeUnit tunit)
+                        throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                    long start = System.nanoTime();
+                    try {
+                        return request.get(timeout, tunit);
+                    } finally {
+                        long waited = System.nanoTime() - start;
+                        leases.increment();
+                        leaseWaitNanos.add(waited);
+                        long max = maxLeaseWaitNanos.get();
+                        while (waited>max && !maxLeaseWaitNanos.compareAndSet(max, waited))
+                            max = maxLeaseWaitNanos.get();
+                    }
+                }
+
+                @Override
+                public boolean cancel() {
+                    return request.cancel();
+                }
+            };
+        }
+    }
 }
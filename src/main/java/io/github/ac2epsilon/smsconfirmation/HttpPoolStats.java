@@ -0,0 +1,55 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+/**
+ * Snapshot of HTTP connection pool state, see {@link SmsConfirmation#getHttpPoolStats()}
+ */
+public class HttpPoolStats {
+    private final int leased;
+    private final int available;
+    private final int pending;
+    private final int max;
+    private final long leases;
+    private final long leaseWaitNanos;
+    private final long maxLeaseWaitNanos;
+
+    HttpPoolStats(int leased, int available, int pending, int max,
+                  long leases, long leaseWaitNanos, long maxLeaseWaitNanos) {
+        this.leased = leased;
+        this.available = available;
+        this.pending = pending;
+        this.max = max;
+        this.leases = leases;
+        this.leaseWaitNanos = leaseWaitNanos;
+        this.maxLeaseWaitNanos = maxLeaseWaitNanos;
+    }
+
+    /** @return Connections busy with requests right now */
+    public int getLeased() { return leased; }
+
+    /** @return Idle kept-alive connections, ready for reuse */
+    public int getAvailable() { return available; }
+
+    /** @return Requests waiting for a free connection right now */
+    public int getPending() { return pending; }
+
+    /** @return Pool size limit */
+    public int getMax() { return max; }
+
+    /** @return Total number of connection leases since start */
+    public long getLeases() { return leases; }
+
+    /** @return Total time, spent by all requests waiting for connection lease, in nanoseconds */
+    public long getLeaseWaitNanos() { return leaseWaitNanos; }
+
+    /** @return Longest single wait for connection lease, in nanoseconds */
+    public long getMaxLeaseWaitNanos() { return maxLeaseWaitNanos; }
+
+    /** @return Average wait for connection lease, in nanoseconds */
+    public long getAvgLeaseWaitNanos() { return leases==0 ? 0 : leaseWaitNanos/leases; }
+
+    @Override
+    public String toString() {
+        return "HttpPoolStats: [leased="+leased+", available="+available+", pending="+pending+", max="+max+
+            ", leases="+leases+", avgWaitUs="+getAvgLeaseWaitNanos()/1000+", maxWaitUs="+maxLeaseWaitNanos/1000+"]";
+    }
+}
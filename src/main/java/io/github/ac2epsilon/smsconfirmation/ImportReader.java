@@ -0,0 +1,170 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads back files of BdbTools.exportNdjson() and exportDump(), format is told by magic bytes.
+ * File is memory-mapped in windows of up to 1GB, so reading costs no system calls nor copying
+ * through kernel buffers, and files of any size can be read.
+ */
+abstract class ImportReader implements Closeable {
+    final MappedInput input;
+
+    private ImportReader(MappedInput input) {
+        this.input = input;
+    }
+
+    /**
+     * @param file NDJSON or binary dump
+     * @return Reader of file format
+     * @throws IOException If file can not be opened
+     */
+    static ImportReader open(Path file) throws IOException {
+        MappedInput input = new MappedInput(FileChannel.open(file, StandardOpenOption.READ));
+        try {
+            byte[] head = new byte[DumpWriter.MAGIC.length];
+            int n = 0;
+            for (int r; n<head.length && (r = input.read(head, n, head.length - n))>0; ) n += r;
+            if (Arrays.equals(head, DumpWriter.MAGIC)) return new Dump(input);
+            input.rewind();
+            return new Ndjson(input);
+        } catch (IOException | RuntimeException e) {
+            input.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return Next record with expires field as in file, or null at the end
+     * @throws IOException If file is broken
+     */
+    abstract Confirmation next() throws IOException;
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+
+    private static class Dump extends ImportReader {
+        private final DataInputStream in;
+
+        Dump(MappedInput input) {
+            super(input);
+            in = new DataInputStream(input);
+        }
+
+        @Override
+        Confirmation next() throws IOException {
+            int high = in.read();
+            if (high<0) return null;
+            byte[] key = new byte[(high<<8) | in.readUnsignedByte()];
+            in.readFully(key);
+            byte[] data = new byte[in.readUnsignedShort()];
+            in.readFully(data);
+            long expires = in.readLong();
+            Confirmation c = CompactBinding.decode(CompactBinding.keyToPhone(key, 0, key.length), data, 0, data.length);
+            c.expires = expires;
+            return c;
+        }
+    }
+
+    private static class Ndjson extends ImportReader {
+        private final JsonScanner json;
+
+        Ndjson(MappedInput input) {
+            super(input);
+            json = new JsonScanner(new InputStreamReader(input, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        Confirmation next() throws IOException {
+            JsonScanner.Token t = json.next();
+            if (t==JsonScanner.Token.EOF) return null;
+            if (t!=JsonScanner.Token.BEGIN_OBJECT) throw new IOException("Every line must be JSON object");
+            Confirmation c = new Confirmation();
+            for (t = json.next(); t!=JsonScanner.Token.END_OBJECT; t = json.next()) {
+                if (t!=JsonScanner.Token.NAME) throw new IOException("Malformed JSON");
+                if (json.textEquals("phone")) c.id = string();
+                else if (json.textEquals("code")) c.code = string();
+                else if (json.textEquals("issued")) c.issued = string();
+                else if (json.textEquals("hash")) c.hash = string();
+                else if (json.textEquals("expires")) c.expires = millis("expires");
+                else if (json.textEquals("created")) c.created = millis("created");
+                else json.skipValue();
+            }
+            if (c.id==null || c.id.isEmpty()) throw new IOException("Record without phone");
+            return c;
+        }
+
+        private long millis(String field) throws IOException {
+            String v = string();
+            try {
+                return v==null ? 0 : Long.parseLong(v);
+            } catch (NumberFormatException e) { throw new IOException("Bad " + field + ": " + v); }
+        }
+
+        private String string() throws IOException {
+            JsonScanner.Token t = json.next();
+            if (t==JsonScanner.Token.LITERAL) return json.textEquals("null") ? null : json.text();
+            if (t!=JsonScanner.Token.STRING) throw new IOException("Malformed JSON");
+            return json.text();
+        }
+    }
+
+    /**
+     * InputStream over consecutive read-only mappings of file
+     */
+    static class MappedInput extends InputStream {
+        private static final long WINDOW = 1L<<30;
+
+        private final FileChannel channel;
+        private final long size;
+        private long mapped;
+        private MappedByteBuffer window;
+
+        MappedInput(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+        }
+
+        private boolean ensure() throws IOException {
+            if (window!=null && window.hasRemaining()) return true;
+            if (mapped>=size) return false;
+            long length = Math.min(WINDOW, size - mapped);
+            window = channel.map(FileChannel.MapMode.READ_ONLY, mapped, length);
+            mapped += length;
+            return true;
+        }
+
+        void rewind() {
+            mapped = 0;
+            window = null;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return ensure() ? window.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len==0) return 0;
+            if (!ensure()) return -1;
+            int n = Math.min(len, window.remaining());
+            window.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            window = null;
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Minimal pull-style JSON tokenizer. Reads characters through own small buffer and keeps text of
+ * current token in reusable StringBuilder, so caller creates Strings only for values it needs.
+ * Just enough JSON for gateway responses and our own service requests, not a general purpose parser.
+ */
+class JsonScanner {
+    enum Token { BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, LITERAL, EOF }
+
+    private static final int MAX_DEPTH = 32;
+    private static final int MAX_TEXT = 65536;
+
+    private final Reader in;
+    private final char[] buf = new char[512];
+    private int pos, limit;
+    private final StringBuilder text = new StringBuilder(64);
+    private final char[] stack = new char[MAX_DEPTH];
+    private int depth;
+    private boolean expectName;
+
+    JsonScanner(Reader in) {
+        this.in = in;
+    }
+
+    /**
+     * @return Next token, EOF when input is over
+     * @throws IOException On read error or malformed input
+     */
+    Token next() throws IOException {
+        int c;
+        for (;;) {
+            c = read();
+            if (c<0) return Token.EOF;
+            if (c==',') { expectName = depth>0 && stack[depth-1]=='{'; continue; }
+            if (c==':') { expectName = false; continue; }
+            if (c!=' ' && c!='\n' && c!='\r' && c!='\t') break;
+        }
+        switch (c) {
+            case '{': push('{'); expectName = true; return Token.BEGIN_OBJECT;
+            case '[': push('['); expectName = false; return Token.BEGIN_ARRAY;
+            case '}': pop('{'); expectName = false; return Token.END_OBJECT;
+            case ']': pop('['); expectName = false; return Token.END_ARRAY;
+            case '"':
+                readString();
+                if (expectName) { expectName = false; return Token.NAME; }
+                return Token.STRING;
+            default:
+                readLiteral((char) c);
+                return Token.LITERAL;
+        }
+    }
+
+    /**
+     * Skips value following just read NAME, including nested objects and arrays
+     *
+     * @throws IOException On read error or malformed input
+     */
+    void skipValue() throws IOException {
+        Token t = next();
+        if (t==Token.BEGIN_OBJECT || t==Token.BEGIN_ARRAY) {
+            int level = depth - 1;
+            while (depth>level) {
+                if (next()==Token.EOF) throw new IOException("Unexpected end of JSON");
+            }
+        }
+    }
+
+    /**
+     * @return Nesting level, 1 inside top-level object
+     */
+    int depth() { return depth; }
+
+    /**
+     * Compares text of current NAME, STRING or LITERAL token without creating String
+     *
+     * @param s String to compare with
+     * @return true if equal
+     */
+    boolean textEquals(String s) {
+        if (text.length()!=s.length()) return false;
+        for (int i = 0; i < s.length(); i++) if (text.charAt(i)!=s.charAt(i)) return false;
+        return true;
+    }
+
+    /**
+     * @return Text of current token as new String
+     */
+    String text() { return text.toString(); }
+
+    /**
+     * Parses text of current token as non-negative decimal, either "12" or 12
+     *
+     * @return Parsed value, or -1 if text is not a number
+     */
+    int intValue() {
+        if (text.length()==0 || text.length()>9) return -1;
+        int v = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char ch = text.charAt(i);
+            if (ch<'0' || ch>'9') return -1;
+            v = v*10 + (ch - '0');
+        }
+        return v;
+    }
+
+    private int read() throws IOException {
+        int c = peek();
+        if (c>=0) pos++;
+        return c;
+    }
+
+    private int peek() throws IOException {
+        if (pos==limit) {
+            limit = in.read(buf, 0, buf.length);
+            pos = 0;
+            if (limit<=0) { limit = 0; return -1; }
+        }
+        return buf[pos];
+    }
+
+    private void push(char c) throws IOException {
+        if (depth==MAX_DEPTH) throw new IOException("JSON nested too deep");
+        stack[depth++] = c;
+    }
+
+    private void pop(char c) throws IOException {
+        if (depth==0 || stack[depth-1]!=c) throw new IOException("Unbalanced JSON");
+        depth--;
+    }
+
+    private void append(char c) throws IOException {
+        if (text.length()==MAX_TEXT) throw new IOException("JSON token too long");
+        text.append(c);
+    }
+
+    private void readString() throws IOException {
+        text.setLength(0);
+        for (;;) {
+            int c = read();
+            if (c<0) throw new IOException("Unterminated JSON string");
+            if (c=='"') return;
+            if (c=='\\') {
+                int e = read();
+                switch (e) {
+                    case 'n': c = '\n'; break;
+                    case 't': c = '\t'; break;
+                    case 'r': c = '\r'; break;
+                    case 'b': c = '\b'; break;
+                    case 'f': c = '\f'; break;
+                    case 'u':
+                        c = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int h = Character.digit(read(), 16);
+                            if (h<0) throw new IOException("Bad \\u escape in JSON string");
+                            c = (c<<4) | h;
+                        }
+                        break;
+                    case '"': case '\\': case '/': c = e; break;
+                    default: throw new IOException("Bad escape in JSON string");
+                }
+            }
+            append((char) c);
+        }
+    }
+
+    private void readLiteral(char first) throws IOException {
+        text.setLength(0);
+        append(first);
+        for (;;) {
+            int c = peek();
+            if (c<0 || isDelimiter((char) c)) return;
+            pos++;
+            append((char) c);
+        }
+    }
+
+    private static boolean isDelimiter(char c) {
+        return c==',' || c=='}' || c==']' || c==':' || c==' ' || c=='\n' || c=='\r' || c=='\t';
+    }
+}
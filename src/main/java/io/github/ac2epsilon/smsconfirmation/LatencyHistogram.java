@@ -0,0 +1,87 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log-linear latency histogram: every power of two of nanoseconds is split in 16 equal buckets,
+ * so any percentile is off by no more then 1/16 of its value. Fixed array of atomic counters,
+ * recording never allocates nor locks. Covers 1ns up to about 18 minutes, longer values go to last bucket.
+ */
+class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1<<SUB_BITS;
+    private static final int MAX_EXP = 40;
+    private static final int BUCKETS = (MAX_EXP - SUB_BITS + 2)*SUB;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * @param nanos Duration to record, negative counts as 0
+     */
+    void record(long nanos) {
+        if (nanos<0) nanos = 0;
+        counts.incrementAndGet(bucket(nanos));
+        total.increment();
+        sumNanos.add(nanos);
+        long max = maxNanos.get();
+        while (nanos>max && !maxNanos.compareAndSet(max, nanos)) max = maxNanos.get();
+    }
+
+    /**
+     * Records time passed since start
+     *
+     * @param startNanos Value of System.nanoTime() taken at start
+     */
+    void since(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    private static int bucket(long v) {
+        if (v<SUB) return (int) v;
+        int exp = 63 - Long.numberOfLeadingZeros(v); // >= SUB_BITS
+        if (exp>MAX_EXP) return BUCKETS - 1;
+        int sub = (int) (v>>>(exp - SUB_BITS)) & (SUB - 1);
+        return (exp - SUB_BITS + 1)*SUB + sub;
+    }
+
+    /** @return Upper bound of bucket values */
+    private static long upper(int bucket) {
+        if (bucket<SUB) return bucket;
+        int exp = bucket/SUB + SUB_BITS - 1;
+        long sub = bucket%SUB;
+        return ((SUB + sub + 1)<<(exp - SUB_BITS)) - 1;
+    }
+
+    long count() { return total.sum(); }
+
+    long maxNanos() { return maxNanos.get(); }
+
+    long meanNanos() {
+        long n = total.sum();
+        return n==0 ? 0 : sumNanos.sum()/n;
+    }
+
+    /**
+     * @param quantile From 0 to 1, e.g. 0.99
+     * @return Upper bound of bucket, where given share of recorded values ends, 0 if nothing recorded.
+     *         Counters are read one by one while others may record, so value is approximate anyway
+     */
+    long percentileNanos(double quantile) {
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) n += counts.get(i);
+        if (n==0) return 0;
+        long rank = (long) Math.ceil(quantile*n);
+        if (rank<1) rank = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen>=rank) return Math.min(upper(i), maxNanos.get());
+        }
+        return maxNanos.get();
+    }
+}
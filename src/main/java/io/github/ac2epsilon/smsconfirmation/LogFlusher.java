@@ -0,0 +1,82 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import com.sleepycat.je.Environment;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Background thread, which fsyncs JE log for writes committed without sync. Syncs every interval,
+ * or earlier, as soon as approximate amount of unsynced data grows over threshold.
+ */
+class LogFlusher implements Runnable {
+    private final Environment env;
+    private final long intervalMs;
+    private final long thresholdBytes;
+    private final AtomicLong unsynced = new AtomicLong();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * @param env Environment to flush
+     * @param intervalMs Sync period, 0 to sync by threshold only
+     * @param thresholdBytes Unsynced data to trigger early sync, 0 to sync by interval only
+     */
+    LogFlusher(Environment env, long intervalMs, long thresholdBytes) {
+        this.env = env;
+        this.intervalMs = intervalMs;
+        this.thresholdBytes = thresholdBytes;
+        thread = new Thread(this, "sms-log-flusher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Accounts write committed without sync
+     *
+     * @param bytes Approximate size of written record
+     */
+    void written(long bytes) {
+        long total = unsynced.addAndGet(bytes);
+        if (thresholdBytes>0 && total>=thresholdBytes && total - bytes<thresholdBytes) LockSupport.unpark(thread);
+    }
+
+    /**
+     * Accounts write committed with sync, which has synced all previous writes as well
+     */
+    void synced() {
+        unsynced.set(0);
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            if (intervalMs>0) LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(intervalMs));
+            else LockSupport.park(this);
+            flush();
+        }
+    }
+
+    private void flush() {
+        if (unsynced.getAndSet(0)==0) return;
+        try {
+            env.flushLog(true);
+        } catch (RuntimeException e) { // environment is invalid, nothing to flush anymore
+            e.printStackTrace();
+            running = false;
+        }
+    }
+
+    /**
+     * Stops thread and syncs whatever is left
+     */
+    void close() {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(5000);
+        } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+        flush();
+    }
+}
@@ -0,0 +1,131 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * SMS text with ~ signs to be replaced by code, split once at compile time. Every part of text is
+ * also kept URL-encoded, so transports building form bodies (NexmoTransport) just copy bytes around
+ * the code instead of encoding whole text for every SMS. Immutable and thread-safe.
+ * <pre>
+ *     MessageTemplate welcome = MessageTemplate.compile("Welcome to Acme, your code: ~");
+ *     sms.send(phone, welcome);
+ * </pre>
+ */
+public final class MessageTemplate {
+    private final String source;
+    private final String[] parts;    // text around placeholders, one more then placeholders
+    private final byte[][] encoded;  // the same, URL-encoded UTF-8
+    private final int length;        // of all parts together
+    private final int encodedLength;
+
+    private MessageTemplate(String source, String[] parts) {
+        this.source = source;
+        this.parts = parts;
+        this.encoded = new byte[parts.length][];
+        int n = 0, e = 0;
+        for (int i = 0; i < parts.length; i++) {
+            encoded[i] = urlEncoded(parts[i]);
+            n += parts[i].length();
+            e += encoded[i].length;
+        }
+        this.length = n;
+        this.encodedLength = e;
+    }
+
+    /**
+     * @param template Message text, every ~ sign of which is replaced by code
+     * @return Compiled template
+     * @throws IllegalArgumentException If template has no ~ sign
+     */
+    public static MessageTemplate compile(String template) {
+        if (template.indexOf('~')<0) throw new IllegalArgumentException("SMS message should include ~ sign");
+        return new MessageTemplate(template, template.split("~", -1));
+    }
+
+    /**
+     * @return Template of ready text without placeholders, so any code is ignored
+     */
+    static MessageTemplate text(String text) {
+        return new MessageTemplate(text, new String[] {text});
+    }
+
+    /**
+     * @return Text template was compiled from
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * @param code Code to put in place of every ~ sign
+     * @return SMS text
+     */
+    public String format(String code) {
+        if (parts.length==1) return parts[0];
+        char[] text = new char[length + code.length()*(parts.length - 1)];
+        int pos = 0;
+        for (int i = 0; i < parts.length; i++) {
+            if (i>0) {
+                code.getChars(0, code.length(), text, pos);
+                pos += code.length();
+            }
+            parts[i].getChars(0, parts[i].length(), text, pos);
+            pos += parts[i].length();
+        }
+        return new String(text);
+    }
+
+    /**
+     * @param code URL-encoded code
+     * @return Size of encodeTo() output
+     */
+    int encodedLength(byte[] code) {
+        return encodedLength + code.length*(parts.length - 1);
+    }
+
+    /**
+     * Writes URL-encoded text with code in place of ~ signs
+     *
+     * @param buf Buffer with at least encodedLength(code) bytes from pos
+     * @param pos Where to start
+     * @param code URL-encoded code, digits are just ASCII
+     * @return Position after written text
+     */
+    int encodeTo(byte[] buf, int pos, byte[] code) {
+        for (int i = 0; i < encoded.length; i++) {
+            if (i>0) {
+                System.arraycopy(code, 0, buf, pos, code.length);
+                pos += code.length;
+            }
+            System.arraycopy(encoded[i], 0, buf, pos, encoded[i].length);
+            pos += encoded[i].length;
+        }
+        return pos;
+    }
+
+    /**
+     * @return application/x-www-form-urlencoded form of UTF-8 value, without encoder for plain ASCII
+     * letters and digits, e.g. phones and codes
+     */
+    static byte[] urlEncoded(String value) {
+        int n = value.length();
+        byte[] plain = new byte[n];
+        for (int i = 0; i < n; i++) {
+            char c = value.charAt(i);
+            if ((c>='0' && c<='9') || (c>='a' && c<='z') || (c>='A' && c<='Z')) plain[i] = (byte) c;
+            else {
+                try {
+                    return URLEncoder.encode(value, "UTF-8").getBytes(StandardCharsets.US_ASCII);
+                } catch (UnsupportedEncodingException e) { throw new IllegalStateException(e); }
+            }
+        }
+        return plain;
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+}
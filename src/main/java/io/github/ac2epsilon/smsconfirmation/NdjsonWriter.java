@@ -0,0 +1,33 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+/**
+ * Writes confirmations as newline-delimited JSON, one object per line:
+ * <pre>
+ * {"phone":"380501234567","code":"1234","issued":"...","hash":null,"created":1485900000000,"expires":1486000000000}
+ * </pre>
+ * created and expires are epoch millis, created is 0 for records of older versions, expires is 0 for
+ * permanent records
+ */
+class NdjsonWriter extends ExportWriter {
+    private final StringBuilder line = new StringBuilder(256);
+
+    NdjsonWriter(Path file) throws IOException {
+        super(file);
+    }
+
+    @Override
+    void encode(Confirmation c) throws IOException {
+        line.setLength(0);
+        line.append("{\"phone\":").append(SmsServer.quote(c.id))
+            .append(",\"code\":").append(SmsServer.quote(c.code))
+            .append(",\"issued\":").append(SmsServer.quote(c.issued))
+            .append(",\"hash\":").append(SmsServer.quote(c.hash))
+            .append(",\"created\":").append(c.created)
+            .append(",\"expires\":").append(c.expires).append("}\n");
+        put(line.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
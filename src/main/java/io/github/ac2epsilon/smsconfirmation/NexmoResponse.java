@@ -0,0 +1,157 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Typed result of rest.nexmo.com/sms/json call. Long text is split by Nexmo into several parts,
+ * every part comes with own status, so SMS counts as sent only when all parts have status 0.
+ */
+public class NexmoResponse {
+    /**
+     * One part of sent SMS
+     */
+    public static class Message {
+        private final int status;
+        private final String messageId;
+        private final String errorText;
+
+        Message(int status, String messageId, String errorText) {
+            this.status = status;
+            this.messageId = messageId;
+            this.errorText = errorText;
+        }
+
+        /** @return Nexmo status, 0 for success, -1 if response had no status */
+        public int getStatus() { return status; }
+
+        /** @return Nexmo message id, or null if part was not accepted */
+        public String getMessageId() { return messageId; }
+
+        /** @return Error description for non-zero status, or null */
+        public String getErrorText() { return errorText; }
+    }
+
+    private final int messageCount;
+    private final List<Message> messages;
+
+    NexmoResponse(int messageCount, List<Message> messages) {
+        this.messageCount = messageCount;
+        this.messages = Collections.unmodifiableList(messages);
+    }
+
+    /**
+     * @return Number of parts, as reported by Nexmo, or -1 if not reported
+     */
+    public int getMessageCount() { return messageCount; }
+
+    /**
+     * @return Parts of sent SMS, in order of response
+     */
+    public List<Message> getMessages() { return messages; }
+
+    /**
+     * @return true if Nexmo accepted every part of SMS
+     */
+    public boolean isSuccess() {
+        if (messages.isEmpty()) return false;
+        if (messageCount>=0 && messageCount!=messages.size()) return false;
+        for (Message m : messages) if (m.status!=0) return false;
+        return true;
+    }
+
+    /**
+     * @return true if SMS is refused because of its content (missing or invalid parameters, invalid or
+     *         too long message, barred number), not because of Nexmo or account state
+     */
+    public boolean isRejected() {
+        for (Message m : messages) {
+            switch (m.status) {
+                case 2: case 3: case 6: case 7: case 12: return true;
+                default:
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return Description of first failed part, or null if all parts are sent
+     */
+    public String getErrorText() {
+        if (messages.isEmpty()) return "Empty response from Nexmo";
+        for (Message m : messages)
+            if (m.status!=0) return "Nexmo status " + m.status + (m.errorText!=null ? ": " + m.errorText : "");
+        if (messageCount>=0 && messageCount!=messages.size())
+            return "Nexmo reported " + messageCount + " parts, got " + messages.size();
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "NexmoResponse: [parts="+messageCount+", "+(isSuccess() ? "sent" : getErrorText())+"]";
+    }
+
+    /**
+     * Reads response incrementally from stream, picking message-count and status, message-id,
+     * error-text of every part. Unknown fields are skipped without building Strings.
+     * Stream is read up to end of top-level object, caller still has to consume and close it.
+     *
+     * @param is Response body, UTF-8 JSON
+     * @return Parsed response
+     * @throws IOException On read error or when body is not JSON object
+     */
+    static NexmoResponse parse(InputStream is) throws IOException {
+        JsonScanner json = new JsonScanner(new InputStreamReader(is, StandardCharsets.UTF_8));
+        if (json.next()!=JsonScanner.Token.BEGIN_OBJECT) throw new IOException("Nexmo response is not JSON object");
+        int count = -1;
+        List<Message> messages = new ArrayList<>(1);
+        int topStatus = -1;
+        String topError = null;
+        for (JsonScanner.Token t = json.next(); t!=JsonScanner.Token.END_OBJECT; t = json.next()) {
+            if (t!=JsonScanner.Token.NAME) throw new IOException("Malformed Nexmo response");
+            if (json.textEquals("message-count")) {
+                json.next();
+                count = json.intValue();
+            } else if (json.textEquals("messages")) {
+                if (json.next()!=JsonScanner.Token.BEGIN_ARRAY) throw new IOException("Malformed Nexmo messages");
+                for (t = json.next(); t==JsonScanner.Token.BEGIN_OBJECT; t = json.next())
+                    messages.add(parseMessage(json));
+                if (t!=JsonScanner.Token.END_ARRAY) throw new IOException("Malformed Nexmo messages");
+            } else if (json.textEquals("status")) { // some errors come as single top-level status
+                json.next();
+                topStatus = json.intValue();
+            } else if (json.textEquals("error-text")) {
+                json.next();
+                topError = json.text();
+            } else json.skipValue();
+        }
+        if (messages.isEmpty() && (topStatus>=0 || topError!=null))
+            messages.add(new Message(topStatus, null, topError));
+        return new NexmoResponse(count, messages);
+    }
+
+    private static Message parseMessage(JsonScanner json) throws IOException {
+        int status = -1;
+        String messageId = null;
+        String errorText = null;
+        for (JsonScanner.Token t = json.next(); t!=JsonScanner.Token.END_OBJECT; t = json.next()) {
+            if (t!=JsonScanner.Token.NAME) throw new IOException("Malformed Nexmo message");
+            if (json.textEquals("status")) {
+                json.next();
+                status = json.intValue();
+            } else if (json.textEquals("message-id")) {
+                json.next();
+                messageId = json.text();
+            } else if (json.textEquals("error-text")) {
+                json.next();
+                errorText = json.text();
+            } else json.skipValue();
+        }
+        return new Message(status, messageId, errorText);
+    }
+}
@@ -0,0 +1,149 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * SMS through rest.nexmo.com/sms/json, on pooled connections of HttpClientUtils. Form body is put
+ * together from bytes encoded in advance: credentials once per transport, sender once per its change,
+ * text parts once per MessageTemplate, so only phone and code are new for every SMS.
+ */
+public class NexmoTransport implements SmsTransport {
+    private static final ContentType FORM = ContentType.create("application/x-www-form-urlencoded", StandardCharsets.UTF_8);
+    private static final byte[] TEXT = "&text=".getBytes(StandardCharsets.US_ASCII);
+    private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[512]);
+
+    /** Encoded "from=...&to=" of the last sender, as it is the same for every SMS of SmsConfirmation */
+    private static final class From {
+        final String from;
+        final byte[] encoded;
+
+        From(String from) {
+            this.from = from;
+            this.encoded = concat("from=".getBytes(StandardCharsets.US_ASCII), MessageTemplate.urlEncoded(from),
+                "&to=".getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    private final byte[] credentials; // "&api_key=...&api_secret=..."
+    private final HttpClientUtils client = HttpClientUtils.getInstance(5000, 30000);
+    private volatile From lastFrom = new From("");
+    private volatile String baseUrl = "https://rest.nexmo.com/sms/json";
+    private String name = "nexmo";
+
+    /**
+     * @param apiKey API_KEY provided by nexmo.com
+     * @param apiSecret API_SECRET provided by nexmo.com
+     */
+    public NexmoTransport(String apiKey, String apiSecret) {
+        this.credentials = concat("&api_key=".getBytes(StandardCharsets.US_ASCII), MessageTemplate.urlEncoded(apiKey),
+            "&api_secret=".getBytes(StandardCharsets.US_ASCII), MessageTemplate.urlEncoded(apiSecret));
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int n = 0;
+        for (byte[] p : parts) n += p.length;
+        byte[] all = new byte[n];
+        n = 0;
+        for (byte[] p : parts) {
+            System.arraycopy(p, 0, all, n, p.length);
+            n += p.length;
+        }
+        return all;
+    }
+
+    /**
+     * Overrides Nexmo endpoint, e.g. to use regional one or local stub
+     *
+     * @param baseUrl Full URL of sms/json API
+     * @return this
+     */
+    public NexmoTransport setBaseUrl(String baseUrl) {
+        if (baseUrl==null) throw new IllegalArgumentException("baseUrl can not be null");
+        this.baseUrl = baseUrl;
+        return this;
+    }
+
+    /**
+     * @param name Name in metrics, to tell several Nexmo accounts or regions apart, "nexmo" by default
+     * @return this
+     */
+    public NexmoTransport setName(String name) {
+        this.name = name;
+        return this;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return Snapshot of connection pool this transport sends through
+     */
+    HttpPoolStats getPoolStats() {
+        return client.getPoolStats();
+    }
+
+    @Override
+    public void send(String from, String to, String text) throws IOException, SmsException {
+        send(from, to, MessageTemplate.text(text), "");
+    }
+
+    @Override
+    public void send(String from, String to, MessageTemplate template, String code) throws IOException, SmsException {
+        From f = lastFrom;
+        if (!f.from.equals(from)) lastFrom = f = new From(from);
+        byte[] phone = MessageTemplate.urlEncoded(to);
+        byte[] encodedCode = MessageTemplate.urlEncoded(code);
+        int length = f.encoded.length + phone.length + TEXT.length + template.encodedLength(encodedCode) + credentials.length;
+        byte[] body = BUFFER.get();
+        if (body.length<length) BUFFER.set(body = new byte[Math.max(length, body.length*2)]);
+        int pos = put(body, 0, f.encoded);
+        pos = put(body, pos, phone);
+        pos = put(body, pos, TEXT);
+        pos = template.encodeTo(body, pos, encodedCode);
+        pos = put(body, pos, credentials);
+
+        HttpPost method = new HttpPost(baseUrl);
+        // buffer of this thread is not touched until execute() is done with request, retries included
+        method.setEntity(new ByteArrayEntity(body, 0, pos, FORM));
+
+        CloseableHttpResponse httpResponse = null;
+        try {
+            httpResponse = client.getHttpClient().execute(method);
+            int status = httpResponse.getStatusLine().getStatusCode();
+            if (status != 200) {
+                throw new SmsException("Non-200 response [" + status + "] from Nexmo-HTTPS");
+            }
+            NexmoResponse result;
+            try {
+                result = NexmoResponse.parse(httpResponse.getEntity().getContent());
+            } catch (IOException e) { // answer came, but it is not Nexmo JSON, so SMS is not known to be sent
+                throw new SmsException("Malformed response from Nexmo-HTTPS: " + e.getMessage());
+            }
+            if (!result.isSuccess()) {
+                throw new SmsException(result.getErrorText(), result.isRejected());
+            }
+        } catch (IOException e) {
+            method.abort();
+            throw e;
+        } finally {
+            if (httpResponse!=null) { // consume rest of body, so connection goes back to pool
+                EntityUtils.consumeQuietly(httpResponse.getEntity());
+                try { httpResponse.close(); } catch (IOException e) {}
+            }
+        }
+    }
+
+    private static int put(byte[] buf, int pos, byte[] bytes) {
+        System.arraycopy(bytes, 0, buf, pos, bytes.length);
+        return pos + bytes.length;
+    }
+}
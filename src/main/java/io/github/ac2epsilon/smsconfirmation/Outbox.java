@@ -0,0 +1,96 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import com.sleepycat.bind.tuple.TupleInput;
+import com.sleepycat.bind.tuple.TupleOutput;
+import com.sleepycat.je.*;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records of outbox databases. Every shard has "outbox#namespace" of SMS to deliver, next to the
+ * confirmations themselves, so code and its SMS are committed in one transaction, and
+ * "outbox-dead#namespace" of given up ones, kept for a week. Key is due time and sequence number,
+ * both big-endian, so cursor from the start meets due entries first.
+ */
+class Outbox {
+    static final String PREFIX = "outbox#";
+    static final String DEAD_PREFIX = "outbox-dead#";
+    private static final WriteOptions DEAD_TTL = new WriteOptions().setTTL(7, TimeUnit.DAYS);
+
+    // microseconds of start, so numbers of a restarted JVM do not meet those of previous run
+    private static final AtomicLong SEQ = new AtomicLong(System.currentTimeMillis()*1000);
+
+    private Outbox() {}
+
+    static long nextSeq() {
+        return SEQ.incrementAndGet();
+    }
+
+    static DatabaseEntry key(long due, long seq) {
+        TupleOutput out = new TupleOutput(new byte[16]);
+        out.writeLong(due ^ Long.MIN_VALUE); // sign flip keeps order of signed longs in unsigned bytes
+        out.writeLong(seq);
+        return new DatabaseEntry(out.getBufferBytes(), 0, out.getBufferLength());
+    }
+
+    static DatabaseEntry data(OutboxEntry e) {
+        TupleOutput out = new TupleOutput(new byte[64 + e.text.length()*2]);
+        out.writeString(e.phone);
+        out.writeString(e.code);
+        out.writeString(e.text);
+        out.writePackedInt(e.attempts);
+        out.writePackedLong(e.created);
+        out.writeString(e.lastError);
+        return new DatabaseEntry(out.getBufferBytes(), 0, out.getBufferLength());
+    }
+
+    static OutboxEntry decode(DatabaseEntry key, DatabaseEntry data) {
+        TupleInput k = new TupleInput(key.getData(), key.getOffset(), key.getSize());
+        long due = k.readLong() ^ Long.MIN_VALUE;
+        long seq = k.readLong();
+        TupleInput in = new TupleInput(data.getData(), data.getOffset(), data.getSize());
+        return new OutboxEntry(due, seq, in.readString(), in.readString(), in.readString(),
+            in.readPackedInt(), in.readPackedLong(), in.readString());
+    }
+
+    static void put(Database db, Transaction txn, OutboxEntry e) {
+        db.put(txn, key(e.due, e.seq), data(e), Put.OVERWRITE, null);
+    }
+
+    static void putDead(Database db, Transaction txn, OutboxEntry e) {
+        db.put(txn, key(e.due, e.seq), data(e), Put.OVERWRITE, DEAD_TTL);
+    }
+
+    static void delete(Database db, Transaction txn, OutboxEntry e) {
+        db.delete(txn, key(e.due, e.seq), null);
+    }
+
+    /**
+     * Reads entries in key order without locking them
+     *
+     * @param db Outbox or dead letters
+     * @param until Max due time, Long.MAX_VALUE for all
+     * @param limit Max entries to add
+     * @param skip Sequence numbers to pass over, e.g. being delivered right now
+     * @param out List to add entries to
+     */
+    static void scan(Database db, long until, int limit, Set<Long> skip, List<OutboxEntry> out) {
+        Cursor cursor = db.openCursor(null, CursorConfig.READ_COMMITTED);
+        try {
+            DatabaseEntry key = new DatabaseEntry();
+            DatabaseEntry data = new DatabaseEntry();
+            int added = 0;
+            for (OperationResult r = cursor.get(key, data, Get.FIRST, null); r!=null && added<limit;
+                 r = cursor.get(key, data, Get.NEXT, null)) {
+                OutboxEntry e = decode(key, data);
+                if (e.due>until) break;
+                if (skip.contains(e.seq)) continue;
+                out.add(e);
+                added++;
+            }
+        } finally { cursor.close(); }
+    }
+}
@@ -0,0 +1,96 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+/**
+ * Settings of durable outbox, see {@link SmsConfirmation#setOutboxConfig(OutboxConfig)}.
+ * Setters return this, so config can be chained the same way as BerkeleyDB configs.
+ */
+public class OutboxConfig {
+    private int batchSize = 100;
+    private int concurrency = 16;
+    private long pollIntervalMillis = 200;
+    private long initialBackoffMillis = 1000;
+    private long maxBackoffMillis = 60000;
+    private int maxAttempts = 8;
+    private long maxAgeMillis = 10*60*1000;
+
+    /**
+     * @param batchSize Max entries taken from outbox by one scan, default 100
+     * @return this
+     */
+    public OutboxConfig setBatchSize(int batchSize) {
+        if (batchSize<1) throw new IllegalArgumentException("batchSize must be positive");
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    public int getBatchSize() { return batchSize; }
+
+    /**
+     * @param concurrency How many SMS can be in flight at once, default 16
+     * @return this
+     */
+    public OutboxConfig setConcurrency(int concurrency) {
+        if (concurrency<1) throw new IllegalArgumentException("concurrency must be positive");
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    public int getConcurrency() { return concurrency; }
+
+    /**
+     * @param millis How often to look for entries coming due, when nothing wakes dispatcher up, default 200
+     * @return this
+     */
+    public OutboxConfig setPollIntervalMillis(long millis) {
+        if (millis<1) throw new IllegalArgumentException("millis must be positive");
+        this.pollIntervalMillis = millis;
+        return this;
+    }
+
+    public long getPollIntervalMillis() { return pollIntervalMillis; }
+
+    /**
+     * Delay before n-th retry is initial*2^(n-1), capped by max, and then randomly cut by up to half,
+     * so entries failed together do not retry together
+     *
+     * @param initialMillis Delay before first retry, default 1000
+     * @param maxMillis Longest delay, default 60000
+     * @return this
+     */
+    public OutboxConfig setBackoffMillis(long initialMillis, long maxMillis) {
+        if (initialMillis<1 || maxMillis<initialMillis)
+            throw new IllegalArgumentException("Need 0 < initialMillis <= maxMillis");
+        this.initialBackoffMillis = initialMillis;
+        this.maxBackoffMillis = maxMillis;
+        return this;
+    }
+
+    public long getInitialBackoffMillis() { return initialBackoffMillis; }
+
+    public long getMaxBackoffMillis() { return maxBackoffMillis; }
+
+    /**
+     * @param maxAttempts Failed attempts, after which SMS goes to dead letters, default 8
+     * @return this
+     */
+    public OutboxConfig setMaxAttempts(int maxAttempts) {
+        if (maxAttempts<1) throw new IllegalArgumentException("maxAttempts must be positive");
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    public int getMaxAttempts() { return maxAttempts; }
+
+    /**
+     * @param millis Age, after which SMS is not retried anymore and goes to dead letters, as code in it
+     *               is hardly awaited by anyone, default 10 minutes
+     * @return this
+     */
+    public OutboxConfig setMaxAgeMillis(long millis) {
+        if (millis<1) throw new IllegalArgumentException("millis must be positive");
+        this.maxAgeMillis = millis;
+        return this;
+    }
+
+    public long getMaxAgeMillis() { return maxAgeMillis; }
+}
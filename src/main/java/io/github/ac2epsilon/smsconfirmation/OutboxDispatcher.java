@@ -0,0 +1,181 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Background delivery of outbox. Single thread scans due entries and hands them to executor, up to
+ * concurrency limit; every entry is then deleted on success, or moved to later due time, or to
+ * dead letters. Entry is deleted only after SMS is sent, so crash in between sends it once more:
+ * delivery is at-least-once. Before sending, entry is checked against stored confirmation: if code was
+ * sent again, confirmed or swept since, entry is dropped, so older code does not reach phone after newer
+ * one and does not waste retries. Outbox of namespace must be drained by one dispatcher, i.e. one
+ * SmsConfirmation with outbox on per namespace, or SMS are sent twice.
+ */
+class OutboxDispatcher implements Runnable {
+    private final String company;
+    private final SmsConfirmation sms;
+    private final BdbTools bdb;
+    private final OutboxConfig config;
+    private final SmsMetrics metrics;
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final Set<Long> inFlight = ConcurrentHashMap.newKeySet();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    final LongAdder retries = new LongAdder();
+    final LongAdder dead = new LongAdder();
+    final LongAdder superseded = new LongAdder();
+
+    OutboxDispatcher(String company, SmsConfirmation sms, BdbTools bdb, OutboxConfig config, SmsMetrics metrics) {
+        this.company = company;
+        this.sms = sms;
+        this.bdb = bdb;
+        this.config = config;
+        this.metrics = metrics;
+        this.permits = new Semaphore(config.getConcurrency());
+        ExecutorService vt = AsyncSender.virtualExecutor();
+        this.executor = vt!=null ? vt : platformExecutor(config.getConcurrency());
+        this.thread = new Thread(this, "sms-outbox-" + bdb.namespace);
+        thread.setDaemon(true);
+    }
+
+    private static ExecutorService platformExecutor(int threads) {
+        AtomicInteger n = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "sms-outbox-send-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    OutboxDispatcher start() {
+        thread.start();
+        return this;
+    }
+
+    /**
+     * Makes dispatcher look at outbox right now, e.g. after enqueue
+     */
+    void wake() {
+        LockSupport.unpark(thread);
+    }
+
+    int inFlight() {
+        return inFlight.size();
+    }
+
+    @Override
+    public void run() {
+        long poll = TimeUnit.MILLISECONDS.toNanos(config.getPollIntervalMillis());
+        while (running) {
+            int free = Math.min(permits.availablePermits(), config.getBatchSize());
+            List<OutboxEntry> due = Collections.emptyList();
+            if (free>0) {
+                try {
+                    if (bdb.isMaster()) // replica keeps copy of outbox, only master sends it
+                        due = bdb.dueOutbox(System.currentTimeMillis(), free, inFlight);
+                } catch (RuntimeException e) { // e.g. environment failure, try again later
+                    if (!running) return;
+                    e.printStackTrace();
+                }
+            }
+            for (OutboxEntry entry : due) {
+                permits.acquireUninterruptibly();
+                inFlight.add(entry.seq);
+                try {
+                    executor.execute(() -> deliver(entry));
+                } catch (RuntimeException e) { // executor is shut down
+                    inFlight.remove(entry.seq);
+                    permits.release();
+                    return;
+                }
+            }
+            // full batch means there may be more due already, otherwise wait for enqueue, completion or poll
+            if (due.size()<free || free==0) LockSupport.parkNanos(this, poll);
+        }
+    }
+
+    private void deliver(OutboxEntry entry) {
+        try {
+            Confirmation current = bdb.get(entry.phone);
+            if (current==null || current.hash!=null || !current.code.equals(entry.code)) {
+                bdb.outboxDone(entry);
+                superseded.increment();
+                return;
+            }
+            String error;
+            boolean permanent = false;
+            long start = System.nanoTime();
+            try {
+                MessageTemplate template = entry.text.indexOf('~')>=0 ? sms.template(entry.text) : MessageTemplate.text(entry.text);
+                sms.getTransport().send(company, entry.phone, template, entry.code);
+                metrics.sent.increment();
+                error = null;
+            } catch (IOException e) {
+                metrics.ioErrors.increment();
+                error = "SMS gateway unreachable: " + e.getMessage();
+            } catch (SmsException e) {
+                metrics.gatewayErrors.increment();
+                error = e.getMessage();
+                permanent = e.isPermanent();
+            } catch (RuntimeException e) {
+                error = String.valueOf(e);
+            } finally {
+                metrics.gateway.since(start);
+            }
+            if (error==null) bdb.outboxDone(entry);
+            else failed(entry, error, permanent);
+        } catch (RuntimeException e) { // entry stays as it was and is taken again
+            e.printStackTrace();
+        } finally {
+            inFlight.remove(entry.seq);
+            permits.release();
+            wake();
+        }
+    }
+
+    private void failed(OutboxEntry entry, String error, boolean permanent) {
+        long now = System.currentTimeMillis();
+        int attempts = entry.attempts + 1;
+        boolean giveUp = permanent || attempts>=config.getMaxAttempts() || now - entry.created>=config.getMaxAgeMillis();
+        long due = giveUp ? now : now + backoff(attempts);
+        OutboxEntry next = new OutboxEntry(due, entry.seq, entry.phone, entry.code, entry.text, attempts, entry.created, error);
+        bdb.outboxFailed(entry, next, giveUp);
+        if (giveUp) dead.increment();
+        else retries.increment();
+    }
+
+    private long backoff(int attempts) {
+        long delay = config.getInitialBackoffMillis() << Math.min(attempts - 1, 30);
+        if (delay<=0 || delay>config.getMaxBackoffMillis()) delay = config.getMaxBackoffMillis();
+        return delay - ThreadLocalRandom.current().nextLong(delay/2 + 1);
+    }
+
+    /**
+     * Stops scanning and waits for SMS in flight. Undelivered entries stay in outbox for next start
+     *
+     * @param millis How long to wait for running deliveries
+     */
+    void shutdown(long millis) {
+        running = false;
+        wake();
+        try {
+            thread.join(millis);
+            executor.shutdown();
+            executor.awaitTermination(millis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+    }
+}
@@ -0,0 +1,46 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+/**
+ * SMS waiting in outbox for delivery, or given up and kept in dead letters, see SmsConfirmation.setOutboxConfig()
+ */
+public class OutboxEntry {
+    final long due;   // when to try next, or when given up for dead letter
+    final long seq;   // unique within namespace
+    final String phone;
+    final String code;
+    final String text;  // template source with ~ for code, entries queued before were stored as ready text
+    final int attempts;
+    final long created;
+    final String lastError;
+
+    OutboxEntry(long due, long seq, String phone, String code, String text, int attempts, long created, String lastError) {
+        this.due = due;
+        this.seq = seq;
+        this.phone = phone;
+        this.code = code;
+        this.text = text;
+        this.attempts = attempts;
+        this.created = created;
+        this.lastError = lastError;
+    }
+
+    /** @return Phone to send to */
+    public String getPhone() { return phone; }
+
+    /** @return Failed delivery attempts so far */
+    public int getAttempts() { return attempts; }
+
+    /** @return Epoch millis, when code was issued by send() */
+    public long getCreated() { return created; }
+
+    /** @return Epoch millis of next attempt, for dead letter time it was given up */
+    public long getDue() { return due; }
+
+    /** @return Error of last failed attempt, or null */
+    public String getLastError() { return lastError; }
+
+    @Override
+    public String toString() {
+        return "OutboxEntry: [" + phone + "-" + attempts + "-" + lastError + "]";
+    }
+}
@@ -0,0 +1,32 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed set of locks, phone is mapped to one of them by hash. Makes read-modify-write of one phone
+ * linearizable, while different phones almost never wait for each other, and memory stays constant
+ * however many phones there are.
+ */
+class PhoneLocks {
+    private final ReentrantLock[] stripes;
+    private final int mask;
+
+    /**
+     * @param stripes Number of locks, rounded up to power of two
+     */
+    PhoneLocks(int stripes) {
+        int n = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        this.stripes = new ReentrantLock[n];
+        for (int i = 0; i < n; i++) this.stripes[i] = new ReentrantLock();
+        this.mask = n - 1;
+    }
+
+    /**
+     * @param phone Phone number
+     * @return Lock guarding the phone, shared with some other phones
+     */
+    ReentrantLock of(String phone) {
+        int h = phone.hashCode();
+        return stripes[(h ^ (h>>>16)) & mask];
+    }
+}
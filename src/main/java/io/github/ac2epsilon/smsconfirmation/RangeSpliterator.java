@@ -0,0 +1,138 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator over key range of one store, reading it in chunks with ConfirmationStore.range(),
+ * each from its own short cursor, and resuming after last read key. So no cursor or lock is held
+ * while stream consumer works, and records written meanwhile may or may not be seen.
+ * <br><br>
+ * Splits are made on phone prefixes, before reading starts: range is cut in the middle of its
+ * digit strings, which sort the same way in DPL and COMPACT stores.
+ */
+class RangeSpliterator implements Spliterator<Confirmation> {
+    static final int CHUNK = 256;
+    private static final int MAX_DEPTH = 10;
+    private static final int POSITIONS = 12; // phone digits taken into account by split
+    private static final long BASE = 11;     // 0 ends string, 1..10 are digits
+    private static final long END = pow(BASE, POSITIONS);
+
+    private final ConfirmationStore store;
+    private final ConfirmationFilter filter;
+    private int depth;
+    private String from;
+    private boolean fromInclusive = true;
+    private final String to;
+    private final ArrayDeque<Confirmation> buffer = new ArrayDeque<>();
+    private boolean started;
+    private boolean done;
+
+    /**
+     * @param store Store to read
+     * @param from First key, null for start of store
+     * @param to Key to stop before, null for end of store
+     * @param filter Records to give out
+     */
+    RangeSpliterator(ConfirmationStore store, String from, String to, ConfirmationFilter filter) {
+        this(store, from, to, filter, 0);
+    }
+
+    private RangeSpliterator(ConfirmationStore store, String from, String to, ConfirmationFilter filter, int depth) {
+        this.store = store;
+        this.from = from;
+        this.to = to;
+        this.filter = filter;
+        this.depth = depth;
+    }
+
+    private boolean fill() {
+        if (!buffer.isEmpty()) return true;
+        if (done) return false;
+        started = true;
+        List<Confirmation> chunk = store.range(from, fromInclusive, to, CHUNK, filter);
+        if (chunk.size()<CHUNK) done = true;
+        if (chunk.isEmpty()) return false;
+        from = chunk.get(chunk.size() - 1).id;
+        fromInclusive = false;
+        buffer.addAll(chunk);
+        return true;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Confirmation> action) {
+        if (!fill()) return false;
+        action.accept(buffer.poll());
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super Confirmation> action) {
+        while (fill()) {
+            for (Confirmation c = buffer.poll(); c!=null; c = buffer.poll()) action.accept(c);
+        }
+    }
+
+    /**
+     * Gives away lower half of remaining range
+     */
+    @Override
+    public Spliterator<Confirmation> trySplit() {
+        if (started || depth>=MAX_DEPTH) return null;
+        long lo = from==null ? 0 : value(from), hi = to==null ? END : value(to);
+        if (lo<0 || hi<0) return null;
+        String mid = phone(lo + (hi - lo)/2);
+        if (mid.isEmpty() || (from!=null && mid.compareTo(from)<=0) || (to!=null && mid.compareTo(to)>=0)) return null;
+        RangeSpliterator prefix = new RangeSpliterator(store, from, mid, filter, ++depth);
+        from = mid;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        return done && buffer.isEmpty() ? 0 : Long.MAX_VALUE>>depth;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL | DISTINCT;
+    }
+
+    /**
+     * @return Phone as fraction of END, -1 if it is not digit string
+     */
+    private static long value(String phone) {
+        long v = 0;
+        for (int i = 0; i < POSITIONS; i++) {
+            int d = 0;
+            if (i<phone.length()) {
+                char c = phone.charAt(i);
+                if (c<'0' || c>'9') return -1;
+                d = c - '0' + 1;
+            }
+            v = v*BASE + d;
+        }
+        return v;
+    }
+
+    private static String phone(long value) {
+        char[] digits = new char[POSITIONS];
+        long scale = END;
+        int n = 0;
+        for (int i = 0; i < POSITIONS; i++) {
+            scale /= BASE;
+            int d = (int) (value/scale % BASE);
+            if (d==0) break;
+            digits[n++] = (char) ('0' + d - 1);
+        }
+        return new String(digits, 0, n);
+    }
+
+    private static long pow(long base, int exp) {
+        long r = 1;
+        for (int i = 0; i < exp; i++) r *= base;
+        return r;
+    }
+}
@@ -0,0 +1,83 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Send rate limits, see {@link SmsConfirmation#setRateLimitConfig(RateLimitConfig)}.
+ * By default one phone gets no more then 1 SMS per 30 seconds and 5 per hour, namespace is not limited.
+ * Setters return this, so config can be chained the same way as BerkeleyDB configs.
+ */
+public class RateLimitConfig {
+    private final List<long[]> phoneLimits = new ArrayList<>(); // {count, periodMs}
+    private double namespaceRate = 0;
+    private int namespaceBurst = 1;
+    private int maxPhones = 100000;
+
+    public RateLimitConfig() {
+        addPhoneLimit(1, 30000);
+        addPhoneLimit(5, 3600000);
+    }
+
+    /**
+     * @return Config without any limits, to turn rate limiting off
+     */
+    public static RateLimitConfig none() {
+        return new RateLimitConfig().clearPhoneLimits();
+    }
+
+    /**
+     * Drops all per-phone limits, including default ones
+     *
+     * @return this
+     */
+    public RateLimitConfig clearPhoneLimits() {
+        phoneLimits.clear();
+        return this;
+    }
+
+    /**
+     * Adds per-phone limit, all limits must allow SMS for it to be sent
+     *
+     * @param count How many SMS one phone can get within period, they can come as one burst
+     * @param periodMs Period in milliseconds
+     * @return this
+     */
+    public RateLimitConfig addPhoneLimit(int count, long periodMs) {
+        if (count<1 || periodMs<1) throw new IllegalArgumentException("count and periodMs must be positive");
+        phoneLimits.add(new long[] {count, periodMs});
+        return this;
+    }
+
+    List<long[]> getPhoneLimits() { return phoneLimits; }
+
+    /**
+     * @param perSecond Sustained SMS rate of whole namespace, usually throughput of Nexmo account, 0 for no limit
+     * @param burst How many SMS can go at once above sustained rate
+     * @return this
+     */
+    public RateLimitConfig setNamespaceRate(double perSecond, int burst) {
+        if (perSecond<0 || burst<1) throw new IllegalArgumentException("rate can not be negative, burst must be positive");
+        this.namespaceRate = perSecond;
+        this.namespaceBurst = burst;
+        return this;
+    }
+
+    public double getNamespaceRate() { return namespaceRate; }
+
+    public int getNamespaceBurst() { return namespaceBurst; }
+
+    /**
+     * @param maxPhones How many phones to track at most. Phones idle long enough to be under all limits
+     *                  are dropped first, at most once a second; while table is still full new phones are
+     *                  rate limited
+     * @return this
+     */
+    public RateLimitConfig setMaxPhones(int maxPhones) {
+        if (maxPhones<1) throw new IllegalArgumentException("maxPhones must be positive");
+        this.maxPhones = maxPhones;
+        return this;
+    }
+
+    public int getMaxPhones() { return maxPhones; }
+}
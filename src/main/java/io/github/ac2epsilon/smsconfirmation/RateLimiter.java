@@ -0,0 +1,153 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Lock-free send rate limiter after GCRA (generic cell rate algorithm), which is token bucket kept as
+ * single "theoretical arrival time" per limit instead of token count and refill timestamp.
+ * Phone state is immutable array of arrival times, replaced by CAS, so all limits of a phone
+ * change together; namespace state is one AtomicLong. Phone table is bounded: when it is full,
+ * phones idle long enough to be under all limits are swept away, as they carry no state anyway.
+ * Sweep runs at most once a second, and new phones are refused while table stays full, so flood of
+ * numbers neither costs full scan per send nor gets past phone limits.
+ */
+class RateLimiter {
+    private static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+    private final long[] interval;  // nanos between SMS at sustained rate, per phone limit
+    private final long[] tolerance; // how far ahead of schedule burst can go
+    private final long nsInterval;
+    private final long nsTolerance;
+    private final int maxPhones;
+    private final LongSupplier clock;
+    private final ConcurrentHashMap<String, AtomicReference<long[]>> phones = new ConcurrentHashMap<>();
+    private final AtomicLong nsArrival;
+    private final AtomicLong nextSweep;
+    final LongAdder allowed = new LongAdder();
+    final LongAdder phoneRejected = new LongAdder();
+    final LongAdder namespaceRejected = new LongAdder();
+    final LongAdder tableFull = new LongAdder();
+
+    RateLimiter(RateLimitConfig config) {
+        this(config, System::nanoTime);
+    }
+
+    /**
+     * @param config Limits
+     * @param clock Source of System.nanoTime() alike time, tests move it by hand
+     */
+    RateLimiter(RateLimitConfig config, LongSupplier clock) {
+        this.clock = clock;
+        List<long[]> limits = config.getPhoneLimits();
+        interval = new long[limits.size()];
+        tolerance = new long[limits.size()];
+        for (int i = 0; i < interval.length; i++) {
+            interval[i] = TimeUnit.MILLISECONDS.toNanos(limits.get(i)[1])/limits.get(i)[0];
+            tolerance[i] = interval[i]*(limits.get(i)[0] - 1);
+        }
+        nsInterval = config.getNamespaceRate()>0 ? (long) (1e9/config.getNamespaceRate()) : 0;
+        nsTolerance = nsInterval*(config.getNamespaceBurst() - 1);
+        maxPhones = config.getMaxPhones();
+        nsArrival = new AtomicLong(clock.getAsLong());
+        nextSweep = new AtomicLong(clock.getAsLong());
+    }
+
+    /**
+     * Takes one SMS from limits of phone and namespace
+     *
+     * @param phone Phone number
+     * @return 0 if SMS may go, otherwise nanoseconds until it would be allowed
+     */
+    long acquire(String phone) {
+        long now = clock.getAsLong();
+        AtomicReference<long[]> state = null;
+        long[] prev = null, next = null;
+        if (interval.length>0) {
+            state = phones.get(phone);
+            if (state==null && (state = track(phone, now))==null) {
+                tableFull.increment();
+                return Math.max(1, nextSweep.get() - now);
+            }
+            for (;;) {
+                prev = state.get();
+                next = new long[prev.length];
+                long wait = 0;
+                for (int i = 0; i < prev.length; i++) {
+                    long arrival = prev[i] - now>0 ? prev[i] : now;
+                    wait = Math.max(wait, arrival - tolerance[i] - now);
+                    next[i] = arrival + interval[i];
+                }
+                if (wait>0) {
+                    phoneRejected.increment();
+                    return wait;
+                }
+                if (state.compareAndSet(prev, next)) break;
+            }
+            if (phones.get(phone)!=state) phones.putIfAbsent(phone, state); // swept meanwhile, keep its state
+        }
+        long wait = acquireNamespace(now);
+        if (wait>0) {
+            if (state!=null) state.compareAndSet(next, prev); // give phone slot back, unless it moved on already
+            namespaceRejected.increment();
+            return wait;
+        }
+        allowed.increment();
+        return 0;
+    }
+
+    private long acquireNamespace(long now) {
+        if (nsInterval==0) return 0;
+        for (;;) {
+            long prev = nsArrival.get();
+            long arrival = prev - now>0 ? prev : now;
+            long wait = arrival - nsTolerance - now;
+            if (wait>0) return wait;
+            if (nsArrival.compareAndSet(prev, arrival + nsInterval)) return 0;
+        }
+    }
+
+    /**
+     * @return State of new phone in table, or null if table is full and sweep is not due yet or did not help
+     */
+    private AtomicReference<long[]> track(String phone, long now) {
+        if (phones.size()>=maxPhones) {
+            sweep(now);
+            if (phones.size()>=maxPhones) return null;
+        }
+        return phones.computeIfAbsent(phone, p -> fresh(now));
+    }
+
+    private AtomicReference<long[]> fresh(long now) {
+        long[] arrival = new long[interval.length];
+        Arrays.fill(arrival, now);
+        return new AtomicReference<>(arrival);
+    }
+
+    /**
+     * Drops phones, which are under all limits already, so their state is the same as of new phone.
+     * Runs at most once per SWEEP_INTERVAL, by the thread which moves nextSweep; the rest go on without waiting.
+     */
+    private void sweep(long now) {
+        long due = nextSweep.get();
+        if (now - due<0 || !nextSweep.compareAndSet(due, now + SWEEP_INTERVAL)) return;
+        for (Map.Entry<String, AtomicReference<long[]>> e : phones.entrySet()) {
+            boolean idle = true;
+            for (long arrival : e.getValue().get()) idle &= arrival - now<=0;
+            if (idle) phones.remove(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * @return Number of tracked phones
+     */
+    int size() {
+        return phones.size();
+    }
+}
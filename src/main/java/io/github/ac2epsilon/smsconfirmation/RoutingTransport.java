@@ -0,0 +1,274 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Several transports in order of preference, every one behind its own circuit breaker.
+ * <br><br>
+ * Failover: SMS goes to the first transport with closed breaker; on IOException or non-permanent
+ * SmsException the next one is tried. Permanent refusal (bad number or text) is given back at once.
+ * <br><br>
+ * Hedging, off by default: when transport does not answer within given percentile of its own recent
+ * latency (e.g. p95), the same SMS is fired at the next transport as well, and the first success wins.
+ * So tail latency of send is bounded by the faster healthy gateway, at price of a few percent of
+ * SMS being sent twice, with the same code. Hedged attempts run on virtual threads when JVM has them.
+ */
+public class RoutingTransport implements SmsTransport {
+    private static final int MIN_SAMPLES = 100;        // before that fixed hedge delay is used
+    private static final long WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final Route[] routes;
+    private volatile int failureThreshold = 5;
+    private volatile long openNanos = TimeUnit.SECONDS.toNanos(30);
+    private volatile double hedgePercentile;
+    private volatile long hedgeDelayNanos = TimeUnit.SECONDS.toNanos(1);
+    private volatile ExecutorService executor;
+    final LongAdder failovers = new LongAdder();
+    final LongAdder hedges = new LongAdder();
+
+    /** Transport with its breaker and latency of recent successful sends */
+    private class Route {
+        final SmsTransport transport;
+        final CircuitBreaker breaker = new CircuitBreaker();
+        final LongAdder failures = new LongAdder();
+        volatile LatencyHistogram current = new LatencyHistogram();
+        volatile LatencyHistogram previous = new LatencyHistogram();
+        volatile long windowStart = System.nanoTime();
+
+        Route(SmsTransport transport) {
+            this.transport = transport;
+        }
+
+        void send(String from, String to, MessageTemplate template, String code) throws IOException, SmsException {
+            long start = System.nanoTime();
+            try {
+                transport.send(from, to, template, code);
+            } catch (IOException e) {
+                fail();
+                throw e;
+            } catch (SmsException e) {
+                if (e.isPermanent()) breaker.success(); // refusal still means gateway is alive
+                else fail();
+                throw e;
+            } catch (RuntimeException e) {
+                fail();
+                throw e;
+            }
+            breaker.success();
+            latency().record(System.nanoTime() - start);
+        }
+
+        private void fail() {
+            failures.increment();
+            breaker.failure(failureThreshold, openNanos);
+        }
+
+        /** Histogram of current minute, previous one is kept for hedge delay */
+        private LatencyHistogram latency() {
+            long now = System.nanoTime();
+            if (now - windowStart>WINDOW_NANOS) {
+                synchronized (this) {
+                    if (now - windowStart>WINDOW_NANOS) {
+                        previous = current;
+                        current = new LatencyHistogram();
+                        windowStart = now;
+                    }
+                }
+            }
+            return current;
+        }
+
+        long hedgeDelay() {
+            LatencyHistogram h = previous.count()>=MIN_SAMPLES ? previous : current;
+            if (h.count()<MIN_SAMPLES) return hedgeDelayNanos;
+            return Math.max(h.percentileNanos(hedgePercentile), TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    /**
+     * @param transports Transports in order of preference, at least one
+     */
+    public RoutingTransport(SmsTransport... transports) {
+        if (transports.length==0) throw new IllegalArgumentException("At least one transport is needed");
+        routes = new Route[transports.length];
+        for (int i = 0; i < transports.length; i++) routes[i] = new Route(transports[i]);
+    }
+
+    /**
+     * @param failures Failures in a row, which open breaker of transport, 5 by default
+     * @return this
+     */
+    public RoutingTransport setFailureThreshold(int failures) {
+        if (failures<1) throw new IllegalArgumentException("failures must be positive");
+        this.failureThreshold = failures;
+        return this;
+    }
+
+    /**
+     * @param millis How long open breaker refuses sends before letting a probe through, 30s by default
+     * @return this
+     */
+    public RoutingTransport setOpenMillis(long millis) {
+        if (millis<1) throw new IllegalArgumentException("millis must be positive");
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+        return this;
+    }
+
+    /**
+     * Turns hedging on
+     *
+     * @param percentile Latency percentile of transport over the last minute, after which next transport
+     *                   is tried as well, e.g. 0.95; 0 turns hedging off (default)
+     * @return this
+     */
+    public RoutingTransport setHedgePercentile(double percentile) {
+        if (percentile<0 || percentile>=1) throw new IllegalArgumentException("percentile must be in [0, 1)");
+        this.hedgePercentile = percentile;
+        return this;
+    }
+
+    /**
+     * @param millis Hedge delay used until transport has enough latency samples, 1s by default
+     * @return this
+     */
+    public RoutingTransport setHedgeDelayMillis(long millis) {
+        if (millis<1) throw new IllegalArgumentException("millis must be positive");
+        this.hedgeDelayNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+        return this;
+    }
+
+    /**
+     * @return Pool stats of the first Nexmo transport, or null when none of them sends through HTTP pool
+     */
+    HttpPoolStats getPoolStats() {
+        for (Route route : routes) {
+            HttpPoolStats stats = SmsConfirmation.poolStatsOf(route.transport);
+            if (stats!=null) return stats;
+        }
+        return null;
+    }
+
+    @Override
+    public String getName() {
+        StringBuilder sb = new StringBuilder("routing");
+        for (Route r : routes) sb.append(sb.length()==7 ? '(' : ',').append(r.transport.getName());
+        return sb.append(')').toString();
+    }
+
+    @Override
+    public void send(String from, String to, String text) throws IOException, SmsException {
+        send(from, to, MessageTemplate.text(text), "");
+    }
+
+    @Override
+    public void send(String from, String to, MessageTemplate template, String code) throws IOException, SmsException {
+        if (hedgePercentile>0 && routes.length>1) {
+            hedged(from, to, template, code);
+            return;
+        }
+        Exception last = null;
+        for (Route r : routes) {
+            if (!r.breaker.allow()) continue;
+            if (last!=null) failovers.increment();
+            try {
+                r.send(from, to, template, code);
+                return;
+            } catch (SmsException e) {
+                if (e.isPermanent()) throw e;
+                last = e;
+            } catch (IOException e) {
+                last = e;
+            }
+        }
+        throw failure(last);
+    }
+
+    private void hedged(String from, String to, MessageTemplate template, String code) throws IOException, SmsException {
+        ExecutorCompletionService<Void> attempts = new ExecutorCompletionService<>(executor());
+        int next = 0, running = 0;
+        long delay = 0;
+        Exception last = null;
+        try {
+            for (;;) {
+                if (running==0 || delay>0) { // start first attempt, failover or hedge
+                    int at = next;
+                    while (at<routes.length && !routes[at].breaker.allow()) at++;
+                    next = at + 1;
+                    if (at<routes.length) {
+                        Route r = routes[at];
+                        if (running>0) hedges.increment(); else if (last!=null) failovers.increment();
+                        attempts.submit(() -> { r.send(from, to, template, code); return null; });
+                        running++;
+                        delay = r.hedgeDelay();
+                    } else if (running==0) throw failure(last);
+                }
+                Future<Void> done = delay>0 && next<routes.length ? attempts.poll(delay, TimeUnit.NANOSECONDS) : attempts.take();
+                if (done==null) continue; // no answer in time, hedge
+                running--;
+                delay = 0;
+                try {
+                    done.get();
+                    return;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof SmsException && ((SmsException) cause).isPermanent()) throw (SmsException) cause;
+                    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                    if (cause instanceof Error) throw (Error) cause;
+                    last = (Exception) cause;
+                    // others still trying are waited for, otherwise next transport is tried
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while sending SMS");
+        }
+    }
+
+    private static IOException failure(Exception last) throws SmsException {
+        if (last instanceof SmsException) throw (SmsException) last;
+        if (last instanceof IOException) return (IOException) last;
+        return new IOException("All SMS transports are unavailable");
+    }
+
+    private ExecutorService executor() {
+        ExecutorService e = executor;
+        if (e==null) {
+            synchronized (this) {
+                if (executor==null) {
+                    ExecutorService vt = AsyncSender.virtualExecutor();
+                    if (vt==null) {
+                        AtomicInteger n = new AtomicInteger();
+                        vt = Executors.newCachedThreadPool(r -> {
+                            Thread t = new Thread(r, "sms-hedge-" + n.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        });
+                    }
+                    executor = vt;
+                }
+                e = executor;
+            }
+        }
+        return e;
+    }
+
+    /**
+     * Adds breaker state and counters of every transport, see SmsMetrics.snapshot()
+     */
+    void addStats(Map<String, Number> m) {
+        m.put("transport_failovers_total", failovers.sum());
+        m.put("transport_hedges_total", hedges.sum());
+        for (Route r : routes) {
+            String prefix = "transport_" + r.transport.getName() + "_";
+            m.put(prefix + "open", r.breaker.isOpen() ? 1 : 0);
+            m.put(prefix + "opened_total", r.breaker.opened.sum());
+            m.put(prefix + "failures_total", r.failures.sum());
+            m.put(prefix + "hedge_delay_us", r.hedgeDelay()/1000);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import com.sleepycat.je.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * One environment of BdbTools together with store of namespace in it. Plain BdbTools has single shard,
+ * sharded one spreads phones over several environments by stable hash of phone.
+ * <br><br>
+ * Hash index of every shard knows only its own records, so sharded namespace keeps small routing
+ * database "route#namespace" of hash to shard index. Route of a hash lives in shard chosen by the hash
+ * itself, so routing writes are spread as well. Routes are written after record itself and are only
+ * a hint: lookup checks shard it points to and probes all shards when route is missing or stale.
+ */
+class Shard {
+    private static final String LAYOUT_FILE = "shard.layout";
+
+    final int index;
+    final SharedEnvironment shared;
+    final Environment env;
+    final ConfirmationStore store;
+    final Database routes; // null when not sharded
+    final PhoneLocks locks;
+    volatile Database outbox;      // null until outbox is opened
+    volatile Database deadLetters;
+
+    private Shard(int index, SharedEnvironment shared, ConfirmationStore store, Database routes, PhoneLocks locks) {
+        this.index = index;
+        this.shared = shared;
+        this.env = shared.env;
+        this.store = store;
+        this.routes = routes;
+        this.locks = locks;
+    }
+
+    /**
+     * Opens environment, store and, for sharded namespace, routing index
+     *
+     * @param index Number of this shard
+     * @param count Total number of shards, must never change for existing data
+     * @param dir Directory of shard environment
+     * @param namespace Store name
+     * @param config Storage settings
+     * @return Open shard
+     */
+    static Shard open(int index, int count, File dir, String namespace, BdbConfig config) {
+        SharedEnvironment shared = SharedEnvironment.acquire(dir, config);
+        ConfirmationStore store = null;
+        try {
+            if (count>1) checkLayout(shared.dir, index, count);
+            store = shared.openStore(namespace, config.getFormat());
+            if (config.getHashFilterEntries()>0 && config.getReplication()==null)
+                shared.openHashFilter(namespace, config.getFormat(), store,
+                    HashFilter.bitsFor((config.getHashFilterEntries() + count - 1)/count));
+            Database routes = count>1 ? shared.openRoutes(namespace) : null;
+            return new Shard(index, shared, store, routes, shared.locks(namespace));
+        } catch (RuntimeException e) {
+            if (store!=null) shared.closeStore(namespace, config.getFormat());
+            shared.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Records shard number and count in shard directory on first open, and refuses to open directory
+     * with different layout, as records would be looked for in wrong shard
+     */
+    static void checkLayout(File dir, int index, int count) {
+        File file = new File(dir, LAYOUT_FILE);
+        String layout = index + "/" + count;
+        try {
+            if (!file.exists()) {
+                Files.write(file.toPath(), layout.getBytes(StandardCharsets.US_ASCII));
+                return;
+            }
+            String existing = new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII).trim();
+            if (!existing.equals(layout))
+                throw new IllegalStateException("Shard " + dir + " has layout " + existing + ", expected " + layout);
+        } catch (IOException e) {
+            throw new IllegalStateException("Can not check shard layout of " + dir, e);
+        }
+    }
+
+    /**
+     * Stable shard number of a key, the same in every JVM, as String.hashCode() is specified
+     *
+     * @param key Phone or hash
+     * @param count Number of shards
+     * @return Shard number in [0, count)
+     */
+    static int of(String key, int count) {
+        if (count==1) return 0;
+        int h = key.hashCode() * 0x9E3779B9; // spread sequential phones
+        return (int) ((h & 0xffffffffL) % count);
+    }
+
+    /**
+     * Remembers that record with given hash lives in given shard. Route expires together with record.
+     *
+     * @param txn Transaction of this shard environment
+     * @param hash Hash of record
+     * @param shard Shard number of record
+     * @param expires Expiration time of record, 0 for permanent one
+     */
+    void putRoute(Transaction txn, String hash, int shard, long expires) {
+        routes.put(txn, new DatabaseEntry(CompactBinding.hashToKey(hash)), new DatabaseEntry(new byte[] {(byte) shard}),
+            Put.OVERWRITE, new WriteOptions().setExpirationTime(expires, null));
+    }
+
+    /**
+     * @param hash Hash of record
+     * @return Shard number, where record with hash was put, or -1 if not known
+     */
+    int getRoute(String hash) {
+        DatabaseEntry data = new DatabaseEntry();
+        OperationResult r = routes.get(null, new DatabaseEntry(CompactBinding.hashToKey(hash)), data, Get.SEARCH, null);
+        return r==null || data.getSize()!=1 ? -1 : data.getData()[data.getOffset()] & 0xff;
+    }
+
+    /**
+     * @param txn Transaction of this shard environment
+     * @param hash Hash of removed record
+     */
+    void deleteRoute(Transaction txn, String hash) {
+        routes.delete(txn, new DatabaseEntry(CompactBinding.hashToKey(hash)));
+    }
+
+    /**
+     * Opens outbox and dead letters of namespace, once
+     *
+     * @param namespace Store name
+     */
+    synchronized void openOutbox(String namespace) {
+        if (outbox!=null) return;
+        deadLetters = shared.openDatabase(Outbox.DEAD_PREFIX + namespace);
+        try {
+            outbox = shared.openDatabase(Outbox.PREFIX + namespace);
+        } catch (RuntimeException e) {
+            shared.closeDatabase(Outbox.DEAD_PREFIX + namespace);
+            deadLetters = null;
+            throw e;
+        }
+    }
+
+    /**
+     * Gives back store, routing index, outbox and environment
+     *
+     * @param namespace Store name
+     * @param format Storage format
+     */
+    void close(String namespace, BdbConfig.Format format) {
+        shared.closeStore(namespace, format);
+        if (routes!=null) shared.closeRoutes(namespace);
+        synchronized (this) {
+            if (outbox!=null) {
+                shared.closeDatabase(Outbox.PREFIX + namespace);
+                shared.closeDatabase(Outbox.DEAD_PREFIX + namespace);
+                outbox = deadLetters = null;
+            }
+        }
+        shared.release();
+    }
+}
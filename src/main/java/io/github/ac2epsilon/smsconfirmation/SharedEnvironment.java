@@ -0,0 +1,443 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentConfig;
+import com.sleepycat.je.rep.NoConsistencyRequiredPolicy;
+import com.sleepycat.je.rep.QuorumPolicy;
+import com.sleepycat.je.rep.ReplicaWriteException;
+import com.sleepycat.je.rep.ReplicatedEnvironment;
+import com.sleepycat.persist.IndexNotAvailableException;
+import com.sleepycat.persist.StoreConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * One JE Environment per data directory for the whole JVM, shared by all BdbTools opened on it.
+ * Every namespace gets its own store inside, also shared by BdbTools of the same namespace and format.
+ * Both environment and stores are reference-counted: last close() of a store closes it, last release()
+ * closes flusher and environment. So tenants share one JE cache, cleaner, checkpointer and flusher.
+ * Environment is configured by BdbConfig of its first user, settings of later users are ignored,
+ * except that flusher is started by first user, which needs it.
+ * <br><br>
+ * Bloom filters of hashes (see HashFilter) live here as well, one per store, so every BdbTools writing
+ * the store keeps it complete. Filters are saved next to JE log on last release(), stamped with the end
+ * of the log, and taken back at first open of store only if the log did not change since, otherwise
+ * they are rebuilt by scan of hash index.
+ * <br><br>
+ * With replication in BdbConfig environment is ReplicatedEnvironment, which joins its group on open
+ * and follows master changes, so isMaster() always tells, if writes can go here.
+ * <br><br>
+ * Read-only environment (BdbConfig.setReadOnly()) creates nothing, does not delete saved filters and does
+ * not save its own, as log of the writing process moves on without it.
+ */
+class SharedEnvironment {
+    private static final Map<File, SharedEnvironment> registry = new HashMap<>();
+    // directories, whose environment is being opened outside of registry lock, see acquire()
+    private static final Map<File, CompletableFuture<SharedEnvironment>> opening = new HashMap<>();
+    private static final long REPLICA_OPEN_WAIT_MS = 30000;
+
+    private static final class StoreRef {
+        final Object store;
+        final Runnable closer;
+        int refs;
+
+        StoreRef(Object store, Runnable closer) {
+            this.store = store;
+            this.closer = closer;
+        }
+    }
+
+    final File dir;
+    final Environment env;
+    private final StoreConfig storeCfg;
+    private final Map<String, StoreRef> stores = new HashMap<>();
+    private final ConcurrentHashMap<String, PhoneLocks> locks = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, HashFilter> filters = new ConcurrentHashMap<>();
+    private final Set<String> filtersChecked = new HashSet<>(); // stores, whose saved filter was looked at
+    private final String logStamp; // end of JE log as it was before environment was opened
+    final boolean readOnly;
+    private volatile LogFlusher flusher;
+    private volatile String masterName; // of replication group, null while unknown or not replicated
+    private int refs;
+
+    private SharedEnvironment(File dir, BdbConfig config) {
+        this.dir = dir;
+        this.readOnly = config.isReadOnly();
+        EnvironmentConfig envCfg = new EnvironmentConfig();
+        envCfg.setAllowCreate(!readOnly);
+        envCfg.setReadOnly(readOnly);
+        envCfg.setTransactional(true);
+        if (config.getCacheBytes()>0) envCfg.setCacheSize(config.getCacheBytes());
+        if (config.isSharedCache()) envCfg.setSharedCache(true);
+        if (config.getLogFileMaxBytes()>0)
+            envCfg.setConfigParam(EnvironmentConfig.LOG_FILE_MAX, Long.toString(config.getLogFileMaxBytes()));
+        if (config.getCleanerThreads()>0)
+            envCfg.setConfigParam(EnvironmentConfig.CLEANER_THREADS, Integer.toString(config.getCleanerThreads()));
+
+        storeCfg = new StoreConfig();
+        storeCfg.setAllowCreate(!readOnly);
+        storeCfg.setReadOnly(readOnly);
+        storeCfg.setTransactional(true);
+
+        if (!dir.exists() && !readOnly) dir.mkdirs();
+        logStamp = logStamp(dir);
+        HaConfig ha = config.getReplication();
+        if (ha==null) {
+            env = new Environment(dir, envCfg);
+            return;
+        }
+        // replica does not wait to catch up on open, every read asks for its own consistency
+        ReplicatedEnvironment repEnv = new ReplicatedEnvironment(dir, ha.toReplicationConfig(), envCfg,
+            NoConsistencyRequiredPolicy.NO_CONSISTENCY, QuorumPolicy.SIMPLE_MAJORITY);
+        try {
+            repEnv.setStateChangeListener(event ->
+                masterName = event.getState().isActive() ? event.getMasterNodeName() : null);
+        } catch (RuntimeException e) {
+            repEnv.close();
+            throw e;
+        }
+        env = repEnv;
+    }
+
+    /**
+     * @return true if writes can go to this environment: it is not replicated, or is master of its group now
+     */
+    boolean isMaster() {
+        return !(env instanceof ReplicatedEnvironment) || ((ReplicatedEnvironment) env).getState().isMaster();
+    }
+
+    /**
+     * @return Node name of current master, null while group has no master or environment is not replicated
+     */
+    String masterName() {
+        return env instanceof ReplicatedEnvironment ? masterName : null;
+    }
+
+    /**
+     * Opens environment of directory, or takes one more reference to already open one. JE recovery
+     * or joining replication group runs outside of registry lock, so other directories are opened
+     * and closed meanwhile; users of the same directory wait for the first one to finish opening.
+     *
+     * @param dataDir Directory of BerkeleyDB environment, created if not exists
+     * @param config Settings, used only if environment is not open yet
+     * @return Shared environment, to be given back by release()
+     * @throws IllegalStateException If environment is open read-only, and config asks for writes
+     */
+    static SharedEnvironment acquire(File dataDir, BdbConfig config) {
+        File dir = canonical(dataDir);
+        while (true) {
+            CompletableFuture<SharedEnvironment> pending;
+            boolean opener = false;
+            synchronized (registry) {
+                SharedEnvironment shared = registry.get(dir);
+                if (shared!=null) return shared.take(config);
+                pending = opening.get(dir);
+                if (pending==null) {
+                    pending = new CompletableFuture<>();
+                    opening.put(dir, pending);
+                    opener = true;
+                }
+            }
+            if (opener) return open(dir, config, pending);
+            try {
+                pending.join();
+            } catch (CompletionException e) { /* opener failed, next round tries with own config */ }
+        }
+    }
+
+    private static SharedEnvironment open(File dir, BdbConfig config, CompletableFuture<SharedEnvironment> pending) {
+        SharedEnvironment shared;
+        try {
+            shared = new SharedEnvironment(dir, config);
+        } catch (RuntimeException|Error e) {
+            synchronized (registry) {
+                opening.remove(dir);
+            }
+            pending.completeExceptionally(e);
+            throw e;
+        }
+        synchronized (registry) {
+            opening.remove(dir);
+            registry.put(dir, shared);
+            pending.complete(shared);
+            return shared.take(config);
+        }
+    }
+
+    /**
+     * Takes one more reference under registry lock, starting flusher, if this user needs it
+     */
+    private SharedEnvironment take(BdbConfig config) {
+        if (readOnly && !config.isReadOnly())
+            throw new IllegalStateException("Environment " + dir + " is open read-only in this JVM");
+        if (flusher==null && config.needsFlusher())
+            flusher = new LogFlusher(env, config.getFlushIntervalMs(), config.getFlushBytes());
+        refs++;
+        return this;
+    }
+
+    /**
+     * @param dataDir Directory of BerkeleyDB environment
+     * @return true if some BdbTools in this JVM keeps environment of directory open
+     */
+    static boolean isOpen(File dataDir) {
+        synchronized (registry) {
+            File dir = canonical(dataDir);
+            return registry.containsKey(dir) || opening.containsKey(dir);
+        }
+    }
+
+    private static File canonical(File dataDir) {
+        try {
+            return dataDir.getCanonicalFile();
+        } catch (IOException e) {
+            return dataDir.getAbsoluteFile();
+        }
+    }
+
+    /**
+     * @return Flusher of environment, or null if nobody needs it
+     */
+    LogFlusher flusher() {
+        return flusher;
+    }
+
+    /**
+     * @param namespace Store name
+     * @return Phone locks of namespace, shared by all BdbTools of it in this environment
+     */
+    PhoneLocks locks(String namespace) {
+        return locks.computeIfAbsent(namespace, n -> new PhoneLocks(1024));
+    }
+
+    /**
+     * @return Name and length of the last JE log file, which changes with any write to environment
+     */
+    private static String logStamp(File dir) {
+        String[] names = dir.list((d, name) -> name.endsWith(".jdb"));
+        if (names==null || names.length==0) return "";
+        String last = names[0];
+        for (String name : names) if (name.compareTo(last)>0) last = name;
+        return last + ":" + new File(dir, last).length();
+    }
+
+    private File filterFile(String key) {
+        return new File(dir, "hashfilter-" + Integer.toHexString(key.hashCode()) + ".bloom");
+    }
+
+    /**
+     * @param key Store key, format#namespace
+     * @return Bloom filter of store hashes, or null if nobody asked for it
+     */
+    HashFilter hashFilter(String key) {
+        return filters.get(key);
+    }
+
+    /**
+     * Gives Bloom filter of store hashes, building it by scan of hash index if there is none yet.
+     * Filter is registered before scan, so hashes written meanwhile are added by writers, see BdbTools
+     *
+     * @param namespace Store name
+     * @param format Storage format
+     * @param store Open store of namespace
+     * @param bits Filter size, ignored if filter exists already
+     * @return Filter, ready to use
+     */
+    HashFilter openHashFilter(String namespace, BdbConfig.Format format, ConfirmationStore store, long bits) {
+        String key = format + "#" + namespace;
+        HashFilter filter;
+        synchronized (registry) {
+            filter = filters.get(key);
+            if (filter!=null) return filter;
+            filter = new HashFilter(bits);
+            filters.put(key, filter);
+        }
+        try {
+            store.scanHashes(filter::add);
+        } catch (RuntimeException e) {
+            filters.remove(key, filter);
+            throw e;
+        }
+        filter.ready();
+        return filter;
+    }
+
+    /**
+     * Opens store of namespace, or takes one more reference to already open one
+     *
+     * @param namespace Store name
+     * @param format Storage format
+     * @return Store, to be given back by closeStore()
+     */
+    ConfirmationStore openStore(String namespace, BdbConfig.Format format) {
+        return whenReplicated(() -> openStoreOnce(namespace, format));
+    }
+
+    private ConfirmationStore openStoreOnce(String namespace, BdbConfig.Format format) {
+        synchronized (registry) {
+            StoreRef ref = stores.get(format + "#" + namespace);
+            if (ref==null) {
+                ConfirmationStore store = format==BdbConfig.Format.COMPACT
+                    ? new CompactStore(env, namespace, storeCfg)
+                    : new DplStore(env, namespace, storeCfg);
+                ref = new StoreRef(store, store::close);
+                stores.put(format + "#" + namespace, ref);
+                String key = format + "#" + namespace;
+                if (filtersChecked.add(key)) { // nobody wrote the store since environment was opened yet
+                    File file = filterFile(key);
+                    HashFilter saved = HashFilter.load(file, key, logStamp);
+                    if (saved!=null) filters.put(key, saved);
+                    if (!readOnly) file.delete(); // after any crash filter is rebuilt
+                }
+            }
+            ref.refs++;
+            return (ConfirmationStore) ref.store;
+        }
+    }
+
+    /**
+     * Opens databases, which replica may not have got from master yet: only master creates them,
+     * so replica waits for replication stream to bring them. JE tells it by ReplicaWriteException, DPL
+     * by IndexNotAvailableException. Every attempt takes registry lock by itself, waiting between
+     * attempts happens without it, so other stores and closes go on meanwhile
+     */
+    private <T> T whenReplicated(Supplier<T> open) {
+        long deadline = System.currentTimeMillis() + REPLICA_OPEN_WAIT_MS;
+        while (true) {
+            try {
+                return open.get();
+            } catch (ReplicaWriteException | IndexNotAvailableException e) {
+                if (System.currentTimeMillis()>deadline) throw e;
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Gives back store, closing it when nobody uses it anymore
+     *
+     * @param namespace Store name
+     * @param format Storage format
+     */
+    void closeStore(String namespace, BdbConfig.Format format) {
+        close(format + "#" + namespace);
+    }
+
+    /**
+     * Opens routing index of sharded namespace (see Shard), or takes one more reference to already open one
+     *
+     * @param namespace Store name
+     * @return Database of hash to shard index, to be given back by closeRoutes()
+     */
+    Database openRoutes(String namespace) {
+        return openDatabase("route#" + namespace);
+    }
+
+    /**
+     * Gives back routing index, closing it when nobody uses it anymore
+     *
+     * @param namespace Store name
+     */
+    void closeRoutes(String namespace) {
+        closeDatabase("route#" + namespace);
+    }
+
+    /**
+     * Opens plain database with store settings, or takes one more reference to already open one
+     *
+     * @param name Database name, with namespace in it
+     * @return Database, to be given back by closeDatabase()
+     */
+    Database openDatabase(String name) {
+        return whenReplicated(() -> openDatabaseOnce(name));
+    }
+
+    private Database openDatabaseOnce(String name) {
+        synchronized (registry) {
+            StoreRef ref = stores.get(name);
+            if (ref==null) {
+                Database db = env.openDatabase(null, name, new DatabaseConfig()
+                    .setAllowCreate(storeCfg.getAllowCreate())
+                    .setTransactional(storeCfg.getTransactional())
+                    .setReadOnly(storeCfg.getReadOnly()));
+                ref = new StoreRef(db, db::close);
+                stores.put(name, ref);
+            }
+            ref.refs++;
+            return (Database) ref.store;
+        }
+    }
+
+    /**
+     * @param namespace Store name
+     * @param format Storage format
+     * @return How many BdbTools have the store open now
+     */
+    int storeUsers(String namespace, BdbConfig.Format format) {
+        synchronized (registry) {
+            StoreRef ref = stores.get(format + "#" + namespace);
+            return ref==null ? 0 : ref.refs;
+        }
+    }
+
+    /**
+     * @param name Name given to openDatabase()
+     */
+    void closeDatabase(String name) {
+        close(name);
+    }
+
+    private void close(String key) {
+        synchronized (registry) {
+            StoreRef ref = stores.get(key);
+            if (ref==null || --ref.refs>0) return;
+            stores.remove(key);
+            ref.closer.run();
+        }
+    }
+
+    /**
+     * Gives back environment, closing flusher and environment when nobody uses it anymore
+     */
+    void release() {
+        synchronized (registry) {
+            if (--refs>0) return;
+            registry.remove(dir);
+            if (flusher!=null) flusher.close();
+            for (StoreRef ref : stores.values()) ref.closer.run(); // leaked by users, who did not close()
+            stores.clear();
+            env.close();
+            if (!readOnly) saveFilters();
+        }
+    }
+
+    /** Saves filters with the final state of log, after environment is closed and nobody writes it */
+    private void saveFilters() {
+        if (filters.isEmpty()) return;
+        String stamp = logStamp(dir);
+        for (Map.Entry<String, HashFilter> e : filters.entrySet()) {
+            if (!e.getValue().isReady()) continue;
+            try {
+                e.getValue().save(filterFile(e.getKey()), e.getKey(), stamp);
+            } catch (IOException ex) { // it is only rebuilt on next start
+                filterFile(e.getKey()).delete();
+            }
+        }
+    }
+}
@@ -1,16 +1,17 @@
 package io.github.ac2epsilon.smsconfirmation;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.BasicResponseHandler;
-import org.apache.http.message.BasicNameValuePair;
+import com.sleepycat.je.rep.StateChangeException;
 
 import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
-import java.util.Scanner;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.regex.Pattern;
 
 import static io.github.ac2epsilon.smsconfirmation.SmsUtil.getVerificationToken;
@@ -23,13 +24,33 @@ import static java.lang.System.exit;
  * @version 1.0
   */
 public class SmsConfirmation {
+    /**
+     * Result of send(), when phone or namespace is over its rate limit and SMS was not sent,
+     * see setRateLimitConfig(). Can be compared by ==
+     */
+    public static final String RATE_LIMITED = "Rate limit exceeded";
+
+    /**
+     * Result of send() and check() on replica of replicated environment, where code can not be stored
+     * or confirmed: SMS was not sent, code was not checked. Ask master, see BdbTools.getMasterName().
+     * Read-only store (BdbConfig.setReadOnly()) gives the same, ask writing process then.
+     * Can be compared by ==
+     */
+    public static final String NOT_MASTER = "Not master of replication group";
+
     public BdbTools bdb;
 
-    private final String BASE_URL = "https://rest.nexmo.com/sms/json";
     private String company;
     private String apiKey;
     private String apiSecret;
-    private String defaultMessage = "Your confirmation code: ~";
+    private final MessageTemplate defaultTemplate = MessageTemplate.compile("Your confirmation code: ~");
+    private volatile MessageTemplate lastTemplate = defaultTemplate; // messages are mostly the same
+    private volatile SmsTransport transport;
+    private AsyncConfig asyncConfig = new AsyncConfig();
+    private volatile AsyncSender asyncSender;
+    private volatile RateLimiter rateLimiter = new RateLimiter(new RateLimitConfig());
+    volatile OutboxDispatcher outbox; // null while outbox is off
+    private final SmsMetrics metrics = new SmsMetrics(this);
 
     /**
      *
@@ -59,15 +80,31 @@ public class SmsConfirmation {
         Pattern hex16 = Pattern.compile("[0-9a-f]{16}");
         Pattern hex8 = Pattern.compile("[0-9a-f]{8}");
         String usage =
-            "Usage: java -jar SmsConfirm <company-name> <8-hexdigit-API-key> <16-hexdigit-API-secret>\n"+
+            "Usage: java -jar SmsConfirm [serve [--port <port>]] <company-name> <8-hexdigit-API-key> <16-hexdigit-API-secret>\n"+
+            "    - serve starts HTTP/JSON service (port 8080 by default) instead of terminal menu\n"+
             "    - company-name will be used as From field of the message\n"+
             "    - API-key and API-secret are those provided by nexmo.com\n";
+        int port = -1;
+        if (args.length>0 && args[0].equals("serve")) {
+            port = 8080;
+            int skip = 1;
+            if (args.length>2 && args[1].equals("--port")) {
+                ifErrorExit(!args[2].matches("[0-9]{1,5}"), "Port must be a number: "+args[2], usage);
+                port = Integer.parseInt(args[2]);
+                skip = 3;
+            }
+            args = Arrays.copyOfRange(args, skip, args.length);
+        }
         ifErrorExit(args.length<3, "Not enought arguments, must be three", usage);
         ifErrorExit(args[1].length()!=8, "Second argument must be 8 chars long: "+args[0], usage);
         ifErrorExit(args[2].length()!=16, "Third argument must be 16 chars long: "+args[1], usage);
         ifErrorExit(!hex8.matcher(args[1]).matches(), "Second argument must be HEX", usage);
         ifErrorExit(!hex16.matcher(args[2]).matches(), "Third argument must be HEX", usage);
         SmsConfirmation sms = new SmsConfirmation(args[0],args[1],args[2]);
+        if (port>=0) {
+            serve(sms, port);
+            return;
+        }
         boolean exitCondition = false;
         BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
         while (!exitCondition) {
@@ -104,16 +141,51 @@ public class SmsConfirmation {
                     } else System.out.println("You have to specify arguments for H");
                     break;
                 case 'l':
-                    sms.bdb.iterate(c -> System.out.println(c));
+                    ConfirmationFilter filter = t.length > 1 && t[1].equals("p") ? ConfirmationFilter.PENDING
+                        : t.length > 1 && t[1].equals("c") ? ConfirmationFilter.CONFIRMED : ConfirmationFilter.ALL;
+                    sms.bdb.stream(filter).forEach(System.out::println);
+                    break;
+                case 'e':
+                    if (t.length > 1) {
+                        try {
+                            long n = sms.bdb.exportNdjson(Paths.get(t[1]), ConfirmationFilter.ALL);
+                            System.out.println(n + " records exported to " + t[1]);
+                        } catch (IOException e) { System.out.println("Can not export: " + e.getMessage()); }
+                    } else System.out.println("You have to specify file for E");
                     break;
                 default:
                     System.out.println(
         "Commands:\nq - quit from app\nr <phone> - request new random 4-digit confirmation code\n"+
         "c <phone> <code> - check code validity\nh - return sign by hash\n"+
-        "l - list pending and confirmed recorded requests"
+        "l [p|c] - list recorded requests, all or only pending or confirmed ones\n"+
+        "e <file> - export all recorded requests to NDJSON file"
                     );
         }
-    }}
+    }
+        sms.close();
+    }
+
+    /**
+     * Runs HTTP service until JVM is asked to stop (Ctrl-C, SIGTERM), then closes it gracefully
+     */
+    private static void serve(SmsConfirmation sms, int port) {
+        // without it every response waits for delayed ACK of the client, ~40ms on Linux
+        if (System.getProperty("sun.net.httpserver.nodelay")==null) System.setProperty("sun.net.httpserver.nodelay", "true");
+        SmsServer server = new SmsServer(sms, new InetSocketAddress(port));
+        try {
+            server.start();
+        } catch (IOException e) {
+            System.out.println("Can not listen on port " + port + ": " + e.getMessage());
+            sms.close();
+            exit(1);
+        }
+        sms.metrics.registerMBean(sms.company);
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop, "sms-http-shutdown"));
+        System.out.println("Listening on port " + server.getPort());
+        try {
+            server.await();
+        } catch (InterruptedException e) { server.stop(); }
+    }
 
     /**
      * Constructor accepts three parameters
@@ -126,111 +198,465 @@ public class SmsConfirmation {
         this.company = company;
         this.apiKey = apiKey;
         this.apiSecret = apiSecret;
+        this.transport = new NexmoTransport(apiKey, apiSecret);
 // we use company name to divide records in separate "namespaces"
         this.bdb = new BdbTools(company);
     }
+
+    /**
+     * Constructor with explicitly created storage, e.g. placed in other directory
+     * @param company Serves as "namespace" and From: field, see SmsConfirmation(String, String, String)
+     * @param apiKey API_KEY provided by nexmo.com
+     * @param apiSecret API_SECRET provided by nexmo.com
+     * @param bdb Storage for confirmations, closed by close()
+     */
+    public SmsConfirmation(String company, String apiKey, String apiSecret, BdbTools bdb) {
+        this.company = company;
+        this.apiKey = apiKey;
+        this.apiSecret = apiSecret;
+        this.transport = new NexmoTransport(apiKey, apiSecret);
+        this.bdb = bdb;
+    }
+
+    /**
+     * Overrides Nexmo endpoint, e.g. to use regional one or local stub. Shortcut for
+     * setTransport(new NexmoTransport(apiKey, apiSecret).setBaseUrl(baseUrl))
+     *
+     * @param baseUrl Full URL of sms/json API
+     */
+    public void setBaseUrl(String baseUrl) {
+        setTransport(new NexmoTransport(apiKey, apiSecret).setBaseUrl(baseUrl));
+    }
+
+    /**
+     * Replaces the way SMS are sent, Nexmo with keys of constructor by default
+     *
+     * @param transport E.g. RoutingTransport over several gateways, or FakeTransport in tests
+     */
+    public void setTransport(SmsTransport transport) {
+        if (transport==null) throw new IllegalArgumentException("transport can not be null");
+        this.transport = transport;
+    }
+
+    /**
+     * @return Current transport, see setTransport()
+     */
+    public SmsTransport getTransport() {
+        return transport;
+    }
     /**
      * @param userPhone Phone number where you send confirmation code
      * @return 4-digit confirmation code. Any other
      */
     public String send(String userPhone) {
-        return send(userPhone, defaultMessage);
+        return send(userPhone, defaultTemplate);
     }
     /**
      * @param userPhone Phone number where you send confirmation code
      * @param message Optional user defined message. Message should contain ~ sign, which will be replaced
      * with 4-digit code, or IllegalArgumentException will rise.
-     * @return 4-digit confirmation code as String. Any other return have to be treated as fail
+     * @return 4-digit confirmation code as String. Any other return have to be treated as fail,
+     * RATE_LIMITED and NOT_MASTER mean SMS was not even tried
      * @throws IllegalArgumentException Exception will throw
      */
     public String send(String userPhone, String message) {
-        if (message.indexOf('~')<0) {
-            throw new IllegalArgumentException("SMS message should include ~ sign");
-        }
+        return send(userPhone, template(message));
+    }
+
+    /**
+     * Same as send(String, String), without looking at message text for every SMS
+     *
+     * @param userPhone Phone number where you send confirmation code
+     * @param template Message, compiled once by MessageTemplate.compile()
+     * @return 4-digit confirmation code, see send(String, String)
+     * @throws IllegalArgumentException If phone number is not valid
+     */
+    public String send(String userPhone, MessageTemplate template) {
         Character kind = SmsUtil.detectType(userPhone);
         String code; // any non-4-digit return have to be treated as fail
         if (kind.equals('P')) {
-            code = sendSms(userPhone, message);
-            if (code.length()==4 && Pattern.compile("^[0-9]{4}$").matcher(code).matches()) {
-            /* Confirmation confirmation = */ bdb.add(userPhone, code);
+            if (!bdb.isMaster()) return NOT_MASTER;
+            if (rateLimiter.acquire(userPhone)>0) {
+                metrics.rateLimited.increment();
+                return RATE_LIMITED;
             }
+            code = outbox!=null ? enqueue(userPhone, template) : deliver(userPhone, template);
         } else
             throw new IllegalArgumentException("Provided phone number not confirms API rules");
         return code;
     }
 
     /**
-     * Check if provided 4-digit code equals to generated and stored one
+     * Same as send(userPhone), but does not block calling thread
+     *
+     * @param userPhone Phone number where you send confirmation code
+     * @return Future of 4-digit confirmation code, see send(String)
+     */
+    public CompletableFuture<String> sendAsync(String userPhone) {
+        return sendAsync(userPhone, defaultTemplate);
+    }
+
+    /**
+     * Sends confirmation on bounded executor, configured by setAsyncConfig(). Returned future completes
+     * when SMS is sent and code is stored in DB. Arguments are validated at once, in calling thread.
+     * With outbox on code is queued in calling thread and returned future is already completed.
+     *
+     * @param userPhone Phone number where you send confirmation code
+     * @param message User defined message with ~ sign, see send(String, String)
+     * @return Future of 4-digit confirmation code. When too many requests are in flight, future fails
+     * with RejectedExecutionException (for Overflow.REJECT policy or queue overflow). Over rate limit
+     * future is already completed with RATE_LIMITED
+     * @throws IllegalArgumentException Same as send(String, String)
+     */
+    public CompletableFuture<String> sendAsync(String userPhone, String message) {
+        return sendAsync(userPhone, template(message));
+    }
+
+    /**
+     * Same as sendAsync(String, String), with message compiled once
+     *
+     * @param userPhone Phone number where you send confirmation code
+     * @param template Message, see MessageTemplate.compile()
+     * @return Future of 4-digit confirmation code, see sendAsync(String, String)
+     * @throws IllegalArgumentException If phone number is not valid
+     */
+    public CompletableFuture<String> sendAsync(String userPhone, MessageTemplate template) {
+        if (!SmsUtil.detectType(userPhone).equals('P')) {
+            throw new IllegalArgumentException("Provided phone number not confirms API rules");
+        }
+        if (!bdb.isMaster()) return CompletableFuture.completedFuture(NOT_MASTER);
+        if (rateLimiter.acquire(userPhone)>0) {
+            metrics.rateLimited.increment();
+            return CompletableFuture.completedFuture(RATE_LIMITED);
+        }
+        if (outbox!=null) return CompletableFuture.completedFuture(enqueue(userPhone, template));
+        return asyncSender().submit(() -> deliver(userPhone, template));
+    }
+
+    /**
+     * @return Compiled message, the last one is reused
+     * @throws IllegalArgumentException If message has no ~ sign
+     */
+    MessageTemplate template(String message) {
+        MessageTemplate t = lastTemplate;
+        if (!t.getSource().equals(message)) lastTemplate = t = MessageTemplate.compile(message);
+        return t;
+    }
+
+    /**
+     * Stores new code with its SMS in outbox and lets dispatcher send it
+     */
+    private String enqueue(String userPhone, MessageTemplate template) {
+        String code = getVerificationToken();
+        long start = System.nanoTime();
+        bdb.enqueue(userPhone, code, template.getSource());
+        metrics.store.since(start);
+        OutboxDispatcher dispatcher = outbox;
+        if (dispatcher!=null) dispatcher.wake();
+        return code;
+    }
+
+    /**
+     * Sends SMS to already validated phone and stores code on success
+     */
+    private String deliver(String userPhone, MessageTemplate template) {
+        String code = sendSms(userPhone, template);
+        if (isCode(code)) {
+            long start = System.nanoTime();
+            /* Confirmation confirmation = */ bdb.add(userPhone, code);
+            metrics.store.since(start);
+        }
+        return code;
+    }
+
+    /**
+     * Sends default message to every phone in collection, see sendBatch(Collection, String, int)
+     *
+     * @param phones Phone numbers to send confirmation codes
+     * @return Per-phone results in order of given collection
+     */
+    public List<BatchResult> sendBatch(Collection<String> phones) {
+        return sendBatch(phones, defaultTemplate.getSource());
+    }
+
+    /**
+     * Sends confirmation to every phone in collection, storing codes by groups of 500 per transaction,
+     * see sendBatch(Collection, String, int)
+     *
+     * @param phones Phone numbers to send confirmation codes
+     * @param message User defined message with ~ sign, see send(String, String)
+     * @return Per-phone results in order of given collection
+     */
+    public List<BatchResult> sendBatch(Collection<String> phones, String message) {
+        return sendBatch(phones, message, 500);
+    }
+
+    /**
+     * Sends confirmation to every phone in collection. SMS are sent in parallel on async executor
+     * (up to maxInFlight at once, see setAsyncConfig()), sharing its slots and queue with sendAsync(), in
+     * arrival order. When queue is full batch waits for room, it is never rejected by Overflow policy. Sent codes are
+     * stored in DB by groups of commitSize records per transaction. Method blocks until whole batch
+     * is done. With outbox on every code is just queued, in its own transaction, and commitSize is not used.
+     *
+     * @param phones Phone numbers to send confirmation codes
+     * @param message User defined message with ~ sign, see send(String, String)
+     * @param commitSize How many confirmations store in one DB transaction
+     * @return Per-phone results in order of given collection. Invalid phone numbers do not break
+     * the batch, they just get failed result, phones over rate limit get RATE_LIMITED error
+     * @throws IllegalArgumentException If message has no ~ sign or commitSize is not positive
+     */
+    public List<BatchResult> sendBatch(Collection<String> phones, String message, int commitSize) {
+        MessageTemplate template = template(message);
+        if (commitSize<1) throw new IllegalArgumentException("commitSize must be positive");
+        if (!bdb.isMaster()) {
+            List<BatchResult> results = new ArrayList<>(phones.size());
+            for (String phone : phones) results.add(BatchResult.failed(phone, NOT_MASTER));
+            return results;
+        }
+        if (outbox!=null) return enqueueBatch(phones, template);
+        AsyncSender sender = asyncSender();
+        RateLimiter limiter = rateLimiter;
+        List<String> order = new ArrayList<>(phones);
+        List<CompletableFuture<String>> sent = new ArrayList<>(order.size());
+        BatchResult[] results = new BatchResult[order.size()];
+        List<Confirmation> pending = new ArrayList<>(Math.min(commitSize, order.size()));
+        List<Integer> pendingAt = new ArrayList<>(Math.min(commitSize, order.size()));
+        int next = 0; // first position, which result is not collected yet
+        for (int i = 0; i < order.size(); i++) {
+            String phone = order.get(i);
+            if (phone==null || !SmsUtil.detectType(phone).equals('P')) {
+                sent.add(null);
+            } else if (limiter.acquire(phone)>0) {
+                metrics.rateLimited.increment();
+                sent.add(CompletableFuture.completedFuture(RATE_LIMITED));
+            } else {
+                sent.add(sender.submitWaiting(() -> sendSms(phone, template)));
+            }
+            while (next<=i && (sent.get(next)==null || sent.get(next).isDone()))
+                collect(next++, order, sent, results, pending, pendingAt, commitSize);
+        }
+        while (next<order.size()) collect(next++, order, sent, results, pending, pendingAt, commitSize);
+        commit(pending, pendingAt, results);
+        return Arrays.asList(results);
+    }
+
+    private List<BatchResult> enqueueBatch(Collection<String> phones, MessageTemplate template) {
+        RateLimiter limiter = rateLimiter;
+        List<BatchResult> results = new ArrayList<>(phones.size());
+        for (String phone : phones) {
+            if (phone==null || !SmsUtil.detectType(phone).equals('P')) {
+                results.add(BatchResult.failed(phone, "Provided phone number not confirms API rules"));
+            } else if (limiter.acquire(phone)>0) {
+                metrics.rateLimited.increment();
+                results.add(BatchResult.failed(phone, RATE_LIMITED));
+            } else {
+                try {
+                    results.add(BatchResult.sent(phone, enqueue(phone, template)));
+                } catch (RuntimeException e) {
+                    results.add(BatchResult.failed(phone, "DB write failed: " + e.getMessage()));
+                }
+            }
+        }
+        return results;
+    }
+
+    private void collect(int at, List<String> order, List<CompletableFuture<String>> sent, BatchResult[] results,
+                         List<Confirmation> pending, List<Integer> pendingAt, int commitSize) {
+        String phone = order.get(at);
+        CompletableFuture<String> f = sent.get(at);
+        if (f==null) {
+            results[at] = BatchResult.failed(phone, "Provided phone number not confirms API rules");
+            return;
+        }
+        String code;
+        try {
+            code = f.join();
+        } catch (CompletionException|CancellationException e) {
+            Throwable cause = e.getCause()!=null ? e.getCause() : e;
+            results[at] = BatchResult.failed(phone, String.valueOf(cause.getMessage()));
+            return;
+        }
+        if (!isCode(code)) {
+            results[at] = BatchResult.failed(phone, code);
+            return;
+        }
+        results[at] = BatchResult.sent(phone, code);
+        pending.add(new Confirmation(phone, code));
+        pendingAt.add(at);
+        if (pending.size()>=commitSize) commit(pending, pendingAt, results);
+    }
+
+    private void commit(List<Confirmation> pending, List<Integer> pendingAt, BatchResult[] results) {
+        long start = System.nanoTime();
+        try {
+            bdb.addAll(pending);
+            metrics.store.since(start);
+        } catch (RuntimeException e) { // SMS is gone, but code is not stored, so it will never check
+            for (int at : pendingAt)
+                results[at] = BatchResult.failed(results[at].getPhone(), "DB write failed: " + e.getMessage());
+        }
+        pending.clear();
+        pendingAt.clear();
+    }
+
+    /**
+     * @return Snapshot of pooled connections to SMS gateway, with time spent waiting for connection lease,
+     * or null when configured transport does not send through HTTP pool, e.g. FakeTransport
+     */
+    public HttpPoolStats getHttpPoolStats() {
+        return poolStatsOf(transport);
+    }
+
+    static HttpPoolStats poolStatsOf(SmsTransport transport) {
+        if (transport instanceof NexmoTransport) return ((NexmoTransport) transport).getPoolStats();
+        if (transport instanceof RoutingTransport) return ((RoutingTransport) transport).getPoolStats();
+        return null;
+    }
+
+    /**
+     * @return Counters and latency histograms of this instance, with JE statistics of its BdbTools
+     */
+    public SmsMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets executor settings for sendAsync(). Has effect only before first sendAsync() call
+     *
+     * @param config Max in flight requests, threads and overflow policy
+     */
+    public void setAsyncConfig(AsyncConfig config) {
+        if (config==null) throw new IllegalArgumentException("config can not be null");
+        this.asyncConfig = config;
+    }
+
+    /**
+     * Replaces send rate limits, counters of phones start from scratch
+     *
+     * @param config Per-phone and namespace limits, RateLimitConfig.none() to turn limiting off
+     */
+    public void setRateLimitConfig(RateLimitConfig config) {
+        if (config==null) throw new IllegalArgumentException("config can not be null");
+        this.rateLimiter = new RateLimiter(config);
+    }
+
+    private AsyncSender asyncSender() {
+        AsyncSender sender = asyncSender;
+        if (sender==null) {
+            synchronized (this) {
+                if (asyncSender==null) asyncSender = new AsyncSender(asyncConfig);
+                sender = asyncSender;
+            }
+        }
+        return sender;
+    }
+
+    /**
+     * Turns durable outbox on or off. With outbox on send() does not wait for SMS gateway: code and
+     * its SMS are committed to DB in one transaction and background dispatcher delivers SMS later,
+     * retrying with exponential backoff and moving given up ones to dead letters. So returned code
+     * means SMS is accepted, not sent, and is never lost once accepted. Delivery is at-least-once,
+     * and only one SmsConfirmation per namespace should have outbox on.
+     * SMS left in outbox by previous run are picked up as soon as outbox is on again.
+     *
+     * @param config Outbox settings, or null to stop dispatcher (queued SMS stay in DB)
+     */
+    public synchronized void setOutboxConfig(OutboxConfig config) {
+        OutboxDispatcher old = outbox;
+        outbox = null;
+        if (old!=null) old.shutdown(30000);
+        if (config!=null) {
+            bdb.openOutbox();
+            outbox = new OutboxDispatcher(company, this, bdb, config, metrics).start();
+        }
+    }
+
+    /**
+     * @param limit Max entries to return
+     * @return SMS which outbox gave up to deliver, kept for a week, see setOutboxConfig()
+     */
+    public List<OutboxEntry> getDeadLetters(int limit) {
+        bdb.openOutbox();
+        return bdb.deadLetters(limit);
+    }
+
+    /**
+     * Stops outbox dispatcher and async executor (waiting up to 30s for in-flight sends each) and closes DB
+     */
+    public void close() {
+        setOutboxConfig(null);
+        AsyncSender sender = asyncSender;
+        if (sender!=null) sender.shutdown(30000);
+        metrics.unregisterMBean();
+        bdb.close();
+    }
+
+    /**
+     * Check if provided 4-digit code equals to generated and stored one. Atomic per phone, see BdbTools.confirm()
      * @param userPhone Phone to make check
      * @param code Given code, which will be checked
      * @return Hash code, which represents phone-code-time_of_check. Once code is checked
-     * this hash will remain constant, so can be used as reference or Primary Key for user
+     * this hash will remain constant, so can be used as reference or Primary Key for user.
+     * On replica and read-only store NOT_MASTER for right code, which is not confirmed yet
      */
     public String check(String userPhone, String code) {
-        String result = "fail";
-        Confirmation saved =  bdb.get(userPhone);
-        if (saved!=null && saved.code.equals(code)) {
-            if (saved.hash==null) {
-                saved.setTokenHash();
-                bdb.putNoTTL(saved); // strip TTL if confirmation succeeds
-            }
-            result =  saved.hash;
+        long start = System.nanoTime();
+        Confirmation confirmed;
+        try {
+            confirmed = bdb.confirm(userPhone, code); // strips TTL if confirmation succeeds
+        } catch (StateChangeException|UnsupportedOperationException e) { // replica, master has just stepped down, or read-only
+            return NOT_MASTER;
+        } finally {
+            metrics.confirm.since(start);
         }
-        return result;
+        if (confirmed==null) {
+            metrics.checkFail.increment();
+            return "fail";
+        }
+        metrics.checkOk.increment();
+        return confirmed.hash;
     }
 
     public String reHash(String hash) {
        String result = null;
+       long start = System.nanoTime();
        Confirmation confirmation = bdb.getByHash(hash);
+       metrics.lookup.since(start);
        if (confirmation!=null) {
          result = confirmation.getSign();
-       }
+         metrics.rehashHit.increment();
+       } else metrics.rehashMiss.increment();
        return result;
     }
 
+    /**
+     * @param code Value returned by sendSms()
+     * @return true if value is 4-digit code, anything else is error description
+     */
+    static boolean isCode(String code) {
+        return SmsUtil.isDigits(code, 4, 4);
+    }
+
     /**
      * Real private method to send SMS with
      * @param userPhone Phone number to send SMS
-     * @param body SMS text body
+     * @param template SMS text body
      * @return 4-digit random code of SMS sent
      */
-    private String sendSms(String userPhone, String body)  {
+    private String sendSms(String userPhone, MessageTemplate template)  {
         String code = getVerificationToken();
-        String msgWithCode = body.replaceAll("~",code);
-
-        List<BasicNameValuePair> parameters = new ArrayList<>(Arrays.asList(
-            new BasicNameValuePair("from", company),
-            new BasicNameValuePair("to", userPhone),
-            new BasicNameValuePair("text", msgWithCode),
-            new BasicNameValuePair("api_key", apiKey),
-            new BasicNameValuePair("api_secret", apiSecret)
-        ));
-
-        HttpPost method = new HttpPost(BASE_URL);
+        long start = System.nanoTime();
         try {
-          method.setEntity(new UrlEncodedFormEntity(parameters, "UTF-8"));
-        }  catch (UnsupportedEncodingException uee) {}
-
-        try {
-          HttpResponse httpResponse = HttpClientUtils.getInstance(5000, 30000)
-              .getNewHttpClient()
-              .execute(method);
-          int status = httpResponse.getStatusLine().getStatusCode();
-          InputStream is = httpResponse.getEntity().getContent();
-          java.util.Scanner s = new Scanner(is).useDelimiter("\\A");
-          String result = s.hasNext() ? s.next() : "";
-          if (status != 200) {
-              throw new SmsException("Non-200 response [" + status + "] from Nexmo-HTTPS");
-          }
-          if (!result.contains("\"status\": \"0\"")) {
-              throw new SmsException(result);
-          }
-//          new BasicResponseHandler().handleResponse(httpResponse);
-        } catch (IOException e) {
-// System.out.println(e.getMessage());
-            method.abort();
+          transport.send(company, userPhone, template, code);
+          metrics.sent.increment();
+        } catch (IOException e) { // SMS is most probably not sent, so code must not be stored
+            metrics.ioErrors.increment();
+            return "SMS gateway unreachable: " + e.getMessage();
         } catch (SmsException se) {
+            metrics.gatewayErrors.increment();
             return se.getMessage();
+        } finally {
+            metrics.gateway.since(start);
         }
         return code;
     }
@@ -4,7 +4,32 @@ package io.github.ac2epsilon.smsconfirmation;
  * Created by ac2 on 14.02.17.
  */
 public class SmsException extends Exception {
-    SmsException(String message) {
+    private static final long serialVersionUID = 1L;
+
+    private final boolean permanent;
+
+    /**
+     * Failure of gateway itself (throttling, internal error, bad account), other gateway may succeed
+     *
+     * @param message Error description
+     */
+    public SmsException(String message) {
+        this(message, false);
+    }
+
+    /**
+     * @param message Error description
+     * @param permanent true if SMS itself is refused (bad number, bad text), so no gateway will take it
+     */
+    public SmsException(String message, boolean permanent) {
         super(message);
+        this.permanent = permanent;
+    }
+
+    /**
+     * @return true if SMS itself is refused and should not be sent through other gateways
+     */
+    public boolean isPermanent() {
+        return permanent;
     }
 }
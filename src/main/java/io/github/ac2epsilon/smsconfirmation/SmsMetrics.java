@@ -0,0 +1,187 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of one SmsConfirmation, see {@link SmsConfirmation#getMetrics()}.
+ * Stages are: gateway (SmsTransport call), store (writing sent codes), confirm (check of code) and
+ * lookup (reHash). Recording is a few atomic increments, snapshot() and JMX/text views
+ * add JE environment statistics on top. Every value is exposed as read-only JMX attribute
+ * of the same name, once registerMBean() is called.
+ */
+public class SmsMetrics implements DynamicMBean {
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+    private static final String[] QUANTILE_NAMES = {"p50", "p99", "p999"};
+    private static final long JMX_SNAPSHOT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    final LatencyHistogram gateway = new LatencyHistogram();
+    final LatencyHistogram store = new LatencyHistogram();
+    final LatencyHistogram confirm = new LatencyHistogram();
+    final LatencyHistogram lookup = new LatencyHistogram();
+
+    final LongAdder sent = new LongAdder();
+    final LongAdder gatewayErrors = new LongAdder();
+    final LongAdder ioErrors = new LongAdder();
+    final LongAdder rateLimited = new LongAdder();
+    final LongAdder checkOk = new LongAdder();
+    final LongAdder checkFail = new LongAdder();
+    final LongAdder rehashHit = new LongAdder();
+    final LongAdder rehashMiss = new LongAdder();
+    final LongAdder serverErrors = new LongAdder();
+    final LongAdder serverBusy = new LongAdder();
+
+    private final SmsConfirmation sms;
+    private ObjectName registered;
+    private volatile Map<String, Number> jmxSnapshot;
+    private volatile long jmxSnapshotTaken;
+
+    SmsMetrics(SmsConfirmation sms) {
+        this.sms = sms;
+    }
+
+    /**
+     * Takes all values at once, in stable order. Latencies are in microseconds
+     *
+     * @return Metric name to value
+     */
+    public Map<String, Number> snapshot() {
+        Map<String, Number> m = new LinkedHashMap<>();
+        m.put("sent_total", sent.sum());
+        m.put("gateway_errors_total", gatewayErrors.sum());
+        m.put("io_errors_total", ioErrors.sum());
+        m.put("rate_limited_total", rateLimited.sum());
+        m.put("check_ok_total", checkOk.sum());
+        m.put("check_fail_total", checkFail.sum());
+        m.put("rehash_hit_total", rehashHit.sum());
+        m.put("rehash_miss_total", rehashMiss.sum());
+        m.put("server_errors_total", serverErrors.sum());
+        m.put("server_busy_total", serverBusy.sum());
+        OutboxDispatcher outbox = sms.outbox;
+        if (outbox!=null) {
+            m.put("outbox_retries_total", outbox.retries.sum());
+            m.put("outbox_dead_total", outbox.dead.sum());
+            m.put("outbox_superseded_total", outbox.superseded.sum());
+            m.put("outbox_in_flight", outbox.inFlight());
+        }
+        latency(m, "gateway", gateway);
+        latency(m, "store", store);
+        latency(m, "confirm", confirm);
+        latency(m, "lookup", lookup);
+        SmsTransport transport = sms.getTransport();
+        if (transport instanceof RoutingTransport) ((RoutingTransport) transport).addStats(m);
+        BdbTools bdb = sms.bdb;
+        if (bdb!=null) bdb.addEnvironmentStats(m);
+        return m;
+    }
+
+    private static void latency(Map<String, Number> m, String stage, LatencyHistogram h) {
+        m.put(stage + "_count", h.count());
+        m.put(stage + "_mean_us", h.meanNanos()/1000);
+        for (int i = 0; i < QUANTILES.length; i++)
+            m.put(stage + "_" + QUANTILE_NAMES[i] + "_us", h.percentileNanos(QUANTILES[i])/1000);
+        m.put(stage + "_max_us", h.maxNanos()/1000);
+    }
+
+    /**
+     * Plain-text form of snapshot(), one "sms_name value" per line, readable by Prometheus
+     *
+     * @return Text of all metrics
+     */
+    public String toText() {
+        StringBuilder sb = new StringBuilder(4096);
+        for (Map.Entry<String, Number> e : snapshot().entrySet())
+            sb.append("sms_").append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+        return sb.toString();
+    }
+
+    /**
+     * Registers metrics in platform MBean server as
+     * io.github.ac2epsilon.smsconfirmation:type=SmsConfirmation,name=&lt;company&gt;
+     *
+     * @param company Name to tell instances apart
+     * @throws IllegalStateException If registration fails, e.g. name is taken by other instance
+     */
+    public synchronized void registerMBean(String company) {
+        if (registered!=null) return;
+        try {
+            ObjectName name = new ObjectName("io.github.ac2epsilon.smsconfirmation:type=SmsConfirmation,name=" +
+                ObjectName.quote(company));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            registered = name;
+            jmxSnapshot = null; // taken by registration for MBeanInfo, store may be not open yet
+        } catch (JMException e) {
+            throw new IllegalStateException("Can not register metrics MBean", e);
+        }
+    }
+
+    /**
+     * Removes MBean, if registered
+     */
+    public synchronized void unregisterMBean() {
+        if (registered==null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered);
+        } catch (JMException e) { /* already gone */ }
+        registered = null;
+    }
+
+    /**
+     * Snapshot shared by JMX calls for a second, as consoles ask for MBeanInfo and then every attribute
+     * one by one, and each snapshot() collects JE statistics of all shards
+     */
+    private Map<String, Number> jmxSnapshot() {
+        Map<String, Number> m = jmxSnapshot;
+        long now = System.nanoTime();
+        if (m==null || now - jmxSnapshotTaken>=JMX_SNAPSHOT_NANOS) {
+            m = snapshot();
+            jmxSnapshotTaken = now;
+            jmxSnapshot = m;
+        }
+        return m;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Number value = jmxSnapshot().get(attribute);
+        if (value==null) throw new AttributeNotFoundException(attribute);
+        return value.longValue();
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Number> m = jmxSnapshot();
+        AttributeList list = new AttributeList();
+        for (String a : attributes) if (m.containsKey(a)) list.add(new Attribute(a, m.get(a).longValue()));
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException {
+        throw new MBeanException(new UnsupportedOperationException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        Map<String, Number> m = jmxSnapshot();
+        MBeanAttributeInfo[] attrs = new MBeanAttributeInfo[m.size()];
+        int i = 0;
+        for (String name : m.keySet())
+            attrs[i++] = new MBeanAttributeInfo(name, "long", name.replace('_', ' '), true, false, false);
+        return new MBeanInfo(SmsMetrics.class.getName(), "SMS confirmation metrics", attrs, null, null, null);
+    }
+}
@@ -0,0 +1,341 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import com.sleepycat.je.rep.ReplicaConsistencyException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HTTP/JSON front end of SmsConfirmation on JDK built-in server, started by "serve" command of main().
+ * <pre>
+ * POST /send          {"phone":"380501234567"}
+ * POST /check         {"phone":"380501234567", "code":"1234"}
+ * GET  /rehash/{hash}
+ * GET  /metrics       plain text, see SmsMetrics.toText()
+ * </pre>
+ * Every answer is JSON object with "status" field. Sent code is never given back, it goes only to phone.
+ * Message text is always the configured one, clients can not put their own text into SMS.
+ * Unexpected failures answer 500 and are counted as server_errors_total of SmsMetrics.
+ * Requests run on virtual threads when JVM has them (JDK 21+), otherwise on bounded platform pool;
+ * when pool and its queue are full, requests are answered 503 "busy" on a couple of spare threads, so
+ * accepting thread never waits. Embedding applications should run with -Dsun.net.httpserver.nodelay=true,
+ * otherwise every response waits for delayed ACK of the client, "serve" command sets it itself. On replica of replicated environment /send and
+ * confirming /check answer 503 with name of master node, replica lagging over its consistency policy gives 503 too. Responses always have Content-Length,
+ * so connections are kept alive; bodies over size limit are refused with 413.
+ */
+public class SmsServer {
+    private final SmsConfirmation sms;
+    private final InetSocketAddress address;
+    private int maxBodyBytes = 4096;
+    private int threads = 200;
+    private int backlog = 1024;
+    private int shutdownDelaySeconds = 5;
+    private HttpServer server;
+    private ExecutorService executor;
+    private ExecutorService busy;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    /**
+     * @param sms Configured SmsConfirmation, closed by stop()
+     * @param address Address and port to listen on
+     */
+    public SmsServer(SmsConfirmation sms, InetSocketAddress address) {
+        this.sms = sms;
+        this.address = address;
+    }
+
+    /**
+     * @param maxBodyBytes Request body size limit, default 4096
+     * @return this
+     */
+    public SmsServer setMaxBodyBytes(int maxBodyBytes) {
+        if (maxBodyBytes<1) throw new IllegalArgumentException("maxBodyBytes must be positive");
+        this.maxBodyBytes = maxBodyBytes;
+        return this;
+    }
+
+    /**
+     * @param threads Size of platform pool, when there are no virtual threads, default 200
+     * @return this
+     */
+    public SmsServer setThreads(int threads) {
+        if (threads<1) throw new IllegalArgumentException("threads must be positive");
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * @param backlog TCP accept queue length, default 1024
+     * @return this
+     */
+    public SmsServer setBacklog(int backlog) {
+        this.backlog = backlog;
+        return this;
+    }
+
+    /**
+     * @param seconds How long stop() waits for running requests, default 5
+     * @return this
+     */
+    public SmsServer setShutdownDelaySeconds(int seconds) {
+        if (seconds<0) throw new IllegalArgumentException("seconds can not be negative");
+        this.shutdownDelaySeconds = seconds;
+        return this;
+    }
+
+    /**
+     * Starts listening, does not block
+     *
+     * @return this
+     * @throws IOException If address can not be bound
+     */
+    public synchronized SmsServer start() throws IOException {
+        if (server!=null) throw new IllegalStateException("Server is already started");
+        server = HttpServer.create(address, backlog);
+        ExecutorService vt = AsyncSender.virtualExecutor();
+        if (vt==null) busy = busyExecutor();
+        executor = vt!=null ? vt : platformExecutor(threads, busy);
+        server.setExecutor(executor);
+        server.createContext("/send", exchange -> handle(exchange, "POST", this::send));
+        server.createContext("/check", exchange -> handle(exchange, "POST", this::check));
+        server.createContext("/rehash/", exchange -> handle(exchange, "GET", this::rehash));
+        server.createContext("/metrics", exchange -> handle(exchange, "GET", this::metrics));
+        server.createContext("/", exchange -> handle(exchange, null, e -> reply(e, 404, "{\"status\":\"not_found\"}")));
+        server.start();
+        return this;
+    }
+
+    /**
+     * @return Actual listening port, useful when started on port 0
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops accepting connections, waits up to shutdown delay for running requests, then closes
+     * SmsConfirmation with its BdbTools. Second call does nothing.
+     */
+    public synchronized void stop() {
+        if (server==null || stopped.getCount()==0) return;
+        server.stop(shutdownDelaySeconds);
+        executor.shutdown();
+        if (busy!=null) busy.shutdown();
+        try {
+            executor.awaitTermination(shutdownDelaySeconds + 1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+        sms.close();
+        stopped.countDown();
+    }
+
+    /**
+     * Blocks until stop() is done
+     *
+     * @throws InterruptedException If waiting thread is interrupted
+     */
+    public void await() throws InterruptedException {
+        stopped.await();
+    }
+
+    private static ExecutorService platformExecutor(int threads, ExecutorService busy) {
+        AtomicInteger n = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(threads*4), r -> {
+                Thread t = new Thread(r, "sms-http-" + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }, (r, p) -> busy.execute(r)); // handler sees BusyThread and answers 503 at once
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /** Thread of busy executor, requests coming to it are refused without touching SmsConfirmation */
+    private static class BusyThread extends Thread {
+        BusyThread(Runnable r, String name) {
+            super(r, name);
+            setDaemon(true);
+        }
+    }
+
+    private static ExecutorService busyExecutor() {
+        AtomicInteger n = new AtomicInteger();
+        return Executors.newFixedThreadPool(2, r -> new BusyThread(r, "sms-http-busy-" + n.incrementAndGet()));
+    }
+
+    private interface Handler {
+        void handle(HttpExchange exchange) throws IOException;
+    }
+
+    private void handle(HttpExchange exchange, String method, Handler handler) {
+        try {
+            if (Thread.currentThread() instanceof BusyThread) {
+                sms.getMetrics().serverBusy.increment();
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                exchange.getResponseHeaders().set("Connection", "close");
+                reply(exchange, 503, "{\"status\":\"busy\"}");
+                return;
+            }
+            if (method!=null && !method.equals(exchange.getRequestMethod())) {
+                drain(exchange);
+                exchange.getResponseHeaders().set("Allow", method);
+                reply(exchange, 405, "{\"status\":\"method_not_allowed\"}");
+                return;
+            }
+            handler.handle(exchange);
+        } catch (BodyTooLargeException e) {
+            reply(exchange, 413, "{\"status\":\"too_large\"}");
+        } catch (ReplicaConsistencyException e) {
+            reply(exchange, 503, "{\"status\":\"lagging\"}");
+        } catch (IllegalArgumentException e) {
+            reply(exchange, 400, "{\"status\":\"bad_request\",\"error\":" + quote(e.getMessage()) + "}");
+        } catch (Exception e) {
+            sms.getMetrics().serverErrors.increment();
+            reply(exchange, 500, "{\"status\":\"error\"}");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void send(HttpExchange exchange) throws IOException {
+        Request request = Request.parse(body(exchange));
+        if (request.phone==null) throw new IllegalArgumentException("phone is required");
+        String result = sms.send(request.phone);
+        if (result==SmsConfirmation.RATE_LIMITED) reply(exchange, 429, "{\"status\":\"rate_limited\"}");
+        else if (result==SmsConfirmation.NOT_MASTER) notMaster(exchange);
+        else if (SmsConfirmation.isCode(result)) reply(exchange, 200, "{\"status\":\"sent\"}");
+        else reply(exchange, 502, "{\"status\":\"failed\",\"error\":" + quote(result) + "}");
+    }
+
+    private void check(HttpExchange exchange) throws IOException {
+        Request request = Request.parse(body(exchange));
+        if (request.phone==null || request.code==null) throw new IllegalArgumentException("phone and code are required");
+        String hash = sms.check(request.phone, request.code);
+        if (hash==SmsConfirmation.NOT_MASTER) notMaster(exchange);
+        else if (!hash.equals("fail")) reply(exchange, 200, "{\"status\":\"confirmed\",\"hash\":" + quote(hash) + "}");
+        else reply(exchange, 403, "{\"status\":\"fail\"}");
+    }
+
+    private void notMaster(HttpExchange exchange) {
+        reply(exchange, 503, "{\"status\":\"not_master\",\"master\":" + quote(sms.bdb.getMasterName()) + "}");
+    }
+
+    private void rehash(HttpExchange exchange) throws IOException {
+        drain(exchange);
+        String hash = exchange.getRequestURI().getPath().substring("/rehash/".length());
+        String sign = hash.isEmpty() || hash.indexOf('/')>=0 ? null : sms.reHash(hash);
+        if (sign!=null) reply(exchange, 200, "{\"status\":\"confirmed\",\"sign\":" + quote(sign) + "}");
+        else reply(exchange, 404, "{\"status\":\"not_found\"}");
+    }
+
+    private void metrics(HttpExchange exchange) throws IOException {
+        drain(exchange);
+        byte[] body = sms.getMetrics().toText().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    private static class BodyTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        BodyTooLargeException() {
+            super("Request body too large");
+        }
+    }
+
+    /**
+     * Reads whole body, refusing declared or actual length over limit
+     */
+    private byte[] body(HttpExchange exchange) throws IOException {
+        String declared = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (declared!=null) {
+            long length;
+            try {
+                length = Long.parseLong(declared.trim());
+            } catch (NumberFormatException e) { throw new IllegalArgumentException("Bad Content-Length"); }
+            if (length>maxBodyBytes) throw new BodyTooLargeException();
+        }
+        InputStream in = exchange.getRequestBody();
+        byte[] buf = new byte[Math.min(maxBodyBytes + 1, 1024)];
+        int n = 0;
+        for (int r; (r = in.read(buf, n, buf.length - n))>0; ) {
+            n += r;
+            if (n>maxBodyBytes) throw new BodyTooLargeException();
+            if (n==buf.length) buf = Arrays.copyOf(buf, Math.min(buf.length*2, maxBodyBytes + 1));
+        }
+        return n==buf.length ? buf : Arrays.copyOf(buf, n);
+    }
+
+    private static void drain(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        byte[] skip = new byte[256];
+        while (in.read(skip)>0) { /* keep connection reusable */ }
+    }
+
+    private static void reply(HttpExchange exchange, int status, String json) {
+        try {
+            byte[] body = json.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(status, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.flush();
+        } catch (IOException e) { /* client is gone */ }
+    }
+
+    /**
+     * @return JSON string literal, or null literal
+     */
+    static String quote(String s) {
+        if (s==null) return "null";
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c=='"' || c=='\\') sb.append('\\').append(c);
+            else if (c<0x20) sb.append(String.format("\\u%04x", (int) c));
+            else sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Fields of /send and /check body, unknown fields are skipped
+     */
+    private static class Request {
+        String phone;
+        String code;
+
+        static Request parse(byte[] body) {
+            JsonScanner json = new JsonScanner(new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8));
+            Request r = new Request();
+            try {
+                if (json.next()!=JsonScanner.Token.BEGIN_OBJECT) throw new IllegalArgumentException("Body must be JSON object");
+                for (JsonScanner.Token t = json.next(); t!=JsonScanner.Token.END_OBJECT; t = json.next()) {
+                    if (t!=JsonScanner.Token.NAME) throw new IllegalArgumentException("Malformed JSON");
+                    if (json.textEquals("phone")) r.phone = string(json);
+                    else if (json.textEquals("code")) r.code = string(json);
+                    else json.skipValue();
+                }
+            } catch (IOException e) { // body is in memory already, so it is malformed JSON
+                throw new IllegalArgumentException(e.getMessage());
+            }
+            return r;
+        }
+
+        private static String string(JsonScanner json) throws IOException {
+            JsonScanner.Token t = json.next();
+            if (t!=JsonScanner.Token.STRING && t!=JsonScanner.Token.LITERAL) throw new IllegalArgumentException("Malformed JSON");
+            return json.text();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import java.io.IOException;
+
+/**
+ * Way to deliver SMS text to a phone, see SmsConfirmation.setTransport(). Implementations must be
+ * thread-safe, send() is called concurrently from request threads. NexmoTransport is the default,
+ * FakeTransport keeps messages in memory, RoutingTransport combines several transports.
+ */
+public interface SmsTransport {
+    /**
+     * Sends SMS, blocking until gateway accepts or refuses it
+     *
+     * @param from Sender name, company of SmsConfirmation
+     * @param to Phone number
+     * @param text Message with code already in it
+     * @throws IOException If gateway could not be reached or its answer was lost, SMS may or may not be sent
+     * @throws SmsException If gateway refused SMS, see SmsException.isPermanent()
+     */
+    void send(String from, String to, String text) throws IOException, SmsException;
+
+    /**
+     * Sends SMS of template with code in it. Transports which encode text themselves may override it
+     * to reuse work done once by template, default one just formats text
+     *
+     * @param from Sender name, company of SmsConfirmation
+     * @param to Phone number
+     * @param template Compiled message
+     * @param code Code to put in place of ~ signs
+     * @throws IOException Same as send(String, String, String)
+     * @throws SmsException Same as send(String, String, String)
+     */
+    default void send(String from, String to, MessageTemplate template, String code) throws IOException, SmsException {
+        send(from, to, template.format(code));
+    }
+
+    /**
+     * @return Short name for metrics and errors, e.g. "nexmo"
+     */
+    String getName();
+}
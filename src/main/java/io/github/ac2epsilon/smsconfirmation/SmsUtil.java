@@ -5,9 +5,6 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
 import java.util.concurrent.ThreadLocalRandom;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
 /**
  *
@@ -17,6 +14,19 @@ import java.util.stream.IntStream;
  *
  */
 public class SmsUtil {
+    /**
+     * Per-thread formatter, SimpleDateFormat itself is not thread-safe. Keeps last formatted second,
+     * as timestamp has no millis and it is often asked several times per second
+     */
+    private static final class Clock {
+        final DateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        final Date date = new Date();
+        long second = Long.MIN_VALUE;
+        String text;
+    }
+
+    private static final ThreadLocal<Clock> CLOCK = ThreadLocal.withInitial(Clock::new);
+
 /**
  *
  *  Returns formatted string of current date/time
@@ -24,8 +34,15 @@ public class SmsUtil {
  * @return Long man readable representation of current date/time
  */
     static public String timestamp() {
-        DateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
-        return format.format(new Date(System.currentTimeMillis()));
+        long now = System.currentTimeMillis();
+        long second = Math.floorDiv(now, 1000L);
+        Clock clock = CLOCK.get();
+        if (second!=clock.second) {
+            clock.date.setTime(now);
+            clock.text = clock.format.format(clock.date);
+            clock.second = second;
+        }
+        return clock.text;
     }
 /**
  *
@@ -34,10 +51,11 @@ public class SmsUtil {
  * @return Random 4-digit confirmation code as string
  */
     static public String getVerificationToken()  {
-        return IntStream.generate(()->ThreadLocalRandom.current().nextInt(10))
-            .limit(4)
-            .mapToObj(Integer::toString)
-            .collect(Collectors.joining());
+        int n = ThreadLocalRandom.current().nextInt(10000);
+        char[] digits = {
+            (char) ('0' + n/1000), (char) ('0' + n/100%10), (char) ('0' + n/10%10), (char) ('0' + n%10)
+        };
+        return new String(digits);
     }
 /**
  *
@@ -49,8 +67,27 @@ public class SmsUtil {
  */
     static Character detectType(String string) {
         Character result = 'U';
-        if (Pattern.compile("(^[0-9]{7,23}$)").matcher(string).matches()) result = 'P';
+        if (isDigits(string, 7, 23)) result = 'P';
 //        if (Pattern.compile("(^[A-Za-z0-9\\.]+@[A-Za-z0-9\\.]+$)").matcher(string).matches()) result = 'M'
         return result;
     }
+
+/**
+ *
+ * Plain loop in place of [0-9]{min,max} regex, which is called for every SMS
+ *
+ * @param string Text to check
+ * @param min Min length
+ * @param max Max length
+ * @return true if string is ASCII digits only, of length in given bounds
+ */
+    static boolean isDigits(String string, int min, int max) {
+        int n = string.length();
+        if (n<min || n>max) return false;
+        for (int i = 0; i < n; i++) {
+            char c = string.charAt(i);
+            if (c<'0' || c>'9') return false;
+        }
+        return true;
+    }
 }
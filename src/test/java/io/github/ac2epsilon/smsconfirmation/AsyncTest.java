@@ -0,0 +1,162 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AsyncTest {
+    private File dir;
+    private SmsConfirmation sms;
+    private FakeTransport fake;
+    private AsyncSender sender;
+
+    @After
+    public void tearDown() {
+        if (sms!=null) sms.close();
+        if (sender!=null) sender.shutdown(1000);
+        TempDirs.delete(dir);
+        sms = null;
+        sender = null;
+        dir = null;
+    }
+
+    private void open(AsyncConfig config, long latencyMillis) {
+        dir = TempDirs.create();
+        sms = new SmsConfirmation("co", "key", "secret", new BdbTools("co", dir, new BdbConfig()));
+        fake = new FakeTransport().setLatencyMillis(latencyMillis);
+        sms.setTransport(fake);
+        sms.setAsyncConfig(config);
+    }
+
+    private static void assertRejected(CompletableFuture<String> f) {
+        try {
+            f.join();
+            fail("not rejected");
+        } catch (CompletionException e) {
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+
+    private List<String> sentTo() {
+        List<String> to = new ArrayList<>();
+        for (FakeTransport.Message m : fake.getMessages()) to.add(m.getTo());
+        return to;
+    }
+
+    @Test
+    public void sendAsyncCompletesAndStoresCode() {
+        open(new AsyncConfig(), 0);
+        List<CompletableFuture<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 20; i++) futures.add(sms.sendAsync(TempDirs.phone(i)));
+        for (int i = 0; i < 20; i++) {
+            String code = futures.get(i).join();
+            assertTrue(code, SmsConfirmation.isCode(code));
+            assertEquals(40, sms.check(TempDirs.phone(i), code).length());
+        }
+        assertEquals(20, fake.getMessages().size());
+    }
+
+    @Test
+    public void rejectPolicyFailsOverMaxInFlight() {
+        open(new AsyncConfig().setMaxInFlight(2).setOverflow(AsyncConfig.Overflow.REJECT), 300);
+        CompletableFuture<String> first = sms.sendAsync(TempDirs.phone(1));
+        CompletableFuture<String> second = sms.sendAsync(TempDirs.phone(2));
+        assertRejected(sms.sendAsync(TempDirs.phone(3)));
+        assertTrue(SmsConfirmation.isCode(first.join()));
+        assertTrue(SmsConfirmation.isCode(second.join()));
+        assertTrue(SmsConfirmation.isCode(sms.sendAsync(TempDirs.phone(4)).join()));
+    }
+
+    @Test
+    public void fullQueueRejects() {
+        open(new AsyncConfig().setMaxInFlight(1).setMaxQueued(1), 300);
+        CompletableFuture<String> running = sms.sendAsync(TempDirs.phone(1));
+        CompletableFuture<String> queued = sms.sendAsync(TempDirs.phone(2));
+        assertRejected(sms.sendAsync(TempDirs.phone(3)));
+        assertTrue(SmsConfirmation.isCode(running.join()));
+        assertTrue(SmsConfirmation.isCode(queued.join()));
+    }
+
+    @Test
+    public void queuedRequestsRunInOrder() {
+        open(new AsyncConfig().setMaxInFlight(1), 10);
+        List<CompletableFuture<String>> futures = new ArrayList<>();
+        List<String> phones = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            phones.add(TempDirs.phone(i));
+            futures.add(sms.sendAsync(TempDirs.phone(i)));
+        }
+        for (CompletableFuture<String> f : futures) f.join();
+        assertEquals(phones, sentTo());
+    }
+
+    @Test
+    public void batchCompletesWithPerPhoneResults() {
+        open(new AsyncConfig().setMaxInFlight(4), 5);
+        List<String> phones = new ArrayList<>();
+        for (int i = 0; i < 30; i++) phones.add(TempDirs.phone(i));
+        phones.add(10, "not a phone");
+        List<BatchResult> results = sms.sendBatch(phones, "Code ~", 7);
+        assertEquals(phones.size(), results.size());
+        for (int i = 0; i < phones.size(); i++) {
+            BatchResult r = results.get(i);
+            assertEquals(phones.get(i), r.getPhone());
+            if (i==10) {
+                assertFalse(r.isSent());
+                continue;
+            }
+            assertTrue(r.getError(), r.isSent());
+            assertEquals("Code " + r.getCode(), fake.lastText(r.getPhone()));
+            assertNotEquals("fail", sms.check(r.getPhone(), r.getCode()));
+        }
+    }
+
+    @Test
+    public void batchDoesNotOvertakeQueuedRequests() throws InterruptedException {
+        open(new AsyncConfig().setMaxInFlight(1), 20);
+        List<String> phones = new ArrayList<>();
+        for (int i = 0; i < 20; i++) phones.add(TempDirs.phone(i));
+        Thread batch = new Thread(() -> sms.sendBatch(phones));
+        batch.start();
+        while (fake.getMessages().isEmpty()) Thread.sleep(1);
+        int sentBefore = fake.getMessages().size();
+        String single = TempDirs.phone(100);
+        assertTrue(SmsConfirmation.isCode(sms.sendAsync(single).join()));
+        batch.join();
+        // one batch SMS was running and at most one waited in queue, when single request came
+        int at = sentTo().indexOf(single);
+        assertTrue("sent as " + at + " after " + sentBefore, at<=sentBefore + 2);
+        assertEquals(21, fake.getMessages().size());
+    }
+
+    @Test
+    public void platformPoolCapsTasksInFlight() throws InterruptedException {
+        sender = new AsyncSender(new AsyncConfig().setThreads(2).setMaxInFlight(10));
+        CountDownLatch release = new CountDownLatch(1);
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            int n = i;
+            futures.add(sender.submit(() -> {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+                return n;
+            }));
+        }
+        assertEquals(2, sender.inFlight());
+        assertEquals(4, sender.queued());
+        release.countDown();
+        for (int i = 0; i < 6; i++) assertEquals(i, futures.get(i).join().intValue());
+        assertEquals(0, sender.queued());
+    }
+}
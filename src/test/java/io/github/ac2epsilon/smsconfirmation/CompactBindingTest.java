@@ -0,0 +1,100 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import com.sleepycat.je.DatabaseEntry;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class CompactBindingTest {
+
+    private static Confirmation roundTrip(Confirmation c) {
+        byte[] key = CompactBinding.phoneToKey(c.id);
+        byte[] data = CompactBinding.encode(c);
+        return CompactBinding.decode(CompactBinding.keyToPhone(key, 0, key.length), data, 0, data.length);
+    }
+
+    private static void assertSameFields(Confirmation expected, Confirmation actual) {
+        assertEquals(expected.id, actual.id);
+        assertEquals(expected.code, actual.code);
+        assertEquals(expected.issued, actual.issued);
+        assertEquals(expected.hash, actual.hash);
+        assertEquals(expected.created, actual.created);
+        assertEquals(expected.getSign(), actual.getSign());
+    }
+
+    @Test
+    public void pendingRecordRoundTrip() {
+        Confirmation c = new Confirmation("380501234567", "0042");
+        assertSameFields(c, roundTrip(c));
+    }
+
+    @Test
+    public void confirmedRecordRoundTripIsPacked() {
+        Confirmation c = new Confirmation("380501234567", "1234");
+        c.setTokenHash();
+        byte[] data = CompactBinding.encode(c);
+        int flags = data[0] & 0xff;
+        assertEquals(CompactBinding.CODE_SHORT | CompactBinding.ISSUED_PACKED | CompactBinding.HASH_BIN | CompactBinding.CREATED, flags);
+        assertSameFields(c, roundTrip(c));
+        assertArrayEquals(CompactBinding.hashToKey(c.hash), CompactBinding.hashKeyOf(data, 0, data.length));
+    }
+
+    @Test
+    public void foreignValuesAreKeptAsStrings() {
+        Confirmation c = new Confirmation("+1 (555) 010", "12a");
+        c.issued = "yesterday at noon";
+        c.hash = "NOT-A-SHA1";
+        c.created = 0;
+        byte[] data = CompactBinding.encode(c);
+        int flags = data[0] & 0xff;
+        assertEquals(CompactBinding.CODE_RAW | CompactBinding.ISSUED_RAW | CompactBinding.HASH_RAW, flags);
+        assertSameFields(c, roundTrip(c));
+        byte[] hashKey = CompactBinding.hashKeyOf(data, 0, data.length);
+        assertEquals(c.hash, CompactBinding.keyToHash(hashKey, 0, hashKey.length));
+    }
+
+    @Test
+    public void hashKeysRoundTrip() {
+        Confirmation c = new Confirmation("380501234567", "1234");
+        c.setTokenHash();
+        for (String hash : new String[] {c.hash, "short", "x"}) {
+            byte[] key = CompactBinding.hashToKey(hash);
+            assertEquals(hash, CompactBinding.keyToHash(key, 0, key.length));
+        }
+        assertEquals(20, CompactBinding.hashToKey(c.hash).length);
+    }
+
+    @Test
+    public void keyOrderIsPhoneOrder() {
+        String[] phones = {"", "0", "00", "01", "1", "12", "123", "1234567890123", "2", "380501234567",
+            "380501234568", "9", "99999999999999", "+380", "abc"};
+        String[] sorted = phones.clone();
+        Arrays.sort(sorted);
+        byte[][] keys = new byte[phones.length][];
+        for (int i = 0; i < phones.length; i++) {
+            keys[i] = CompactBinding.phoneToKey(phones[i]);
+            assertEquals(phones[i], CompactBinding.keyToPhone(keys[i], 0, keys[i].length));
+        }
+        for (int i = 0; i < phones.length; i++) {
+            for (int j = 0; j < phones.length; j++) {
+                boolean digits = phones[i].matches("[0-9]+") && phones[j].matches("[0-9]+");
+                if (!digits) continue; // non-digit keys only have to sort after digit ones
+                int expected = Integer.signum(phones[i].compareTo(phones[j]));
+                int actual = Integer.signum(CompactBinding.compareKeys(new DatabaseEntry(keys[i]), keys[j]));
+                assertEquals(phones[i] + " vs " + phones[j], expected, actual);
+            }
+        }
+        assertTrue(CompactBinding.compareKeys(new DatabaseEntry(CompactBinding.phoneToKey("99999999999999")),
+            CompactBinding.phoneToKey("+380"))<0);
+    }
+
+    @Test
+    public void compareKeysHonoursOffset() {
+        byte[] key = CompactBinding.phoneToKey("380501234567");
+        byte[] padded = new byte[key.length + 3];
+        System.arraycopy(key, 0, padded, 2, key.length);
+        assertEquals(0, CompactBinding.compareKeys(new DatabaseEntry(padded, 2, key.length), key));
+    }
+}
@@ -0,0 +1,132 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Short run of benchmarks' CheckStress: every hot phone has one writer re-sending codes, other threads
+ * confirm current codes. Check must never overwrite newer code, nor issue two hashes for one code
+ */
+public class ConcurrentCheckTest {
+    private static final int PHONES = 4;
+    private static final int CHECKERS = 8;
+    private static final long MILLIS = 1500;
+
+    private File dir;
+    private BdbTools bdb;
+
+    @After
+    public void tearDown() {
+        if (bdb!=null) bdb.close();
+        TempDirs.delete(dir);
+    }
+
+    @Test
+    public void singleShard() throws InterruptedException {
+        stress(1, false);
+    }
+
+    @Test
+    public void threeShards() throws InterruptedException {
+        stress(3, false);
+    }
+
+    @Test
+    public void threeShardsWithCache() throws InterruptedException {
+        stress(3, true);
+    }
+
+    @Test
+    public void repeatedChecksAreServedByCache() {
+        dir = TempDirs.create();
+        bdb = new BdbTools("stress", dir, new BdbConfig());
+        bdb.enableCache(100);
+        SmsConfirmation sms = new SmsConfirmation("stress", "key", "secret", bdb);
+        String phone = TempDirs.phone(1);
+        bdb.add(phone, "1234");
+
+        assertEquals("fail", sms.check(phone, "4321"));        // miss, read under lock fills cache
+        long hits = bdb.getCacheStats().getHits();
+        assertEquals("fail", sms.check(phone, "4321"));        // wrong code, from cache
+        assertEquals(hits + 1, bdb.getCacheStats().getHits());
+        String hash = sms.check(phone, "1234");                // pending to confirmed, takes the lock
+        assertEquals(40, hash.length());
+        hits = bdb.getCacheStats().getHits();
+        for (int i = 0; i < 10; i++) assertEquals(hash, sms.check(phone, "1234"));
+        assertEquals(hits + 10, bdb.getCacheStats().getHits());
+        assertEquals("fail", sms.check(phone, "4321"));
+
+        bdb.add(phone, "5555"); // new code invalidates cached confirmation
+        assertEquals("fail", sms.check(phone, "1234"));
+        assertNotEquals(hash, sms.check(phone, "5555"));
+    }
+
+    private void stress(int shards, boolean cache) throws InterruptedException {
+        dir = TempDirs.create();
+        bdb = new BdbTools("stress", dir, new BdbConfig().setShards(shards));
+        if (cache) bdb.enableCache(100);
+        String[] phone = new String[PHONES];
+        String[] lastCode = new String[PHONES];
+        for (int i = 0; i < PHONES; i++) phone[i] = TempDirs.phone(i);
+        ConcurrentHashMap<String, String> issued = new ConcurrentHashMap<>();
+        LongAdder lostUpdates = new LongAdder(), doubleIssues = new LongAdder(), confirmed = new LongAdder();
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> workers = new ArrayList<>();
+
+        for (int p = 0; p < PHONES; p++) {
+            int n = p;
+            workers.add(new Thread(() -> {
+                for (int gen = 0; gen < 10000 && !stop.get(); gen++) { // codes of a phone stay unique
+                    String code = String.format("%04d", gen);
+                    bdb.add(phone[n], code);
+                    lastCode[n] = code;
+                    Confirmation back = bdb.get(phone[n]);
+                    if (back==null || !back.code.equals(code)) lostUpdates.increment();
+                }
+            }));
+        }
+        for (int t = 0; t < CHECKERS; t++) {
+            workers.add(new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (!stop.get()) {
+                    int n = random.nextInt(PHONES);
+                    Confirmation current = bdb.get(phone[n]);
+                    if (current==null) continue;
+                    Confirmation c = bdb.confirm(phone[n], current.code);
+                    if (c==null) continue;
+                    confirmed.increment();
+                    String first = issued.putIfAbsent(phone[n] + "/" + current.code, c.hash);
+                    if (first!=null && !first.equals(c.hash)) doubleIssues.increment();
+                }
+            }));
+        }
+        for (Thread w : workers) {
+            w.setUncaughtExceptionHandler((thread, e) -> { error.compareAndSet(null, e); stop.set(true); });
+            w.start();
+        }
+        Thread.sleep(MILLIS);
+        stop.set(true);
+        for (Thread w : workers) w.join();
+
+        assertNull("worker failed: " + error.get(), error.get());
+        for (int p = 0; p < PHONES; p++) {
+            Confirmation last = bdb.get(phone[p]);
+            if (last==null || !last.code.equals(lastCode[p])) lostUpdates.increment();
+        }
+        assertEquals("lost updates", 0, lostUpdates.sum());
+        assertEquals("double issues", 0, doubleIssues.sum());
+        assertTrue("nothing confirmed", confirmed.sum()>0);
+    }
+}
@@ -0,0 +1,182 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ConfirmationCacheTest {
+    private File dir;
+    private BdbTools bdb;
+
+    @After
+    public void tearDown() {
+        if (bdb!=null) bdb.close();
+        TempDirs.delete(dir);
+        bdb = null;
+        dir = null;
+    }
+
+    private void open(BdbConfig config) {
+        dir = TempDirs.create();
+        bdb = new BdbTools("co", dir, config.setLookupCacheEntries(1000));
+    }
+
+    private static Confirmation expiring(int i, long expires) {
+        Confirmation c = new Confirmation(TempDirs.phone(i), "1234");
+        c.expires = expires;
+        return c;
+    }
+
+    /** Phones, which land in the same segment of cache, so any of them can push out other ones */
+    private static String[] phonesOfOneSegment(int n) {
+        String[] found = new String[n];
+        int count = 0;
+        for (int i = 0; count < n; i++) {
+            int h = TempDirs.phone(i).hashCode();
+            if (((h ^ (h>>>16)) & 15)==0) found[count++] = TempDirs.phone(i);
+        }
+        return found;
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() {
+        ConfirmationCache cache = new ConfirmationCache(32); // two entries per segment
+        String[] same = phonesOfOneSegment(3);
+        cache.put(new Confirmation(same[0], "1111"), cache.stamp());
+        cache.put(new Confirmation(same[1], "2222"), cache.stamp());
+        assertNotNull(cache.get(same[0])); // now second one is least recently used
+        cache.put(new Confirmation(same[2], "3333"), cache.stamp());
+        assertEquals(1, cache.stats().getEvictions());
+        assertEquals(2, cache.stats().getSize());
+        assertNull(cache.get(same[1]));
+        assertEquals("1111", cache.get(same[0]).code);
+        assertEquals("3333", cache.get(same[2]).code);
+    }
+
+    @Test
+    public void evictedRecordIsReadAgainFromStore() {
+        open(new BdbConfig());
+        bdb.enableCache(16); // one entry per segment
+        String[] same = phonesOfOneSegment(2);
+        for (String phone : same) bdb.add(phone, "1234");
+        for (String phone : same) assertNotNull(bdb.get(phone));
+        assertEquals(1, bdb.getCacheStats().getEvictions());
+        assertNotNull(bdb.get(same[0]));
+        assertEquals(0, bdb.getCacheStats().getHits());
+        assertEquals(3, bdb.getCacheStats().getMisses());
+    }
+
+    @Test
+    public void entryExpiresWithRecord() {
+        ConfirmationCache cache = new ConfirmationCache(100);
+        long now = System.currentTimeMillis();
+        Confirmation live = expiring(1, now + TimeUnit.HOURS.toMillis(1));
+        live.setTokenHash();
+        Confirmation gone = expiring(2, now - 1);
+        gone.setTokenHash();
+        Confirmation permanent = expiring(3, 0);
+        for (Confirmation c : new Confirmation[] {live, gone, permanent}) cache.put(c, cache.stamp());
+
+        assertNotNull(cache.get(live.id));
+        assertNotNull(cache.getByHash(live.hash));
+        assertNotNull(cache.get(permanent.id));
+        assertNull(cache.getByHash(gone.hash));
+        assertNull(cache.get(gone.id));
+        assertEquals(1, cache.stats().getExpirations());
+        assertEquals(2, cache.stats().getSize());
+    }
+
+    @Test
+    public void cachedRecordCarriesTtlOfStore() {
+        open(new BdbConfig());
+        String phone = TempDirs.phone(1);
+        bdb.add(phone, "1234");
+        Confirmation read = bdb.get(phone);
+        assertTrue(read.expires>System.currentTimeMillis());
+        assertEquals(read.expires, bdb.get(phone).expires);
+        assertEquals(1, bdb.getCacheStats().getHits());
+    }
+
+    @Test
+    public void staleReadIsNotCached() {
+        ConfirmationCache cache = new ConfirmationCache(100);
+        Confirmation old = expiring(1, 0);
+        long stamp = cache.stamp(); // reader takes stamp and reads DB
+        cache.invalidate(old.id); // writer commits new code meanwhile
+        cache.put(old, stamp);
+        assertNull(cache.get(old.id));
+        cache.put(old, cache.stamp());
+        assertNotNull(cache.get(old.id));
+    }
+
+    @Test
+    public void writesInvalidateCachedRecord() {
+        open(new BdbConfig());
+        String phone = TempDirs.phone(1);
+        bdb.add(phone, "1111");
+        assertEquals("1111", bdb.get(phone).code);
+        bdb.add(phone, "2222");
+        assertEquals("2222", bdb.get(phone).code);
+
+        Confirmation confirmed = bdb.get(phone);
+        confirmed.setTokenHash();
+        bdb.putNoTTL(confirmed);
+        Confirmation read = bdb.get(phone);
+        assertEquals(confirmed.hash, read.hash);
+        assertEquals(0, read.expires);
+        assertEquals(phone, bdb.getByHash(confirmed.hash).id);
+
+        assertNotNull(bdb.delete(phone));
+        assertNull(bdb.get(phone));
+        assertNull(bdb.getByHash(confirmed.hash));
+    }
+
+    @Test
+    public void sweepInvalidatesPurgedRecord() {
+        open(new BdbConfig().setCodeValidityMinutes(10).setSweepRate(0));
+        Confirmation old = new Confirmation(TempDirs.phone(1), "1234");
+        old.created -= TimeUnit.MINUTES.toMillis(11);
+        bdb.addAll(Collections.singletonList(old));
+        assertNotNull(bdb.get(old.id));
+        assertEquals(1, bdb.sweep(100));
+        assertNull(bdb.get(old.id));
+        assertEquals(0, bdb.getCacheStats().getSize());
+    }
+
+    @Test
+    public void cacheIsRefusedOnSharedStore() {
+        dir = TempDirs.create();
+        bdb = new BdbTools("co", dir, new BdbConfig());
+        bdb.add(TempDirs.phone(1), "1234"); // opens store
+        BdbTools other = new BdbTools("co", dir, new BdbConfig().setLazyOpen(false));
+        try {
+            bdb.enableCache(100);
+            fail("cache enabled on store, shared with other BdbTools");
+        } catch (IllegalStateException expected) { /* other one writes past cache */ }
+        finally {
+            other.close();
+        }
+        bdb.enableCache(100);
+        assertNotNull(bdb.get(TempDirs.phone(1)));
+    }
+
+    @Test
+    public void cachedInstanceRefusesToShareLazyStore() {
+        open(new BdbConfig());
+        BdbTools other = new BdbTools("co", dir, new BdbConfig().setLazyOpen(false));
+        try {
+            bdb.add(TempDirs.phone(1), "1234");
+            fail("cached store opened while shared with other BdbTools");
+        } catch (IllegalStateException expected) { /* refused on lazy open */ }
+        finally {
+            other.close();
+        }
+        bdb.add(TempDirs.phone(1), "1234");
+        assertEquals("1234", bdb.get(TempDirs.phone(1)).code);
+    }
+}
@@ -0,0 +1,19 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import com.sleepycat.persist.impl.Enhanced;
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Fails the build when it was asked to enhance DPL entities (-Denhance.skip=false), but ClassEnhancer
+ * did not touch them, e.g. because antrun execution was not bound or ran on other directory
+ */
+public class EnhancementTest {
+    @Test
+    public void confirmationIsEnhanced() {
+        assumeTrue("enhancement is off", "false".equals(System.getProperty("enhance.skip")));
+        assertTrue("Confirmation is not enhanced by ClassEnhancer", Enhanced.class.isAssignableFrom(Confirmation.class));
+    }
+}
@@ -0,0 +1,111 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ExpiryTest {
+    private static final long OLD = TimeUnit.MINUTES.toMillis(11);
+
+    private File dir;
+    private BdbTools bdb;
+
+    @After
+    public void tearDown() {
+        if (bdb!=null) bdb.close();
+        TempDirs.delete(dir);
+    }
+
+    private void open(BdbConfig config) {
+        dir = TempDirs.create();
+        bdb = new BdbTools("co", dir, config.setCodeValidityMinutes(10).setSweepRate(0));
+    }
+
+    private static Confirmation pending(int i, long age) {
+        Confirmation c = new Confirmation(TempDirs.phone(i), "1234");
+        c.created -= age;
+        return c;
+    }
+
+    @Test
+    public void expiredCodeDoesNotConfirm() {
+        open(new BdbConfig());
+        List<Confirmation> records = new ArrayList<>();
+        records.add(pending(1, OLD));
+        records.add(pending(2, 0));
+        Confirmation legacy = pending(3, 0);
+        legacy.created = 0; // written by older version, only TTL counts
+        records.add(legacy);
+        bdb.addAll(records);
+        assertNull(bdb.confirm(TempDirs.phone(1), "1234"));
+        assertNotNull(bdb.confirm(TempDirs.phone(2), "1234"));
+        assertNotNull(bdb.confirm(TempDirs.phone(3), "1234"));
+    }
+
+    @Test
+    public void sweepPurgesOnlyExpiredPending() {
+        open(new BdbConfig().setShards(2));
+        List<Confirmation> records = new ArrayList<>();
+        for (int i = 0; i < 300; i++) records.add(pending(i, i%3==0 ? OLD : 0));
+        Confirmation confirmed = pending(1000, OLD);
+        confirmed.setTokenHash();
+        records.add(confirmed);
+        bdb.addAll(records);
+        bdb.putNoTTL(confirmed);
+
+        int purged = 0;
+        for (int step = 0; step < 20; step++) purged += bdb.sweep(64); // a few full passes over both shards
+        assertEquals(100, purged);
+        for (int i = 0; i < 300; i++) {
+            if (i%3==0) assertNull(TempDirs.phone(i), bdb.get(TempDirs.phone(i)));
+            else assertNotNull(TempDirs.phone(i), bdb.get(TempDirs.phone(i)));
+        }
+        assertNotNull(bdb.get(confirmed.id));
+        assertEquals(0, bdb.sweep(1000));
+    }
+
+    @Test
+    public void sweepKeepsCodeSentAgain() {
+        open(new BdbConfig());
+        bdb.addAll(Collections.singletonList(pending(1, OLD)));
+        bdb.add(TempDirs.phone(1), "4321"); // new code, before sweeper came
+        assertEquals(0, bdb.sweep(100));
+        assertNotNull(bdb.confirm(TempDirs.phone(1), "4321"));
+    }
+
+    @Test
+    public void sweepStepIsBoundedByRecordsLookedAt() {
+        open(new BdbConfig());
+        List<Confirmation> records = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Confirmation confirmed = pending(i, OLD);
+            confirmed.setTokenHash();
+            records.add(confirmed);
+        }
+        records.add(pending(500, OLD)); // the only expired pending one, after all confirmed in key order
+        bdb.addAll(records);
+
+        for (int step = 0; step < 10; step++) assertEquals("step " + step, 0, bdb.sweep(10));
+        assertEquals(0, bdb.sweepPasses.sum());
+        assertEquals(1, bdb.sweep(10));
+        assertEquals(1, bdb.sweepPasses.sum());
+        assertNull(bdb.get(TempDirs.phone(500)));
+        assertNotNull(bdb.get(TempDirs.phone(0)));
+    }
+
+    @Test
+    public void noSweepWithoutValidityWindow() {
+        dir = TempDirs.create();
+        bdb = new BdbTools("co", dir, new BdbConfig());
+        bdb.addAll(Collections.singletonList(pending(1, OLD)));
+        assertEquals(0, bdb.sweep(100));
+        assertNotNull(bdb.confirm(TempDirs.phone(1), "1234"));
+    }
+}
@@ -0,0 +1,117 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import static org.junit.Assert.*;
+
+public class HashFilterTest {
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = TempDirs.create();
+    }
+
+    @After
+    public void tearDown() {
+        TempDirs.delete(dir);
+    }
+
+    private static String hash(int i) {
+        Confirmation c = new Confirmation(TempDirs.phone(i), "1234");
+        c.setTokenHash();
+        return c.hash;
+    }
+
+    @Test
+    public void filterIsTrustedOnlyWhenReady() {
+        HashFilter filter = new HashFilter(HashFilter.bitsFor(1000));
+        for (int i = 0; i < 1000; i++) filter.add(hash(i));
+        assertTrue(filter.mightContain("whatever"));
+        filter.ready();
+        for (int i = 0; i < 1000; i++) assertTrue(filter.mightContain(hash(i)));
+        int falsePositives = 0;
+        for (int i = 1000; i < 11000; i++) if (filter.mightContain(hash(i))) falsePositives++;
+        assertTrue("false positives " + falsePositives, falsePositives<300);
+        filter.add("not-a-sha1");
+        assertTrue(filter.mightContain("not-a-sha1"));
+    }
+
+    @Test
+    public void saveAndLoad() throws IOException {
+        HashFilter filter = new HashFilter(HashFilter.bitsFor(100));
+        for (int i = 0; i < 100; i++) filter.add(hash(i));
+        filter.ready();
+        File file = new File(dir, "filter.bloom");
+        filter.save(file, "DPL#co", "00000000.jdb:1234");
+        HashFilter loaded = HashFilter.load(file, "DPL#co", "00000000.jdb:1234");
+        assertNotNull(loaded);
+        assertTrue(loaded.isReady());
+        assertEquals(filter.bits(), loaded.bits());
+        for (int i = 0; i < 100; i++) assertTrue(loaded.mightContain(hash(i)));
+        for (int i = 100; i < 1100; i++) assertEquals(filter.mightContain(hash(i)), loaded.mightContain(hash(i)));
+    }
+
+    @Test
+    public void staleOrForeignFileIsRejected() throws IOException {
+        HashFilter filter = new HashFilter(1024);
+        filter.ready();
+        File file = new File(dir, "filter.bloom");
+        filter.save(file, "DPL#co", "00000000.jdb:1234");
+        assertNull(HashFilter.load(file, "DPL#co", "00000000.jdb:1300"));
+        assertNull(HashFilter.load(file, "DPL#co", "00000001.jdb:1234"));
+        assertNull(HashFilter.load(file, "COMPACT#co", "00000000.jdb:1234"));
+        assertNull(HashFilter.load(new File(dir, "missing.bloom"), "DPL#co", "00000000.jdb:1234"));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 8);
+        }
+        assertNull(HashFilter.load(file, "DPL#co", "00000000.jdb:1234"));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.writeLong(0);
+        }
+        assertNull(HashFilter.load(file, "DPL#co", "00000000.jdb:1234"));
+    }
+
+    /**
+     * Filter file of an older log state must be rebuilt, otherwise hashes written after it would be lost
+     */
+    @Test
+    public void storeIgnoresFilterOfOlderLog() throws IOException {
+        BdbConfig config = new BdbConfig().setHashFilterEntries(1000).setLazyOpen(false);
+        BdbTools bdb = new BdbTools("co", dir, config);
+        Confirmation first = new Confirmation(TempDirs.phone(1), "1234");
+        first.setTokenHash();
+        bdb.putNoTTL(first);
+        bdb.close();
+        File[] saved = dir.listFiles((d, name) -> name.endsWith(".bloom"));
+        assertEquals(1, saved.length);
+        File old = new File(dir, "old.copy");
+        Files.copy(saved[0].toPath(), old.toPath());
+
+        bdb = new BdbTools("co", dir, config);
+        assertEquals(first.id, bdb.getByHash(first.hash).id);
+        Confirmation second = new Confirmation(TempDirs.phone(2), "1234");
+        second.setTokenHash();
+        bdb.putNoTTL(second);
+        bdb.close();
+
+        Files.move(old.toPath(), saved[0].toPath(), StandardCopyOption.REPLACE_EXISTING);
+        bdb = new BdbTools("co", dir, config);
+        try {
+            Confirmation found = bdb.getByHash(second.hash);
+            assertNotNull("hash written after saved filter is lost", found);
+            assertEquals(second.id, found.id);
+            assertNull(bdb.getByHash(hash(3)));
+        } finally {
+            bdb.close();
+        }
+    }
+}
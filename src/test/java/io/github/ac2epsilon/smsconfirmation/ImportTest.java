@@ -0,0 +1,119 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class ImportTest {
+    private static final int RECORDS = 300;
+
+    private File source;
+    private File target;
+    private BdbTools bdb;
+
+    @After
+    public void tearDown() {
+        if (bdb!=null) bdb.close();
+        TempDirs.delete(source);
+        TempDirs.delete(target);
+        bdb = null;
+        source = target = null;
+    }
+
+    /**
+     * Even records are confirmed, odd ones pending with TTL of 5 hours
+     */
+    private BdbTools fill(BdbConfig.Format format) {
+        source = TempDirs.create();
+        BdbTools src = new BdbTools("co", source, new BdbConfig().setFormat(format).setPendingTtlHours(5));
+        for (int i = 0; i < RECORDS; i++) {
+            if (i%2==0) {
+                Confirmation c = new Confirmation(TempDirs.phone(i), "1234");
+                c.setTokenHash();
+                src.putNoTTL(c);
+            } else src.add(TempDirs.phone(i), "1234");
+        }
+        return src;
+    }
+
+    private void roundTrip(BdbConfig.Format from, BdbConfig.Format to, boolean dump) throws IOException {
+        BdbTools src = fill(from);
+        List<Confirmation> expected;
+        Path file = new File(source, dump ? "export.dump" : "export.ndjson").toPath();
+        try {
+            expected = src.stream(ConfirmationFilter.ALL).collect(Collectors.toList());
+            long exported = dump ? src.exportDump(file, ConfirmationFilter.ALL) : src.exportNdjson(file, ConfirmationFilter.ALL);
+            assertEquals(RECORDS, exported);
+        } finally {
+            src.close();
+        }
+        target = TempDirs.create();
+        BdbConfig config = new BdbConfig().setFormat(to);
+        assertEquals(RECORDS, BdbTools.importFile("co", target, config, file));
+        bdb = new BdbTools("co", target, config);
+        for (Confirmation e : expected) {
+            Confirmation c = bdb.get(e.id);
+            assertNotNull(e.id, c);
+            assertEquals(e.code, c.code);
+            assertEquals(e.issued, c.issued);
+            assertEquals(e.hash, c.hash);
+            assertEquals(e.created, c.created);
+            assertEquals("expiration of " + e.id, e.expires, c.expires);
+            if (e.hash!=null) {
+                assertEquals(0, c.expires);
+                assertEquals(e.id, bdb.getByHash(e.hash).id);
+            } else {
+                assertTrue(c.expires>System.currentTimeMillis() + TimeUnit.HOURS.toMillis(4));
+            }
+        }
+        assertEquals(RECORDS, bdb.stream(ConfirmationFilter.ALL).count());
+        tearDown();
+    }
+
+    @Test
+    public void ndjsonRoundTripKeepsTtl() throws IOException {
+        roundTrip(BdbConfig.Format.DPL, BdbConfig.Format.DPL, false);
+        roundTrip(BdbConfig.Format.COMPACT, BdbConfig.Format.COMPACT, false);
+    }
+
+    @Test
+    public void dumpRoundTripKeepsTtl() throws IOException {
+        roundTrip(BdbConfig.Format.COMPACT, BdbConfig.Format.COMPACT, true);
+        roundTrip(BdbConfig.Format.DPL, BdbConfig.Format.COMPACT, true);
+    }
+
+    @Test
+    public void expiredRecordsAreSkipped() throws IOException {
+        target = TempDirs.create();
+        Path file = new File(target, "old.ndjson").toPath();
+        long past = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1);
+        Files.write(file, Arrays.asList(
+            "{\"phone\":\"380100000001\",\"code\":\"1111\",\"issued\":null,\"hash\":null,\"created\":0,\"expires\":" + past + "}",
+            "{\"phone\":\"380100000002\",\"code\":\"2222\",\"issued\":null,\"hash\":null,\"created\":0,\"expires\":0}"),
+            StandardCharsets.UTF_8);
+        File dir = new File(target, "env");
+        assertEquals(1, BdbTools.importFile("co", dir, new BdbConfig(), file));
+        bdb = new BdbTools("co", dir);
+        assertNull(bdb.get("380100000001"));
+        assertEquals("2222", bdb.get("380100000002").code);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void refusesNonEmptyStore() throws IOException {
+        fill(BdbConfig.Format.DPL).close();
+        Path file = new File(source, "one.ndjson").toPath();
+        Files.write(file, Arrays.asList("{\"phone\":\"380100000001\",\"code\":\"1111\"}"), StandardCharsets.UTF_8);
+        BdbTools.importFile("co", source, new BdbConfig(), file);
+    }
+}
@@ -0,0 +1,81 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void emptyHistogramIsZero() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.count());
+        assertEquals(0, h.meanNanos());
+        assertEquals(0, h.maxNanos());
+        assertEquals(0, h.percentileNanos(0.99));
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int v = 1; v <= 16; v++) h.record(v);
+        h.record(-5); // clock went back, counts as 0
+        assertEquals(17, h.count());
+        assertEquals(0, h.percentileNanos(0));
+        assertEquals(8, h.percentileNanos(0.5));
+        assertEquals(15, h.percentileNanos(0.9));
+        assertEquals(16, h.percentileNanos(1));
+        assertEquals(16, h.maxNanos());
+        assertEquals(136/17, h.meanNanos());
+    }
+
+    @Test
+    public void percentileIsUpperBoundWithin16th() {
+        Random random = new Random(42);
+        long[] values = new long[10000];
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) Math.exp(random.nextDouble()*Math.log(TimeUnit.SECONDS.toNanos(10)));
+            h.record(values[i]);
+        }
+        Arrays.sort(values);
+        for (double q : new double[] {0.01, 0.25, 0.5, 0.9, 0.95, 0.99, 0.999, 1}) {
+            long exact = values[(int) Math.ceil(q*values.length) - 1];
+            long p = h.percentileNanos(q);
+            assertTrue(q + ": " + p + " below " + exact, p>=exact);
+            assertTrue(q + ": " + p + " too far from " + exact, p<=exact + exact/16);
+        }
+        assertEquals(values[values.length - 1], h.maxNanos());
+        assertEquals(values[values.length - 1], h.percentileNanos(1));
+    }
+
+    @Test
+    public void bucketEdgesDoNotSpill() {
+        for (long edge = 16; edge < TimeUnit.MINUTES.toNanos(10); edge *= 2) {
+            LatencyHistogram h = new LatencyHistogram();
+            h.record(edge - 1);
+            h.record(edge);
+            h.record(edge*4); // keeps max above both
+            assertEquals(edge - 1, h.percentileNanos(0.1));
+            assertEquals(edge + edge/16 - 1, h.percentileNanos(0.5));
+        }
+    }
+
+    @Test
+    public void hugeValuesGoToLastBucket() {
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(TimeUnit.MILLISECONDS.toNanos(1));
+        h.record(TimeUnit.HOURS.toNanos(2));
+        h.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, h.maxNanos());
+        long first = h.percentileNanos(0.3);
+        assertTrue(first>=TimeUnit.MILLISECONDS.toNanos(1) && first<TimeUnit.MILLISECONDS.toNanos(2));
+        long last = h.percentileNanos(1);
+        assertEquals(last, h.percentileNanos(0.5)); // both in last bucket
+        assertTrue(last>=TimeUnit.MINUTES.toNanos(18));
+    }
+}
@@ -0,0 +1,128 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class MessageTemplateTest {
+    private static final String[] TEXTS = {
+        "Your code: ~",
+        "~",
+        "~ is your code, ~ again",
+        "\u0412\u0430\u0448 \u043a\u043e\u0434: ~. \u041d\u0435 \u043f\u043e\u0432\u0456\u0434\u043e\u043c\u043b\u044f\u0439\u0442\u0435 \u0439\u043e\u0433\u043e \u043d\u0456\u043a\u043e\u043c\u0443",
+        "Code ~ \ud83d\udd12 f\u00fcr Zo\u00eb, \u9a8c\u8bc1\u7801 ~",
+        "a&b=c+d%20e#f?g/h;i:j@k,l$m!n'o(p)q*r-s_t.u [v] {w} \"x\" <y> \\z ~ |^`",
+        "tab\tnew line\r\n~ end ",
+        "",
+    };
+
+    private static byte[] formBody(NameValuePair... params) throws IOException {
+        return EntityUtils.toByteArray(new UrlEncodedFormEntity(Arrays.asList(params), StandardCharsets.UTF_8));
+    }
+
+    private static byte[] encoded(MessageTemplate template, String code) {
+        byte[] encodedCode = MessageTemplate.urlEncoded(code);
+        byte[] buf = new byte[template.encodedLength(encodedCode) + 3];
+        int end = template.encodeTo(buf, 3, encodedCode);
+        assertEquals(buf.length, end);
+        return Arrays.copyOfRange(buf, 3, end);
+    }
+
+    @Test
+    public void formatPutsCodeInEveryPlace() {
+        MessageTemplate t = MessageTemplate.compile("~ is your code, ~ again");
+        assertEquals("1234 is your code, 1234 again", t.format("1234"));
+        assertEquals("~", MessageTemplate.compile("~").getSource());
+        assertEquals("0042", MessageTemplate.compile("~").format("0042"));
+        assertEquals("no code", MessageTemplate.text("no code").format("1234"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void templateWithoutPlaceholderIsRefused() {
+        MessageTemplate.compile("Your code is coming");
+    }
+
+    @Test
+    public void encodedTextIsByteIdenticalToFormEntity() throws IOException {
+        for (String source : TEXTS) {
+            MessageTemplate t = source.indexOf('~')>=0 ? MessageTemplate.compile(source) : MessageTemplate.text(source);
+            for (String code : new String[] {"1234", "0000", "a b&c"}) {
+                byte[] expected = formBody(new BasicNameValuePair("text", t.format(code)));
+                byte[] prefix = "text=".getBytes(StandardCharsets.US_ASCII);
+                byte[] actual = encoded(t, code);
+                byte[] body = Arrays.copyOf(prefix, prefix.length + actual.length);
+                System.arraycopy(actual, 0, body, prefix.length, actual.length);
+                assertEquals(source + " / " + code, new String(expected, StandardCharsets.US_ASCII),
+                    new String(body, StandardCharsets.US_ASCII));
+                assertArrayEquals(expected, body);
+            }
+        }
+    }
+
+    @Test
+    public void plainValuesSkipEncoder() throws IOException {
+        for (String value : new String[] {"380501234567", "1234", "AcmeCo", "", "+380 50", "Acme Co.", "\u0412\u0430\u0441\u044f"}) {
+            byte[] expected = formBody(new BasicNameValuePair("v", value));
+            assertEquals(value, new String(expected, StandardCharsets.US_ASCII).substring(2),
+                new String(MessageTemplate.urlEncoded(value), StandardCharsets.US_ASCII));
+        }
+    }
+
+    @Test
+    public void transportBodyIsByteIdenticalToFormEntity() throws Exception {
+        AtomicReference<byte[]> received = new AtomicReference<>();
+        HttpServer stub = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        stub.createContext("/sms/json", exchange -> {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (InputStream in = exchange.getRequestBody()) {
+                for (int b; (b = in.read())>=0; ) body.write(b);
+            }
+            received.set(body.toByteArray());
+            byte[] ok = "{\"message-count\":\"1\",\"messages\":[{\"status\":\"0\"}]}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, ok.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(ok);
+            }
+        });
+        stub.start();
+        try {
+            NexmoTransport nexmo = new NexmoTransport("key&1", "s=cr+t/")
+                .setBaseUrl("http://127.0.0.1:" + stub.getAddress().getPort() + "/sms/json");
+            String[] senders = {"Acme Co", "\u0410\u0446\u043c\u0435"};
+            for (int i = 0; i < TEXTS.length; i++) {
+                if (TEXTS[i].indexOf('~')<0) continue;
+                MessageTemplate t = MessageTemplate.compile(TEXTS[i]);
+                String from = senders[i%senders.length];
+                nexmo.send(from, "+380501234567", t, "0042");
+                List<NameValuePair> form = new ArrayList<>();
+                form.add(new BasicNameValuePair("from", from));
+                form.add(new BasicNameValuePair("to", "+380501234567"));
+                form.add(new BasicNameValuePair("text", t.format("0042")));
+                form.add(new BasicNameValuePair("api_key", "key&1"));
+                form.add(new BasicNameValuePair("api_secret", "s=cr+t/"));
+                byte[] expected = formBody(form.toArray(new NameValuePair[0]));
+                assertEquals(TEXTS[i], new String(expected, StandardCharsets.US_ASCII),
+                    new String(received.get(), StandardCharsets.US_ASCII));
+                assertArrayEquals(expected, received.get());
+            }
+        } finally {
+            stub.stop(0);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class NexmoResponseTest {
+    private HttpServer stub;
+
+    @After
+    public void tearDown() {
+        if (stub!=null) stub.stop(0);
+        stub = null;
+    }
+
+    private static NexmoResponse parse(String json) throws IOException {
+        return NexmoResponse.parse(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static void assertMalformed(String json) {
+        try {
+            parse(json);
+            fail("parsed " + json);
+        } catch (IOException expected) { /* not Nexmo JSON */ }
+    }
+
+    @Test
+    public void compactAndPrettyBodiesReadTheSame() throws IOException {
+        String compact = "{\"message-count\":\"1\",\"messages\":[{\"to\":\"380501234567\",\"message-id\":\"0A0000001\"," +
+            "\"status\":\"0\",\"remaining-balance\":\"3.14\",\"network\":\"25501\"}]}";
+        String pretty = "{\n  \"message-count\" : \"1\",\n  \"messages\" : [ {\n    \"to\" : \"380501234567\",\n" +
+            "    \"message-id\" : \"0A0000001\",\n    \"status\" : 0,\r\n\t\"remaining-balance\" : \"3.14\",\n" +
+            "    \"extra\" : { \"nested\" : [ 1, 2, { \"deep\" : null } ] }\n  } ]\n}\n";
+        for (String json : new String[] {compact, pretty}) {
+            NexmoResponse r = parse(json);
+            assertTrue(json, r.isSuccess());
+            assertEquals(1, r.getMessageCount());
+            assertEquals(1, r.getMessages().size());
+            assertEquals(0, r.getMessages().get(0).getStatus());
+            assertEquals("0A0000001", r.getMessages().get(0).getMessageId());
+            assertNull(r.getErrorText());
+        }
+    }
+
+    @Test
+    public void anyFailedPartFailsWholeSms() throws IOException {
+        NexmoResponse r = parse("{\"message-count\":\"3\",\"messages\":[{\"status\":\"0\",\"message-id\":\"a\"}," +
+            "{\"status\":\"9\",\"error-text\":\"Partner quota exceeded\"},{\"status\":\"0\",\"message-id\":\"c\"}]}");
+        assertFalse(r.isSuccess());
+        assertFalse(r.isRejected()); // account state, not content
+        assertEquals(3, r.getMessages().size());
+        assertEquals("Nexmo status 9: Partner quota exceeded", r.getErrorText());
+
+        NexmoResponse allSent = parse("{\"message-count\":\"2\",\"messages\":[{\"status\":\"0\"},{\"status\":\"0\"}]}");
+        assertTrue(allSent.isSuccess());
+
+        NexmoResponse lostPart = parse("{\"message-count\":\"2\",\"messages\":[{\"status\":\"0\"}]}");
+        assertFalse(lostPart.isSuccess());
+        assertEquals("Nexmo reported 2 parts, got 1", lostPart.getErrorText());
+    }
+
+    @Test
+    public void refusedContentIsRejected() throws IOException {
+        NexmoResponse r = parse("{\"message-count\":\"1\",\"messages\":[{\"status\":\"6\"," +
+            "\"error-text\":\"Unroutable message \\u2013 \\\"bad\\\" number\"}]}");
+        assertFalse(r.isSuccess());
+        assertTrue(r.isRejected());
+        assertEquals("Unroutable message \u2013 \"bad\" number", r.getMessages().get(0).getErrorText());
+    }
+
+    @Test
+    public void missingStatusIsFailure() throws IOException {
+        NexmoResponse r = parse("{\"message-count\":\"1\",\"messages\":[{\"message-id\":\"a\"}]}");
+        assertFalse(r.isSuccess());
+        assertEquals(-1, r.getMessages().get(0).getStatus());
+
+        NexmoResponse empty = parse("{}");
+        assertFalse(empty.isSuccess());
+        assertEquals(-1, empty.getMessageCount());
+        assertEquals("Empty response from Nexmo", empty.getErrorText());
+
+        NexmoResponse top = parse("{\"status\":\"29\",\"error-text\":\"Non White-listed Destination\"}");
+        assertFalse(top.isSuccess());
+        assertEquals("Nexmo status 29: Non White-listed Destination", top.getErrorText());
+    }
+
+    @Test
+    public void truncatedOrMalformedBodyIsIOException() {
+        assertMalformed("");
+        assertMalformed("[]");
+        assertMalformed("<html>Bad gateway</html>");
+        assertMalformed("{\"message-count\":\"1\"");
+        assertMalformed("{\"message-count\":\"1\",\"messages\":[{\"status\":\"0\"");
+        assertMalformed("{\"message-count\":\"1\",\"messages\":[{\"status\":\"0\"}");
+        assertMalformed("{\"messages\":{\"status\":\"0\"}}");
+        assertMalformed("{\"message-count\":\"1\",\"messages\":[{\"message-id\":\"0A00");
+        assertMalformed("{\"messages\":[{\"error-text\":\"bad \\x escape\"}]}");
+        assertMalformed("{\"status\":\"0\"]");
+    }
+
+    private NexmoTransport stub(int status, String body) throws IOException {
+        stub = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        stub.createContext("/sms/json", exchange -> {
+            while (exchange.getRequestBody().read()>=0) { /* drain */ }
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        });
+        stub.start();
+        return new NexmoTransport("key", "secret")
+            .setBaseUrl("http://127.0.0.1:" + stub.getAddress().getPort() + "/sms/json");
+    }
+
+    private static SmsException sendFails(NexmoTransport transport) throws IOException {
+        try {
+            transport.send("co", "380501234567", "Code 1234");
+        } catch (SmsException e) {
+            return e;
+        }
+        fail("SMS counted as sent");
+        return null;
+    }
+
+    @Test
+    public void transportSendsOnSuccess() throws Exception {
+        stub(200, "{\"message-count\":\"1\",\"messages\":[{\"status\":\"0\",\"message-id\":\"a\"}]}")
+            .send("co", "380501234567", "Code 1234");
+    }
+
+    @Test
+    public void transportMapsBadBodiesToSmsException() throws Exception {
+        SmsException truncated = sendFails(stub(200, "{\"message-count\":\"1\",\"messages\":[{\"status\":\"0\""));
+        assertTrue(truncated.getMessage(), truncated.getMessage().startsWith("Malformed response from Nexmo-HTTPS"));
+        assertFalse(truncated.isPermanent());
+        tearDown();
+
+        SmsException html = sendFails(stub(200, "<html>maintenance</html>"));
+        assertFalse(html.isPermanent());
+        tearDown();
+
+        SmsException refused = sendFails(stub(200, "{\"message-count\":\"1\",\"messages\":[{\"status\":\"3\"," +
+            "\"error-text\":\"Invalid to\"}]}"));
+        assertTrue(refused.isPermanent());
+        assertEquals("Nexmo status 3: Invalid to", refused.getMessage());
+        tearDown();
+
+        SmsException down = sendFails(stub(502, "Bad gateway"));
+        assertEquals("Non-200 response [502] from Nexmo-HTTPS", down.getMessage());
+        assertFalse(down.isPermanent());
+    }
+}
@@ -0,0 +1,196 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+public class OutboxTest {
+    private File dir;
+    private SmsConfirmation sms;
+    private FakeTransport fake;
+
+    @After
+    public void tearDown() {
+        if (sms!=null) sms.close();
+        TempDirs.delete(dir);
+        sms = null;
+        dir = null;
+    }
+
+    private BdbTools open() {
+        if (dir==null) dir = TempDirs.create();
+        BdbTools bdb = new BdbTools("co", dir, new BdbConfig());
+        sms = new SmsConfirmation("co", "key", "secret", bdb);
+        fake = new FakeTransport();
+        sms.setTransport(fake);
+        return bdb;
+    }
+
+    private static OutboxConfig fast() {
+        return new OutboxConfig().setPollIntervalMillis(10).setBackoffMillis(20, 40);
+    }
+
+    private List<OutboxEntry> queued() {
+        return sms.bdb.dueOutbox(Long.MAX_VALUE, 100, Collections.emptySet());
+    }
+
+    private static void waitFor(String what, BooleanSupplier done) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!done.getAsBoolean()) {
+            if (System.currentTimeMillis()>deadline) fail("Timed out waiting for " + what);
+            Thread.sleep(5);
+        }
+    }
+
+    /** Refuses every SMS, as gateway does for barred numbers */
+    private static class RefusingTransport implements SmsTransport {
+        int calls;
+
+        @Override
+        public synchronized void send(String from, String to, String text) throws SmsException {
+            calls++;
+            throw new SmsException("Number barred", true);
+        }
+
+        @Override
+        public String getName() {
+            return "refusing";
+        }
+    }
+
+    @Test
+    public void deliversAndRemoves() throws InterruptedException {
+        open();
+        sms.setOutboxConfig(fast());
+        String phone = TempDirs.phone(1);
+        String code = sms.send(phone, "Code ~ for you");
+        assertTrue(SmsConfirmation.isCode(code));
+        waitFor("delivery", () -> queued().isEmpty());
+        assertEquals(1, fake.getMessages().size());
+        assertEquals("Code " + code + " for you", fake.lastText(phone));
+        assertTrue(sms.getDeadLetters(10).isEmpty());
+        assertNotEquals("fail", sms.check(phone, code));
+    }
+
+    @Test
+    public void retriesAfterIOException() throws InterruptedException {
+        open();
+        fake.setFailing(true);
+        sms.setOutboxConfig(fast());
+        String phone = TempDirs.phone(1);
+        String code = sms.send(phone);
+        waitFor("retry", () -> sms.outbox.retries.sum()>=2);
+        List<OutboxEntry> waiting = queued();
+        assertEquals(1, waiting.size());
+        assertTrue(waiting.get(0).getAttempts()>=2);
+        assertTrue(waiting.get(0).getLastError().contains("unreachable"));
+        assertTrue(fake.getMessages().isEmpty());
+
+        fake.setFailing(false);
+        waitFor("delivery", () -> queued().isEmpty());
+        assertTrue(fake.lastText(phone).contains(code));
+        assertTrue(sms.getDeadLetters(10).isEmpty());
+    }
+
+    @Test
+    public void backoffDelaysRetry() throws InterruptedException {
+        open();
+        fake.setFailing(true);
+        sms.setOutboxConfig(new OutboxConfig().setPollIntervalMillis(10).setBackoffMillis(60000, 60000));
+        long start = System.currentTimeMillis();
+        sms.send(TempDirs.phone(1));
+        waitFor("first failure", () -> sms.outbox.retries.sum()==1);
+        OutboxEntry entry = queued().get(0);
+        assertEquals(1, entry.getAttempts());
+        assertTrue(entry.getDue() - start>=30000); // backoff is cut by up to half
+        Thread.sleep(100);
+        assertEquals(1, sms.outbox.retries.sum());
+    }
+
+    @Test
+    public void permanentRefusalGoesToDeadLetters() throws InterruptedException {
+        open();
+        RefusingTransport refusing = new RefusingTransport();
+        sms.setTransport(refusing);
+        sms.setOutboxConfig(fast());
+        String phone = TempDirs.phone(1);
+        sms.send(phone);
+        waitFor("dead letter", () -> !sms.getDeadLetters(10).isEmpty());
+        OutboxEntry dead = sms.getDeadLetters(10).get(0);
+        assertEquals(phone, dead.getPhone());
+        assertEquals(1, dead.getAttempts());
+        assertEquals("Number barred", dead.getLastError());
+        assertEquals(1, refusing.calls);
+        assertEquals(0, sms.outbox.retries.sum());
+        assertTrue(queued().isEmpty());
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() throws InterruptedException {
+        open();
+        fake.setFailing(true);
+        sms.setOutboxConfig(fast().setMaxAttempts(3));
+        sms.send(TempDirs.phone(1));
+        waitFor("dead letter", () -> !sms.getDeadLetters(10).isEmpty());
+        assertEquals(3, sms.getDeadLetters(10).get(0).getAttempts());
+        assertEquals(2, sms.outbox.retries.sum());
+        assertEquals(1, sms.outbox.dead.sum());
+        assertTrue(queued().isEmpty());
+    }
+
+    @Test
+    public void queuedEntryIsSentAfterReopen() throws InterruptedException {
+        BdbTools bdb = open();
+        bdb.openOutbox();
+        String phone = TempDirs.phone(1);
+        bdb.enqueue(phone, "1234", "Code ~"); // accepted, but JVM went down before dispatcher sent it
+        sms.close();
+
+        open().openOutbox();
+        assertEquals(1, queued().size());
+        sms.setOutboxConfig(fast());
+        waitFor("delivery", () -> queued().isEmpty());
+        assertEquals("Code 1234", fake.lastText(phone));
+    }
+
+    @Test
+    public void codeAndEntryAreCommittedTogether() {
+        BdbTools bdb = open();
+        bdb.openOutbox();
+        String phone = TempDirs.phone(1);
+        OutboxEntry entry = bdb.enqueue(phone, "1234", "Code ~");
+        assertEquals("1234", bdb.get(phone).code);
+        assertEquals(entry.seq, queued().get(0).seq);
+        assertEquals("1234", queued().get(0).code);
+
+        try {
+            bdb.enqueue(phone, "5678", null); // outbox write fails after code is put in the same transaction
+            fail("enqueue of broken entry succeeded");
+        } catch (NullPointerException expected) { /* transaction is aborted */ }
+        assertEquals("1234", bdb.get(phone).code);
+        assertEquals(1, queued().size());
+    }
+
+    @Test
+    public void entryOfReplacedCodeIsDropped() throws InterruptedException {
+        BdbTools bdb = open();
+        bdb.openOutbox();
+        String phone = TempDirs.phone(1);
+        bdb.enqueue(phone, "1111", "Code ~");
+        bdb.enqueue(phone, "2222", "Code ~"); // user asked again before first SMS went out
+        assertEquals(2, queued().size());
+
+        sms.setOutboxConfig(fast());
+        waitFor("delivery", () -> queued().isEmpty());
+        assertEquals(1, fake.getMessages().size());
+        assertEquals("Code 2222", fake.lastText(phone));
+        assertEquals(1, sms.getMetrics().snapshot().get("outbox_superseded_total").intValue());
+        assertEquals("fail", sms.check(phone, "1111"));
+    }
+}
@@ -0,0 +1,85 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class RateLimiterTest {
+    private final AtomicLong now = new AtomicLong(TimeUnit.DAYS.toNanos(1));
+
+    private RateLimiter limiter(RateLimitConfig config) {
+        return new RateLimiter(config, now::get);
+    }
+
+    private void advance(long amount, TimeUnit unit) {
+        now.addAndGet(unit.toNanos(amount));
+    }
+
+    @Test
+    public void burstThenWaitGivenBack() {
+        RateLimiter limiter = limiter(RateLimitConfig.none().addPhoneLimit(3, 3000));
+        String phone = TempDirs.phone(1);
+        for (int i = 0; i < 3; i++) assertEquals(0, limiter.acquire(phone));
+        long wait = limiter.acquire(phone);
+        assertEquals(TimeUnit.SECONDS.toNanos(1), wait);
+        assertEquals(0, limiter.acquire(TempDirs.phone(2))); // other phones do not care
+
+        now.addAndGet(wait - 1);
+        assertEquals(1, limiter.acquire(phone));
+        advance(1, TimeUnit.NANOSECONDS);
+        assertEquals(0, limiter.acquire(phone));
+        assertEquals(5, limiter.allowed.sum());
+        assertEquals(2, limiter.phoneRejected.sum());
+    }
+
+    @Test
+    public void hourLimitStopsSlowSender() {
+        RateLimiter limiter = limiter(new RateLimitConfig()); // 1 per 30s, 5 per hour
+        String phone = TempDirs.phone(1);
+        assertEquals(0, limiter.acquire(phone));
+        assertEquals(TimeUnit.SECONDS.toNanos(30), limiter.acquire(phone));
+        for (int i = 1; i < 5; i++) {
+            advance(30, TimeUnit.SECONDS);
+            assertEquals("SMS " + i, 0, limiter.acquire(phone));
+        }
+        advance(30, TimeUnit.SECONDS);
+        // 5 SMS took 5 slots of 12 minutes, one of them is free again 12 minutes after the first SMS
+        assertEquals(TimeUnit.SECONDS.toNanos(720 - 150), limiter.acquire(phone));
+        advance(720 - 150, TimeUnit.SECONDS);
+        assertEquals(0, limiter.acquire(phone));
+    }
+
+    @Test
+    public void namespaceRejectionGivesPhoneSlotBack() {
+        RateLimiter limiter = limiter(RateLimitConfig.none().addPhoneLimit(1, 30000).setNamespaceRate(1, 1));
+        assertEquals(0, limiter.acquire(TempDirs.phone(1)));
+        String phone = TempDirs.phone(2);
+        assertEquals(TimeUnit.SECONDS.toNanos(1), limiter.acquire(phone));
+        assertEquals(1, limiter.namespaceRejected.sum());
+
+        advance(1, TimeUnit.SECONDS);
+        assertEquals(0, limiter.acquire(phone)); // not 29 more seconds of phone limit
+        assertEquals(0, limiter.phoneRejected.sum());
+    }
+
+    @Test
+    public void fullTableRefusesNewPhonesUntilSweep() {
+        RateLimiter limiter = limiter(RateLimitConfig.none().addPhoneLimit(1, 30000).setMaxPhones(2));
+        assertEquals(0, limiter.acquire(TempDirs.phone(1)));
+        assertEquals(0, limiter.acquire(TempDirs.phone(2)));
+        assertEquals(TimeUnit.SECONDS.toNanos(1), limiter.acquire(TempDirs.phone(3))); // swept, nobody idle
+        advance(400, TimeUnit.MILLISECONDS);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(600), limiter.acquire(TempDirs.phone(3))); // no sweep before due
+        assertEquals(2, limiter.tableFull.sum());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(29600), limiter.acquire(TempDirs.phone(1))); // known phone as usual
+
+        advance(30, TimeUnit.SECONDS);
+        assertEquals(0, limiter.acquire(TempDirs.phone(3)));
+        assertEquals(1, limiter.size());
+        assertEquals(0, limiter.acquire(TempDirs.phone(1))); // came back as new phone
+        assertEquals(2, limiter.size());
+    }
+}
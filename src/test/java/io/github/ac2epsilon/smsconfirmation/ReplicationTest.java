@@ -0,0 +1,85 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import com.sleepycat.je.rep.StateChangeException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Two-node JE HA group in one JVM, a short form of benchmarks' ReplicationHarness
+ */
+public class ReplicationTest {
+    private File root;
+    private BdbTools master;
+    private BdbTools replica;
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        root = TempDirs.create();
+        String first = "localhost:" + freePort(), second = "localhost:" + freePort();
+        master = new BdbTools("ha", new File(root, "n1"), new BdbConfig().setReplication(new HaConfig("n1", first, first)));
+        replica = new BdbTools("ha", new File(root, "n2"), new BdbConfig().setReplication(new HaConfig("n2", second, first)));
+    }
+
+    @After
+    public void tearDown() {
+        if (replica!=null) replica.close(); // replica first, so master does not wait for it
+        if (master!=null) master.close();
+        TempDirs.delete(root);
+    }
+
+    @Test
+    public void roles() {
+        assertTrue(master.isMaster());
+        assertFalse(replica.isMaster());
+        assertEquals("n1", replica.getMasterName());
+    }
+
+    @Test
+    public void replicaSeesFreshCodeWithCommitToken() {
+        for (int i = 0; i < 50; i++) {
+            Confirmation sent = master.add(TempDirs.phone(i), "4321");
+            try {
+                assertNotNull("stale read of " + sent.id, replica.confirm(sent.id, "4321", sent.getCommitToken()));
+                fail("replica confirmed code by itself");
+            } catch (StateChangeException e) { /* right code has to go to master */ }
+        }
+    }
+
+    @Test
+    public void replicaServesConfirmedRecords() throws InterruptedException {
+        Confirmation sent = master.add(TempDirs.phone(1), "1234");
+        String hash = master.confirm(sent.id, "1234", null).hash;
+        Confirmation found = null;
+        for (int i = 0; i < 100 && found==null; i++) { // default policy lets replica lag a bit
+            found = replica.getByHash(hash);
+            if (found==null) Thread.sleep(50);
+        }
+        assertNotNull(found);
+        assertEquals(hash, replica.confirm(sent.id, "1234").hash); // repeated check answers without write
+        assertNull(replica.confirm(sent.id, "9999"));
+    }
+
+    @Test
+    public void sendOnReplicaAsksForMaster() {
+        SmsConfirmation sms = new SmsConfirmation("ha", "12345678", "1234567890abcdef", replica);
+        sms.setTransport(new FakeTransport());
+        assertSame(SmsConfirmation.NOT_MASTER, sms.send(TempDirs.phone(1)));
+        List<BatchResult> batch = sms.sendBatch(Collections.singletonList(TempDirs.phone(2)));
+        assertSame(SmsConfirmation.NOT_MASTER, batch.get(0).getError());
+    }
+}
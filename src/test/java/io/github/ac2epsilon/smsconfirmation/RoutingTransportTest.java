@@ -0,0 +1,167 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class RoutingTransportTest {
+
+    /** Refuses every SMS, as gateway does for barred numbers */
+    private static class RefusingTransport implements SmsTransport {
+        int calls;
+
+        @Override
+        public synchronized void send(String from, String to, String text) throws SmsException {
+            calls++;
+            throw new SmsException("Number barred", true);
+        }
+
+        @Override
+        public String getName() {
+            return "refusing";
+        }
+    }
+
+    private static Map<String, Number> stats(RoutingTransport routing) {
+        Map<String, Number> m = new HashMap<>();
+        routing.addStats(m);
+        return m;
+    }
+
+    private static void sendFails(RoutingTransport routing) {
+        try {
+            routing.send("co", TempDirs.phone(1), "text");
+            fail("sent with all transports down");
+        } catch (IOException expected) { /* nothing to fail over to */ }
+        catch (SmsException e) {
+            fail(e.toString());
+        }
+    }
+
+    @Test
+    public void failsOverInOrderOfPreference() throws Exception {
+        FakeTransport a = new FakeTransport("a").setFailing(true);
+        FakeTransport b = new FakeTransport("b").setFailing(true);
+        FakeTransport c = new FakeTransport("c");
+        RoutingTransport routing = new RoutingTransport(a, b, c);
+        routing.send("co", TempDirs.phone(1), "first");
+        assertEquals("first", c.lastText(TempDirs.phone(1)));
+        assertEquals(2, routing.failovers.sum());
+
+        b.setFailing(false);
+        routing.send("co", TempDirs.phone(2), "second");
+        assertEquals("second", b.lastText(TempDirs.phone(2)));
+        assertNull(c.lastText(TempDirs.phone(2)));
+        assertEquals(3, routing.failovers.sum());
+        assertEquals(2, stats(routing).get("transport_a_failures_total").intValue());
+        assertEquals(1, stats(routing).get("transport_b_failures_total").intValue());
+
+        c.setFailing(true);
+        b.setFailing(true);
+        sendFails(routing);
+    }
+
+    @Test
+    public void breakerOpensProbesAndCloses() throws Exception {
+        FakeTransport a = new FakeTransport("a").setFailing(true);
+        FakeTransport b = new FakeTransport("b");
+        RoutingTransport routing = new RoutingTransport(a, b).setFailureThreshold(2).setOpenMillis(100);
+        routing.send("co", TempDirs.phone(1), "1");
+        assertEquals(0, stats(routing).get("transport_a_open").intValue());
+        routing.send("co", TempDirs.phone(2), "2");
+        assertEquals(1, stats(routing).get("transport_a_open").intValue());
+
+        routing.send("co", TempDirs.phone(3), "3"); // open: a is skipped, not failed over from
+        assertEquals(2, routing.failovers.sum());
+        assertEquals(2, stats(routing).get("transport_a_failures_total").intValue());
+
+        Thread.sleep(150);
+        routing.send("co", TempDirs.phone(4), "4"); // half-open: probe fails, breaker opens again
+        assertEquals(3, stats(routing).get("transport_a_failures_total").intValue());
+        assertEquals(1, stats(routing).get("transport_a_open").intValue());
+        assertEquals(1, stats(routing).get("transport_a_opened_total").intValue());
+        routing.send("co", TempDirs.phone(5), "5");
+        assertEquals(3, stats(routing).get("transport_a_failures_total").intValue());
+
+        a.setFailing(false);
+        Thread.sleep(150);
+        routing.send("co", TempDirs.phone(6), "6"); // probe succeeds
+        assertEquals("6", a.lastText(TempDirs.phone(6)));
+        assertEquals(0, stats(routing).get("transport_a_open").intValue());
+        routing.send("co", TempDirs.phone(7), "7");
+        assertEquals("7", a.lastText(TempDirs.phone(7)));
+        assertEquals(5, b.getMessages().size());
+    }
+
+    @Test
+    public void halfOpenBreakerLetsSingleProbeThrough() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker();
+        breaker.failure(1, 50_000_000L);
+        assertTrue(breaker.isOpen());
+        assertFalse(breaker.allow());
+        Thread.sleep(80);
+        assertTrue(breaker.allow());
+        assertFalse(breaker.allow()); // probe is out, others still refused
+        breaker.success();
+        assertFalse(breaker.isOpen());
+        assertTrue(breaker.allow());
+        assertTrue(breaker.allow());
+        assertEquals(1, breaker.opened.sum());
+    }
+
+    @Test
+    public void permanentRefusalDoesNotFailOver() throws Exception {
+        RefusingTransport a = new RefusingTransport();
+        FakeTransport b = new FakeTransport("b");
+        RoutingTransport routing = new RoutingTransport(a, b).setFailureThreshold(1);
+        for (int i = 0; i < 3; i++) {
+            try {
+                routing.send("co", TempDirs.phone(1), "text");
+                fail("refusal was not given back");
+            } catch (SmsException e) {
+                assertTrue(e.isPermanent());
+            }
+        }
+        assertEquals(3, a.calls);
+        assertTrue(b.getMessages().isEmpty());
+        assertEquals(0, routing.failovers.sum());
+        assertEquals(0, stats(routing).get("transport_refusing_open").intValue()); // gateway is alive
+    }
+
+    @Test
+    public void hedgeFiresAfterPercentileDelay() throws Exception {
+        FakeTransport a = new FakeTransport("a").setLatencyMillis(5);
+        FakeTransport b = new FakeTransport("b");
+        RoutingTransport routing = new RoutingTransport(a, b).setHedgePercentile(0.95).setHedgeDelayMillis(1000);
+        for (int i = 0; i < 100; i++) routing.send("co", TempDirs.phone(i), "warm"); // samples for p95
+        assertEquals(0, routing.hedges.sum());
+        assertTrue(b.getMessages().isEmpty());
+        long delayMillis = stats(routing).get("transport_a_hedge_delay_us").longValue()/1000;
+        assertTrue("p95 " + delayMillis, delayMillis>=4 && delayMillis<500);
+
+        a.setLatencyMillis(2000); // stuck gateway
+        long start = System.nanoTime();
+        routing.send("co", TempDirs.phone(500), "hedged");
+        long tookMillis = (System.nanoTime() - start)/1_000_000;
+        assertEquals(1, routing.hedges.sum());
+        assertEquals("hedged", b.lastText(TempDirs.phone(500)));
+        assertTrue("took " + tookMillis, tookMillis>=delayMillis && tookMillis<1000);
+    }
+
+    @Test
+    public void fixedHedgeDelayUntilEnoughSamples() throws Exception {
+        FakeTransport a = new FakeTransport("a").setLatencyMillis(300);
+        FakeTransport b = new FakeTransport("b");
+        RoutingTransport routing = new RoutingTransport(a, b).setHedgePercentile(0.95).setHedgeDelayMillis(50);
+        long start = System.nanoTime();
+        routing.send("co", TempDirs.phone(1), "text");
+        long tookMillis = (System.nanoTime() - start)/1_000_000;
+        assertEquals(1, routing.hedges.sum());
+        assertEquals("text", b.lastText(TempDirs.phone(1)));
+        assertTrue("took " + tookMillis, tookMillis>=50 && tookMillis<300);
+    }
+}
@@ -0,0 +1,94 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class ScanTest {
+    private static final int RECORDS = 600; // more then one chunk of RangeSpliterator
+
+    private File dir;
+    private BdbTools bdb;
+
+    @After
+    public void tearDown() {
+        if (bdb!=null) bdb.close();
+        TempDirs.delete(dir);
+        bdb = null;
+        dir = null;
+    }
+
+    /**
+     * Even records are confirmed, odd ones pending
+     */
+    private void fill(BdbConfig config) {
+        dir = TempDirs.create();
+        bdb = new BdbTools("scan", dir, config);
+        for (int i = 0; i < RECORDS; i++) {
+            if (i%2==0) {
+                Confirmation c = new Confirmation(TempDirs.phone(i), "1234");
+                c.setTokenHash();
+                bdb.putNoTTL(c);
+            } else bdb.add(TempDirs.phone(i), "1234");
+        }
+    }
+
+    @Test
+    public void streamFilters() {
+        for (BdbConfig.Format format : BdbConfig.Format.values()) {
+            fill(new BdbConfig().setFormat(format));
+            assertEquals(RECORDS, bdb.stream(ConfirmationFilter.ALL).count());
+            assertEquals(RECORDS/2, bdb.stream(ConfirmationFilter.PENDING).filter(c -> c.hash==null).count());
+            assertEquals(RECORDS/2, bdb.stream(ConfirmationFilter.CONFIRMED).filter(c -> c.hash!=null).count());
+            assertEquals(RECORDS, bdb.stream(ConfirmationFilter.ALL).parallel().map(Confirmation::getPhone).distinct().count());
+            List<String> phones = bdb.stream(ConfirmationFilter.ALL).map(Confirmation::getPhone).collect(Collectors.toList());
+            List<String> sorted = new ArrayList<>(phones);
+            sorted.sort(null);
+            assertEquals(sorted, phones);
+            tearDown();
+        }
+    }
+
+    @Test
+    public void streamRange() {
+        fill(new BdbConfig().setFormat(BdbConfig.Format.COMPACT));
+        List<String> phones = bdb.stream(TempDirs.phone(100), TempDirs.phone(200), ConfirmationFilter.ALL)
+            .map(Confirmation::getPhone).collect(Collectors.toList());
+        assertEquals(100, phones.size());
+        assertEquals(TempDirs.phone(100), phones.get(0));
+        assertEquals(TempDirs.phone(199), phones.get(99));
+    }
+
+    @Test
+    public void pagesCoverShardsInOrder() {
+        fill(new BdbConfig().setShards(3));
+        List<String> seen = new ArrayList<>();
+        List<Confirmation> page = bdb.page(null, 70, ConfirmationFilter.CONFIRMED);
+        while (!page.isEmpty()) {
+            for (Confirmation c : page) seen.add(c.getPhone());
+            page = bdb.page(page.get(page.size() - 1).getPhone(), 70, ConfirmationFilter.CONFIRMED);
+        }
+        assertEquals(RECORDS/2, seen.size());
+        for (int i = 0; i < seen.size(); i++) assertEquals(TempDirs.phone(i*2), seen.get(i));
+    }
+
+    @Test
+    public void exportNdjson() throws IOException {
+        fill(new BdbConfig());
+        Path file = new File(dir, "export.ndjson").toPath();
+        assertEquals(RECORDS/2, bdb.exportNdjson(file, ConfirmationFilter.PENDING));
+        List<String> lines = Files.readAllLines(file);
+        assertEquals(RECORDS/2, lines.size());
+        assertTrue(lines.get(0), lines.get(0).startsWith("{\"phone\":\"" + TempDirs.phone(1) + "\",\"code\":\"1234\""));
+        assertTrue(lines.get(0), lines.get(0).contains("\"hash\":null"));
+    }
+}
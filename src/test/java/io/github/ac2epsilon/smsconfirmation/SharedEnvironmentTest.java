@@ -0,0 +1,66 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class SharedEnvironmentTest {
+    private File dir;
+
+    @After
+    public void tearDown() {
+        TempDirs.delete(dir);
+        dir = null;
+    }
+
+    @Test
+    public void concurrentOpenSharesOneEnvironment() throws Exception {
+        dir = TempDirs.create();
+        int threads = 8;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Future<SharedEnvironment>> opened = new ArrayList<>();
+        try {
+            for (int i = 0; i < threads; i++) {
+                opened.add(pool.submit(() -> {
+                    go.await();
+                    return SharedEnvironment.acquire(dir, new BdbConfig());
+                }));
+            }
+            go.countDown();
+            SharedEnvironment first = opened.get(0).get();
+            for (Future<SharedEnvironment> f : opened) assertSame(first, f.get());
+            for (int i = 0; i < threads - 1; i++) first.release();
+            assertTrue(SharedEnvironment.isOpen(dir));
+            first.release();
+            assertFalse(SharedEnvironment.isOpen(dir));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void failedOpenLeavesNothingBehind() {
+        dir = TempDirs.create();
+        File missing = new File(dir, "missing");
+        try {
+            SharedEnvironment.acquire(missing, new BdbConfig().setReadOnly(true));
+            fail("read-only environment opened in empty directory");
+        } catch (RuntimeException expected) { /* nothing to read */ }
+        assertFalse(SharedEnvironment.isOpen(missing));
+
+        SharedEnvironment shared = SharedEnvironment.acquire(missing, new BdbConfig());
+        assertTrue(SharedEnvironment.isOpen(missing));
+        shared.release();
+        assertFalse(SharedEnvironment.isOpen(missing));
+    }
+}
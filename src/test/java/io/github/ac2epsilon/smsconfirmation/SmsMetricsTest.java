@@ -0,0 +1,116 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import org.junit.After;
+import org.junit.Test;
+
+import javax.management.AttributeNotFoundException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SmsMetricsTest {
+    private File dir;
+    private SmsConfirmation sms;
+
+    @After
+    public void tearDown() {
+        if (sms!=null) {
+            sms.getMetrics().unregisterMBean();
+            sms.close();
+        }
+        TempDirs.delete(dir);
+        sms = null;
+        dir = null;
+    }
+
+    private SmsMetrics open() {
+        dir = TempDirs.create();
+        sms = new SmsConfirmation("co", "key", "secret", new BdbTools("co", dir, new BdbConfig()));
+        sms.setTransport(new FakeTransport());
+        return sms.getMetrics();
+    }
+
+    @Test
+    public void snapshotCountsAndLatencies() {
+        SmsMetrics metrics = open();
+        String phone = TempDirs.phone(1);
+        String code = sms.send(phone);
+        sms.check(phone, code.equals("0000") ? "1111" : "0000");
+        sms.check(phone, code);
+        metrics.lookup.record(TimeUnit.MILLISECONDS.toNanos(2));
+
+        Map<String, Number> m = metrics.snapshot();
+        assertEquals(1, m.get("sent_total").intValue());
+        assertEquals(1, m.get("check_ok_total").intValue());
+        assertEquals(1, m.get("check_fail_total").intValue());
+        assertEquals(1, m.get("gateway_count").intValue());
+        assertEquals(2, m.get("confirm_count").intValue());
+        assertEquals(1, m.get("lookup_count").intValue());
+        assertEquals(2000, m.get("lookup_mean_us").intValue());
+        assertEquals(2000, m.get("lookup_p99_us").intValue());
+        assertEquals(2000, m.get("lookup_max_us").intValue());
+        assertTrue(m.containsKey("je_cache_miss_total")); // store is open, its stats come along
+
+        List<String> names = new ArrayList<>(m.keySet());
+        assertEquals("sent_total", names.get(0));
+        assertTrue(names.indexOf("gateway_p50_us")<names.indexOf("gateway_p99_us"));
+        assertTrue(names.indexOf("gateway_p99_us")<names.indexOf("gateway_p999_us"));
+        assertEquals(names, new ArrayList<>(metrics.snapshot().keySet())); // stable order
+    }
+
+    @Test
+    public void textFormatIsOneMetricPerLine() {
+        SmsMetrics metrics = open();
+        sms.send(TempDirs.phone(1));
+        String text = metrics.toText();
+        assertTrue(text.endsWith("\n"));
+        String[] lines = text.split("\n");
+        Map<String, Number> m = metrics.snapshot();
+        assertEquals(m.size(), lines.length);
+        for (String line : lines) assertTrue(line, line.matches("sms_[a-z0-9_]+ -?[0-9]+(\\.[0-9]+)?"));
+        assertEquals("sms_sent_total 1", lines[0]);
+        assertTrue(text.contains("\nsms_gateway_count 1\n"));
+    }
+
+    @Test
+    public void jmxServesSnapshotForASecond() throws Exception {
+        SmsMetrics metrics = open();
+        metrics.registerMBean("metrics-test");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("io.github.ac2epsilon.smsconfirmation:type=SmsConfirmation,name=" +
+            ObjectName.quote("metrics-test"));
+        assertTrue(server.isRegistered(name));
+
+        sms.send(TempDirs.phone(1));
+        assertEquals(1L, server.getAttribute(name, "sent_total"));
+        sms.send(TempDirs.phone(2));
+        assertEquals(1L, server.getAttribute(name, "sent_total")); // same snapshot within a second
+        assertEquals(2, metrics.snapshot().get("sent_total").intValue());
+
+        List<String> attributes = new ArrayList<>();
+        for (MBeanAttributeInfo a : server.getMBeanInfo(name).getAttributes()) {
+            assertEquals("long", a.getType());
+            assertTrue(a.isReadable());
+            assertFalse(a.isWritable());
+            attributes.add(a.getName());
+        }
+        assertTrue(attributes.contains("gateway_p999_us"));
+        try {
+            metrics.getAttribute("no_such_metric");
+            fail("unknown attribute found");
+        } catch (AttributeNotFoundException expected) { /* only snapshot names */ }
+
+        Thread.sleep(1100);
+        assertEquals(2L, server.getAttribute(name, "sent_total"));
+        metrics.unregisterMBean();
+        assertFalse(server.isRegistered(name));
+    }
+}
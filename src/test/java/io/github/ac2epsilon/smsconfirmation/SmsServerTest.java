@@ -0,0 +1,180 @@
+package io.github.ac2epsilon.smsconfirmation;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class SmsServerTest {
+    private static final Pattern CODE = Pattern.compile("[0-9]{4}");
+    private static final Pattern HASH = Pattern.compile("\"hash\":\"([^\"]+)\"");
+
+    private File dir;
+    private SmsConfirmation sms;
+    private SmsServer server;
+    private FakeTransport fake;
+
+    @After
+    public void tearDown() {
+        if (server!=null) server.stop();
+        TempDirs.delete(dir);
+        sms = null;
+        server = null;
+        dir = null;
+    }
+
+    private SmsServer server(BdbConfig config) {
+        sms = new SmsConfirmation("co", "key", "secret", new BdbTools("co", dir, config));
+        fake = new FakeTransport();
+        sms.setTransport(fake);
+        return server = new SmsServer(sms, new InetSocketAddress("127.0.0.1", 0)).setShutdownDelaySeconds(0);
+    }
+
+    private static class Response {
+        final int status;
+        final String body;
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private Response call(String method, String path, String body) throws IOException {
+        HttpURLConnection c = (HttpURLConnection) new URL("http://127.0.0.1:" + server.getPort() + path).openConnection();
+        c.setRequestMethod(method);
+        if (body!=null) {
+            c.setDoOutput(true);
+            try (OutputStream out = c.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        int status = c.getResponseCode();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InputStream in = status<400 ? c.getInputStream() : c.getErrorStream()) {
+            if (in!=null) for (int b; (b = in.read())>=0; ) bytes.write(b);
+        }
+        return new Response(status, new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    private String sentCode(String phone) {
+        Matcher m = CODE.matcher(fake.lastText(phone));
+        assertTrue(m.find());
+        return m.group();
+    }
+
+    @Test
+    public void sendCheckRehash() throws IOException {
+        dir = TempDirs.create();
+        server(new BdbConfig()).start();
+        String phone = TempDirs.phone(1);
+
+        Response sent = call("POST", "/send", "{\"phone\":\"" + phone + "\"}");
+        assertEquals(200, sent.status);
+        assertEquals("{\"status\":\"sent\"}", sent.body);
+        String code = sentCode(phone);
+
+        String wrong = code.equals("0000") ? "1111" : "0000";
+        Response fail = call("POST", "/check", "{\"phone\":\"" + phone + "\",\"code\":\"" + wrong + "\"}");
+        assertEquals(403, fail.status);
+        assertEquals("{\"status\":\"fail\"}", fail.body);
+
+        Response ok = call("POST", "/check", "{\"code\":\"" + code + "\", \"phone\":\"" + phone + "\", \"extra\":[1,2]}");
+        assertEquals(200, ok.status);
+        Matcher m = HASH.matcher(ok.body);
+        assertTrue(ok.body, m.find());
+        String hash = m.group(1);
+
+        Response rehash = call("GET", "/rehash/" + hash, null);
+        assertEquals(200, rehash.status);
+        assertTrue(rehash.body, rehash.body.startsWith("{\"status\":\"confirmed\",\"sign\":"));
+        assertEquals(404, call("GET", "/rehash/unknown", null).status);
+    }
+
+    @Test
+    public void badRequests() throws IOException {
+        dir = TempDirs.create();
+        server(new BdbConfig()).start();
+        assertEquals(400, call("POST", "/send", "{\"code\":\"1234\"}").status);
+        assertEquals(400, call("POST", "/send", "not json").status);
+        assertEquals(405, call("GET", "/send", null).status);
+        assertEquals(404, call("GET", "/nothing", null).status);
+        assertTrue(fake.getMessages().isEmpty());
+    }
+
+    @Test
+    public void bodyOverLimitIs413() throws IOException {
+        dir = TempDirs.create();
+        server(new BdbConfig()).setMaxBodyBytes(64).start();
+        StringBuilder big = new StringBuilder("{\"phone\":\"" + TempDirs.phone(1) + "\",\"pad\":\"");
+        while (big.length()<100) big.append('x');
+        Response r = call("POST", "/send", big.append("\"}").toString());
+        assertEquals(413, r.status);
+        assertEquals("{\"status\":\"too_large\"}", r.body);
+        assertTrue(fake.getMessages().isEmpty());
+    }
+
+    @Test
+    public void readOnlyStoreAnswersNotMaster() throws IOException {
+        dir = TempDirs.create();
+        BdbTools writer = new BdbTools("co", dir, new BdbConfig());
+        writer.add(TempDirs.phone(1), "1234");
+        writer.close();
+        server(new BdbConfig().setReadOnly(true)).start();
+
+        Response send = call("POST", "/send", "{\"phone\":\"" + TempDirs.phone(2) + "\"}");
+        assertEquals(503, send.status);
+        assertEquals("{\"status\":\"not_master\",\"master\":null}", send.body);
+        Response check = call("POST", "/check", "{\"phone\":\"" + TempDirs.phone(1) + "\",\"code\":\"1234\"}");
+        assertEquals(503, check.status);
+        assertTrue(fake.getMessages().isEmpty());
+    }
+
+    @Test
+    public void fullPoolAnswersBusy() throws Exception {
+        Assume.assumeTrue(AsyncSender.virtualExecutor()==null); // virtual threads are never full
+        dir = TempDirs.create();
+        server(new BdbConfig()).setThreads(1).start(); // 1 running, 4 queued
+        fake.setLatencyMillis(300);
+
+        ExecutorService clients = Executors.newFixedThreadPool(12);
+        try {
+            List<Future<Response>> responses = new ArrayList<>();
+            for (int i = 0; i < 12; i++) {
+                String phone = TempDirs.phone(i);
+                responses.add(clients.submit(() -> call("POST", "/send", "{\"phone\":\"" + phone + "\"}")));
+            }
+            int sent = 0, busy = 0;
+            for (Future<Response> f : responses) {
+                Response r = f.get();
+                if (r.status==200) sent++;
+                else if (r.status==503 && r.body.equals("{\"status\":\"busy\"}")) busy++;
+                else fail(r.status + " " + r.body);
+            }
+            assertTrue("sent " + sent, sent>0);
+            assertTrue("busy " + busy, busy>0);
+            assertEquals(busy, sms.getMetrics().snapshot().get("server_busy_total").intValue());
+            assertEquals(sent, fake.getMessages().size());
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+}